@@ -0,0 +1,192 @@
+package com.thn.netty.chat.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.thn.netty.chat.primitive.AddContactInviteCmd;
+import com.thn.netty.chat.primitive.AddContactResponseCmd;
+import com.thn.netty.chat.primitive.ChangePasswordRequest;
+import com.thn.netty.chat.primitive.ChatMessageCmd;
+import com.thn.netty.chat.primitive.Command;
+import com.thn.netty.chat.primitive.CommandType;
+import com.thn.netty.chat.primitive.CreateAccountRequest;
+import com.thn.netty.chat.primitive.DeliveryAckCmd;
+import com.thn.netty.chat.primitive.DeliveryReceiptCmd;
+import com.thn.netty.chat.primitive.ErrorResponse;
+import com.thn.netty.chat.primitive.ExitRequest;
+import com.thn.netty.chat.primitive.GetContactOfUsers;
+import com.thn.netty.chat.primitive.GetContactOfUsersResponse;
+import com.thn.netty.chat.primitive.GetPendingMessages;
+import com.thn.netty.chat.primitive.GetPendingMessagesResponse;
+import com.thn.netty.chat.primitive.LoginRequest;
+import com.thn.netty.chat.primitive.LogoutRequest;
+import com.thn.netty.chat.primitive.MessageInfo;
+import com.thn.netty.chat.primitive.OkResponse;
+import com.thn.netty.chat.primitive.PresenceCmd;
+import com.thn.netty.chat.primitive.RemoveContactCmd;
+import com.thn.netty.chat.primitive.RoomCreateCmd;
+import com.thn.netty.chat.primitive.RoomJoinCmd;
+import com.thn.netty.chat.primitive.RoomLeaveCmd;
+import com.thn.netty.chat.primitive.RoomPostCmd;
+import com.thn.netty.chat.primitive.ShutdownServerRequest;
+import com.thn.netty.chat.primitive.UserName;
+import com.thn.netty.chat.user.ContactState;
+
+/**
+ * Encode / decode throughput of each {@link DelegateCodec} registered in {@link CommandCodec}, with realistic
+ * payloads. Run with the <code>jmh</code> profile (see the README), which also enables the gc profiler to report
+ * the allocation rate.
+ * @author Thierry Herrmann
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private static final int CHAT_MESSAGE_SIZE = 1024;
+    private static final int PENDING_MESSAGES = 1000;
+    private static final int CONTACTS = 100;
+
+    @Param({"CREATE_ACCOUNT", "CHANGE_PASSWORD", "LOGIN", "LOGOUT", "EXIT", "ADD_CONTACT_INVITE",
+            "ADD_CONTACT_RESPONSE", "REMOVE_CONTACT", "GET_CONTACT_OF_USERS", "GET_CONTACT_OF_USERS_RESPONSE",
+            "MESSAGE", "GET_PENDING_MESSAGES", "GET_PENDING_MESSAGES_RESPONSE", "SHUTDOWN_SERVER", "OK", "ERROR",
+            "PRESENCE", "ROOM_CREATE", "ROOM_JOIN", "ROOM_LEAVE", "ROOM_POST",
+            "DELIVERY_ACK", "DELIVERY_RECEIPT"})
+    public String mType;
+
+    private final CommandCodec mCodec = new CommandCodec();
+    private final List<Object> mDecoded = new ArrayList<>(1);
+    private Command mCommand;
+    private ByteBuf mOut;
+    private ByteBuf mEncoded;
+
+    @Setup
+    public void setUp() throws Exception {
+        Set<CommandType> missing = EnumSet.copyOf(CommandCodec.getRegisteredTypes());
+        for (String type : CodecBenchmark.class.getField("mType").getAnnotation(Param.class).value()) {
+            missing.remove(CommandType.valueOf(type));
+        }
+        if (!missing.isEmpty()) {
+            throw new IllegalStateException("codecs not benchmarked: " + missing);
+        }
+        mCommand = newCommand(CommandType.valueOf(mType));
+        mEncoded = Unpooled.buffer();
+        mCodec.encode(null, mCommand, mEncoded);
+        mOut = Unpooled.buffer(mEncoded.capacity());
+    }
+
+    @TearDown
+    public void tearDown() {
+        mOut.release();
+        mEncoded.release();
+    }
+
+    @Benchmark
+    public ByteBuf encode() throws Exception {
+        mOut.clear();
+        mCodec.encode(null, mCommand, mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public Object decode() throws Exception {
+        mEncoded.readerIndex(0);
+        mDecoded.clear();
+        mCodec.decode(null, mEncoded, mDecoded);
+        return mDecoded.get(0);
+    }
+
+    private static Command newCommand(CommandType aType) {
+        UserName alice = new UserName("Alice");
+        UserName bob = new UserName("Bob");
+        switch (aType) {
+        case CREATE_ACCOUNT:
+            return new CreateAccountRequest(1, alice, "mypass");
+        case CHANGE_PASSWORD:
+            return new ChangePasswordRequest(1, alice, "mypass", "newpass");
+        case LOGIN:
+            return new LoginRequest(1, alice, "mypass");
+        case LOGOUT:
+            return new LogoutRequest(1);
+        case EXIT:
+            return new ExitRequest(1);
+        case ADD_CONTACT_INVITE:
+            return new AddContactInviteCmd(1, alice, bob);
+        case ADD_CONTACT_RESPONSE:
+            return new AddContactResponseCmd(1, alice, bob, true);
+        case REMOVE_CONTACT:
+            return new RemoveContactCmd(1, bob);
+        case GET_CONTACT_OF_USERS:
+            return new GetContactOfUsers(1, ContactState.PENDING);
+        case GET_CONTACT_OF_USERS_RESPONSE:
+            List<UserName> names = new ArrayList<>(CONTACTS);
+            for (int i = 0; i < CONTACTS; i++) {
+                names.add(new UserName("contact" + i));
+            }
+            return new GetContactOfUsersResponse(1, names);
+        case MESSAGE:
+            return new ChatMessageCmd(1, new MessageInfo(alice, bob, text(CHAT_MESSAGE_SIZE)));
+        case GET_PENDING_MESSAGES:
+            return new GetPendingMessages(1, 12345, 100);
+        case GET_PENDING_MESSAGES_RESPONSE:
+            List<MessageInfo> msgs = new ArrayList<>(PENDING_MESSAGES);
+            for (int i = 0; i < PENDING_MESSAGES; i++) {
+                msgs.add(new MessageInfo(new UserName("sender" + (i % 10)), null, text(100)));
+            }
+            return new GetPendingMessagesResponse(1, msgs, 12345, true);
+        case SHUTDOWN_SERVER:
+            return new ShutdownServerRequest(1);
+        case OK:
+            return new OkResponse(1);
+        case ERROR:
+            return new ErrorResponse(1, ErrorResponse.Code.BAD_REQUEST, "contact does not exist: Bob");
+        case PRESENCE:
+            return new PresenceCmd(1, Arrays.asList(alice, bob), Arrays.asList(new UserName("Charlie")));
+        case ROOM_CREATE:
+            return new RoomCreateCmd(1, "netty");
+        case ROOM_JOIN:
+            return new RoomJoinCmd(1, "netty");
+        case ROOM_LEAVE:
+            return new RoomLeaveCmd(1, "netty");
+        case ROOM_POST:
+            return new RoomPostCmd(1, "netty", alice, text(CHAT_MESSAGE_SIZE));
+        case DELIVERY_ACK:
+            return new DeliveryAckCmd(1);
+        case DELIVERY_RECEIPT:
+            return new DeliveryReceiptCmd(1, bob);
+        default:
+            throw new IllegalArgumentException("no sample command for type: " + aType);
+        }
+    }
+
+    private static String text(int aLength) {
+        StringBuilder builder = new StringBuilder(aLength);
+        while (builder.length() < aLength) {
+            builder.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit. ");
+        }
+        builder.setLength(aLength);
+        return builder.toString();
+    }
+}
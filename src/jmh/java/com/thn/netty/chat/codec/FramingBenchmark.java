@@ -0,0 +1,98 @@
+package com.thn.netty.chat.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.thn.netty.chat.primitive.ChatMessageCmd;
+import com.thn.netty.chat.primitive.MessageInfo;
+import com.thn.netty.chat.primitive.UserName;
+
+/**
+ * Inbound decoding of a stream of chat messages by the fused {@link CommandCodec} framing compared to the former two
+ * stage pipeline (a {@link LengthFieldBasedFrameDecoder} in front of the {@link CommandCodec}). The stream is
+ * written in reads of <code>mReadSize</code> bytes, so that the frames are split and coalesced as on a socket.
+ * @author Thierry Herrmann
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+    private static final int MESSAGES = 100;
+
+    @Param({"64", "1024", "16384"})
+    public int mReadSize;
+
+    @Param({"16", "1024"})
+    public int mMessageSize;
+
+    private ByteBuf mStream;
+    private EmbeddedChannel mFused;
+    private EmbeddedChannel mTwoStage;
+
+    @Setup
+    public void setUp() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < mMessageSize; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        mStream = Unpooled.buffer();
+        for (int i = 0; i < MESSAGES; i++) {
+            MessageInfo info = new MessageInfo(new UserName("Alice"), new UserName("Bob"), text.toString());
+            new CommandCodec().encode(null, new ChatMessageCmd(i, info), mStream);
+        }
+        mFused = new EmbeddedChannel(new CommandCodec());
+        mTwoStage = new EmbeddedChannel(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 1, 4, 0, 0),
+                                        new CommandCodec());
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFused.finish();
+        mTwoStage.finish();
+        mStream.release();
+    }
+
+    @Benchmark
+    public int fused() {
+        return decode(mFused);
+    }
+
+    @Benchmark
+    public int twoStage() {
+        return decode(mTwoStage);
+    }
+
+    private int decode(EmbeddedChannel aChannel) {
+        int length = mStream.readableBytes();
+        for (int pos = 0; pos < length; pos += mReadSize) {
+            // each read shares the bytes of the stream, released by the decoder
+            aChannel.writeInbound(mStream.slice(pos, Math.min(mReadSize, length - pos)).retain());
+        }
+        int count = aChannel.inboundMessages().size();
+        aChannel.inboundMessages().clear();
+        if (count != MESSAGES) {
+            throw new IllegalStateException("decoded " + count + " messages");
+        }
+        return count;
+    }
+}
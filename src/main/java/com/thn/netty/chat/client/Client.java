@@ -5,9 +5,8 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInitializer;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
 import java.net.InetSocketAddress;
 import java.util.concurrent.ExecutorService;
@@ -18,21 +17,14 @@ import org.apache.log4j.Logger;
 
 import com.thn.netty.chat.client.CommandReader.BadCommandException;
 import com.thn.netty.chat.codec.CommandCodec;
-import com.thn.netty.chat.primitive.AddContactInviteCmd;
-import com.thn.netty.chat.primitive.AddContactResponseCmd;
-import com.thn.netty.chat.primitive.ChatMessageCmd;
 import com.thn.netty.chat.primitive.Command;
-import com.thn.netty.chat.primitive.CreateAccountRequest;
-import com.thn.netty.chat.primitive.ExitRequest;
-import com.thn.netty.chat.primitive.GetContactOfUsers;
+import com.thn.netty.chat.primitive.CommandRegistry;
+import com.thn.netty.chat.primitive.CommandType;
 import com.thn.netty.chat.primitive.GetContactOfUsersResponse;
 import com.thn.netty.chat.primitive.GetPendingMessages;
 import com.thn.netty.chat.primitive.GetPendingMessagesResponse;
-import com.thn.netty.chat.primitive.LoginRequest;
-import com.thn.netty.chat.primitive.LogoutRequest;
-import com.thn.netty.chat.primitive.RemoveContactCmd;
-import com.thn.netty.chat.primitive.ShutdownServerRequest;
 import com.thn.netty.chat.util.DefaultIdGenerator;
+import com.thn.netty.chat.util.Transport;
 
 /**
  * Main chat client.
@@ -40,25 +32,32 @@ import com.thn.netty.chat.util.DefaultIdGenerator;
  */
 public class Client {
     private static final Logger LOGGER = Logger.getLogger(Client.class.getName());
+    // compress the large frames in both directions
+    static final boolean COMPRESSION = Boolean.getBoolean("chat.compression");
     private final ExecutorService mScheduler = Executors.newCachedThreadPool();
     private final CommandReader mCmdReader;
     
     private MessageHandler mMessageHandler = new MessageHandler();
     private Bootstrap mBootstrap = new Bootstrap();
-    private NioEventLoopGroup mEventLoopGroup;
+    private EventLoopGroup mEventLoopGroup;
     private Channel mChannel;  
     
     Client(CommandReader aCmdReader) {
         ChannelInitializer<Channel> initializer = new ChannelInitializer<Channel>() {
             @Override
             protected void initChannel(Channel aCh) throws Exception {
-                aCh.pipeline().addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 1, 4, 0, 0)); // inbound
-                aCh.pipeline().addLast(new CommandCodec());                 // inbound / outbound
+                CommandCodec codec = new CommandCodec();
+                if (COMPRESSION) {
+                    codec.enableCompression();
+                }
+                aCh.pipeline().addLast(codec);                              // inbound / outbound
                 aCh.pipeline().addLast(mMessageHandler);            // inbound
             }
         };
-        mEventLoopGroup = new NioEventLoopGroup();
-        mBootstrap.group(mEventLoopGroup).channel(NioSocketChannel.class).handler(initializer);
+        Transport transport = Transport.get();
+        mEventLoopGroup = transport.newEventLoopGroup(0, new DefaultThreadFactory("chat-client-io"));
+        mBootstrap.group(mEventLoopGroup).handler(initializer);
+        transport.configure(mBootstrap);
         
         mCmdReader = aCmdReader;
     }
@@ -120,28 +119,9 @@ public class Client {
                         if (cmd == null) {
                             return; // exit loop. Should happen in test mode only.
                         }
-                        if (cmd instanceof LoginRequest) {
-                            sendCommand(cmd, mDefaultListener);
-                        } else if (cmd instanceof LogoutRequest) {
-                            sendCommand(cmd, mDefaultListener);
-                        } else if (cmd instanceof ExitRequest) {
-                            sendCommand(cmd, null); // no need for listener
-                        } else if (cmd instanceof CreateAccountRequest) {
-                            sendCommand(cmd, mDefaultListener);
-                        } else if (cmd instanceof AddContactInviteCmd) {
-                            sendCommand(cmd, mDefaultListener);
-                        } else if (cmd instanceof AddContactResponseCmd) {
-                            sendCommand(cmd, mDefaultListener);
-                        } else if (cmd instanceof RemoveContactCmd) {
-                            sendCommand(cmd, mDefaultListener);
-                        } else if (cmd instanceof GetContactOfUsers) {
-                            sendCommand(cmd, new PendingInvitesListener());
-                        } else if (cmd instanceof ChatMessageCmd) {
-                            sendCommand(cmd, mDefaultListener);
-                        } else if (cmd instanceof GetPendingMessages) {
-                            sendCommand(cmd, new PendingMsgListener());
-                        } else if (cmd instanceof ShutdownServerRequest) {
-                            sendCommand(cmd, mDefaultListener);
+                        CommandRegistry.Entry<ResponseListener> entry = mRequests.get(cmd.getType());
+                        if (entry != null) {
+                            sendCommand(cmd, entry.getHandler());
                         } else {
                             getCmdFailed = true;
                             LOGGER.error("unknown command: " + cmd); // programming error. Stop here.
@@ -187,11 +167,35 @@ public class Client {
         @Override
         public void onResponse(Command aResponse) {
             GetPendingMessagesResponse response = (GetPendingMessagesResponse) aResponse;
+            if (response.getMessages().isEmpty()) {
+                System.out.println("No more pending messages");
+                mainLoop();
+                return;
+            }
             System.out.println("New messages: " + response.getMessages());
-            mainLoop();
+            // acknowledge the page so that the server deletes it, and get the next one
+            sendCommand(new GetPendingMessages(DefaultIdGenerator.getInstance().nextId(), 
+                                               response.getContinuationToken(), 0), this);
         }
     }
     private DefaultListener mDefaultListener = new DefaultListener();
+    // listener of the response of each request type
+    private final CommandRegistry<ResponseListener> mRequests = new CommandRegistry<ResponseListener>()
+        .register(CommandType.LOGIN, mDefaultListener, false)
+        .register(CommandType.LOGOUT, mDefaultListener, false)
+        .register(CommandType.EXIT, null, false) // no need for listener
+        .register(CommandType.CREATE_ACCOUNT, mDefaultListener, false)
+        .register(CommandType.ADD_CONTACT_INVITE, mDefaultListener, false)
+        .register(CommandType.ADD_CONTACT_RESPONSE, mDefaultListener, false)
+        .register(CommandType.REMOVE_CONTACT, mDefaultListener, false)
+        .register(CommandType.GET_CONTACT_OF_USERS, new PendingInvitesListener(), false)
+        .register(CommandType.MESSAGE, mDefaultListener, false)
+        .register(CommandType.GET_PENDING_MESSAGES, new PendingMsgListener(), false)
+        .register(CommandType.ROOM_CREATE, mDefaultListener, false)
+        .register(CommandType.ROOM_JOIN, mDefaultListener, false)
+        .register(CommandType.ROOM_LEAVE, mDefaultListener, false)
+        .register(CommandType.ROOM_POST, mDefaultListener, false)
+        .register(CommandType.SHUTDOWN_SERVER, mDefaultListener, false);
     
     private void sendCommand(Command aCommand, ResponseListener aListener) {
         mMessageHandler.sendCommand(aCommand, aListener);
@@ -19,6 +19,10 @@ import com.thn.netty.chat.primitive.LoginRequest;
 import com.thn.netty.chat.primitive.LogoutRequest;
 import com.thn.netty.chat.primitive.MessageInfo;
 import com.thn.netty.chat.primitive.RemoveContactCmd;
+import com.thn.netty.chat.primitive.RoomCreateCmd;
+import com.thn.netty.chat.primitive.RoomJoinCmd;
+import com.thn.netty.chat.primitive.RoomLeaveCmd;
+import com.thn.netty.chat.primitive.RoomPostCmd;
 import com.thn.netty.chat.primitive.ShutdownServerRequest;
 import com.thn.netty.chat.primitive.UserName;
 import com.thn.netty.chat.user.ContactState;
@@ -76,7 +80,7 @@ public class ConsoleReader implements CommandReader {
         });
         mFactories.add(new CommandFactory("Login", new String[] {"username", "password"}) {
             @Override public Command createCommand(String[] aArgs) {
-                return new LoginRequest(mIdGen.nextId(), new UserName(aArgs[0]), aArgs[1]);
+                return new LoginRequest(mIdGen.nextId(), new UserName(aArgs[0]), aArgs[1], Client.COMPRESSION);
             }
         });
         mFactories.add(new CommandFactory("Logout", new String[0]) {
@@ -115,6 +119,26 @@ public class ConsoleReader implements CommandReader {
                 return new GetPendingMessages(mIdGen.nextId());
             }
         });
+        mFactories.add(new CommandFactory("Create Room", new String[] {"room"}) {
+            @Override public Command createCommand(String[] aArgs) {
+                return new RoomCreateCmd(mIdGen.nextId(), aArgs[0]);
+            }
+        });
+        mFactories.add(new CommandFactory("Join Room", new String[] {"room"}) {
+            @Override public Command createCommand(String[] aArgs) {
+                return new RoomJoinCmd(mIdGen.nextId(), aArgs[0]);
+            }
+        });
+        mFactories.add(new CommandFactory("Leave Room", new String[] {"room"}) {
+            @Override public Command createCommand(String[] aArgs) {
+                return new RoomLeaveCmd(mIdGen.nextId(), aArgs[0]);
+            }
+        });
+        mFactories.add(new CommandFactory("Room Message", new String[] {"room", "message"}) {
+            @Override public Command createCommand(String[] aArgs) {
+                return new RoomPostCmd(mIdGen.nextId(), aArgs[0], null, aArgs[1]);
+            }
+        });
         mFactories.add(new CommandFactory("Shutdown Server", new String[] {}) {
             @Override public Command createCommand(String[] aArgs) {
                 return new ShutdownServerRequest(mIdGen.nextId());
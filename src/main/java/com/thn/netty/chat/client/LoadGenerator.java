@@ -0,0 +1,336 @@
+package com.thn.netty.chat.client;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.thn.netty.chat.codec.CommandCodec;
+import com.thn.netty.chat.primitive.AddContactInviteCmd;
+import com.thn.netty.chat.primitive.AddContactResponseCmd;
+import com.thn.netty.chat.primitive.ChatMessageCmd;
+import com.thn.netty.chat.primitive.Command;
+import com.thn.netty.chat.primitive.CreateAccountRequest;
+import com.thn.netty.chat.primitive.DeliveryReceiptCmd;
+import com.thn.netty.chat.primitive.ErrorResponse;
+import com.thn.netty.chat.primitive.LoginRequest;
+import com.thn.netty.chat.primitive.MessageInfo;
+import com.thn.netty.chat.primitive.OkResponse;
+import com.thn.netty.chat.primitive.UserName;
+import com.thn.netty.chat.util.DefaultIdGenerator;
+import com.thn.netty.chat.util.IdGenerator;
+import com.thn.netty.chat.util.LatencyHistogram;
+import com.thn.netty.chat.util.Transport;
+
+/**
+ * Headless load generator. Opens many connections sharing a single {@link EventLoopGroup}, creates (if needed) and
+ * logs in a synthetic user on each one, then sends chat messages from each user to the next one at a target global
+ * rate. Prints the throughput every second and, at the end, the round trip latency percentiles measured from
+ * {@link MessageHandler#sendCommand(Command, ResponseListener)} to the matching {@link OkResponse}.
+ * <p>
+ * Messages are sent at the target rate whatever the response times (open loop), so that a slow server shows up as
+ * higher latencies and not as a lower offered load. Configured with the <code>chat.load.*</code> system properties
+ * (see the constants).
+ * @author Thierry Herrmann
+ */
+public class LoadGenerator {
+    private static final Logger LOGGER = Logger.getLogger(LoadGenerator.class.getName());
+
+    private static final String HOST = System.getProperty("chat.load.host", "127.0.0.1");
+    private static final int PORT = Integer.getInteger("chat.load.port", 8080);
+    private static final int CONNECTIONS = Integer.getInteger("chat.load.connections", 1000);
+    private static final int MESSAGES_PER_SECOND = Integer.getInteger("chat.load.messagesPerSecond", 10000);
+    private static final int DURATION_SECONDS = Integer.getInteger("chat.load.durationSeconds", 60);
+    private static final int MESSAGE_SIZE = Integer.getInteger("chat.load.messageSize", 100);
+    private static final int THREADS = Integer.getInteger("chat.load.threads", 0); // 0 for netty's default
+    private static final boolean COMPRESSION = Boolean.getBoolean("chat.load.compression");
+    private static final String USER_PREFIX = System.getProperty("chat.load.userPrefix", "load");
+    private static final long TIMEOUT_MILLIS = Long.getLong("chat.load.timeoutMillis", 30000);
+    private static final long LOGIN_TIMEOUT_SECONDS = 120;
+    private static final long TICK_MILLIS = 10;
+    private static final String PASSWORD = "loadpass";
+
+    private final IdGenerator mIdGen = DefaultIdGenerator.getInstance();
+    private final Transport mTransport = Transport.get();
+    private final EventLoopGroup mEventLoopGroup = mTransport.newEventLoopGroup(THREADS, 
+                                                                                new DefaultThreadFactory("chat-load"));
+    private final Bootstrap mBootstrap = new Bootstrap();
+    private final List<Session> mSessions = new ArrayList<>(CONNECTIONS);
+    private final List<Session> mReadySessions = new CopyOnWriteArrayList<>();
+    private final CountDownLatch mLoginsDone = new CountDownLatch(CONNECTIONS);
+    private final String mText;
+
+    private final LatencyHistogram mLatencies = new LatencyHistogram();
+    private final CommandCodec.Metrics mFrameMetrics = new CommandCodec.Metrics();
+    private final AtomicLong mLoginFailures = new AtomicLong();
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mOk = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mTimeouts = new AtomicLong();
+    private final AtomicLong mReceived = new AtomicLong();
+    private final AtomicLong mReceipts = new AtomicLong();
+
+    private LoadGenerator() {
+        mBootstrap.group(mEventLoopGroup);
+        mTransport.configure(mBootstrap);
+        StringBuilder text = new StringBuilder(MESSAGE_SIZE);
+        while (text.length() < MESSAGE_SIZE) {
+            text.append("load test message ");
+        }
+        text.setLength(MESSAGE_SIZE);
+        mText = text.toString();
+    }
+
+    private void run() throws InterruptedException {
+        System.out.println("Connecting " + CONNECTIONS + " users to " + HOST + ":" + PORT + " (" + mTransport 
+                           + " transport)");
+        for (int i = 0; i < CONNECTIONS; i++) {
+            Session session = new Session(new UserName(USER_PREFIX + i),
+                                          new UserName(USER_PREFIX + ((i + 1) % CONNECTIONS)));
+            mSessions.add(session);
+            connect(session);
+        }
+        if (!mLoginsDone.await(LOGIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            System.out.println("Some users are still not logged in after " + LOGIN_TIMEOUT_SECONDS + " s");
+        }
+        System.out.println(mReadySessions.size() + " users logged in, " + mLoginFailures.get() + " failed");
+        if (!mReadySessions.isEmpty()) {
+            sendMessages();
+            report();
+        }
+        for (Session session : mSessions) {
+            session.close();
+        }
+        mEventLoopGroup.shutdownGracefully().sync();
+    }
+
+    private void connect(final Session aSession) {
+        ChannelInitializer<Channel> initializer = new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel aCh) throws Exception {
+                CommandCodec codec = new CommandCodec(mFrameMetrics, false);
+                if (COMPRESSION) {
+                    codec.enableCompression();
+                }
+                aCh.pipeline().addLast(codec);                              // inbound / outbound
+                aCh.pipeline().addLast(aSession);                           // inbound
+            }
+        };
+        ChannelFuture future = mBootstrap.clone().handler(initializer).connect(new InetSocketAddress(HOST, PORT));
+        future.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture aFuture) throws Exception {
+                if (aFuture.isSuccess()) {
+                    aSession.createAccount();
+                } else {
+                    LOGGER.warn("Connection attempt failed", aFuture.cause());
+                    aSession.loginFailed();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends the messages at the target rate, round robin on the logged in users, and prints the progress every
+     * second.
+     */
+    private void sendMessages() throws InterruptedException {
+        System.out.println("Sending " + MESSAGES_PER_SECOND + " msg/s for " + DURATION_SECONDS + " s");
+        List<Session> sessions = new ArrayList<>(mReadySessions);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long lastOk = 0;
+        long sent = 0;
+        int next = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            long due = (now - start) * MESSAGES_PER_SECOND / TimeUnit.SECONDS.toNanos(1);
+            for (; sent < due; sent++) {
+                sessions.get(next).sendMessage();
+                next = (next + 1) % sessions.size();
+            }
+            if (now >= nextReport) {
+                long ok = mOk.get();
+                System.out.println("sent: " + mSent.get() + ", ok/s: " + (ok - lastOk) + ", errors: " + mErrors.get()
+                                   + ", timeouts: " + mTimeouts.get() + ", received: " + mReceived.get()
+                                   + ", p99 (us): " + mLatencies.getPercentile(99));
+                lastOk = ok;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+            Thread.sleep(TICK_MILLIS);
+        }
+        // wait for the responses still in flight
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (mOk.get() + mErrors.get() + mTimeouts.get() < mSent.get() && System.nanoTime() < deadline) {
+            Thread.sleep(TICK_MILLIS);
+        }
+    }
+
+    private void report() {
+        System.out.println("Messages sent: " + mSent.get() + ", ok: " + mOk.get() + ", errors: " + mErrors.get()
+                           + ", timeouts: " + mTimeouts.get() + ", notifications received: " + mReceived.get()
+                           + ", delivery receipts: " + mReceipts.get() + ", frames rejected: "
+                           + mFrameMetrics.getRejectedCount());
+        if (COMPRESSION) {
+            System.out.println("Compression: " + mFrameMetrics);
+        }
+        System.out.println("Throughput (ok/s): " + mOk.get() / DURATION_SECONDS);
+        System.out.println("Round trip latency (us): p50=" + mLatencies.getPercentile(50)
+                           + " p99=" + mLatencies.getPercentile(99) + " p999=" + mLatencies.getPercentile(99.9)
+                           + " max=" + mLatencies.getMax());
+    }
+
+    /**
+     * Connection of a synthetic user. Counts the notifications instead of printing them.
+     */
+    private class Session extends MessageHandler {
+        private final UserName mName;
+        private final UserName mRecipient;
+        private volatile Channel mChannel;
+
+        Session(UserName aName, UserName aRecipient) {
+            mName = aName;
+            mRecipient = aRecipient;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext aCtx) throws Exception {
+            mChannel = aCtx.channel();
+            super.channelActive(aCtx);
+        }
+
+        void createAccount() {
+            sendCommand(new CreateAccountRequest(mIdGen.nextId(), mName, PASSWORD), new SetupListener() {
+                @Override
+                public void onResponse(Command aResponse) {
+                    if (aResponse instanceof OkResponse || (aResponse instanceof ErrorResponse
+                            && ((ErrorResponse) aResponse).getCode() == ErrorResponse.Code.USER_ALREADY_EXISTS)) {
+                        login();
+                    } else {
+                        LOGGER.warn("account creation failed for " + mName.getName() + ": " + aResponse);
+                        loginFailed();
+                    }
+                }
+            });
+        }
+
+        void login() {
+            sendCommand(new LoginRequest(mIdGen.nextId(), mName, PASSWORD, COMPRESSION), new SetupListener() {
+                @Override
+                public void onResponse(Command aResponse) {
+                    if (aResponse instanceof OkResponse) {
+                        mReadySessions.add(Session.this);
+                        mLoginsDone.countDown();
+                    } else {
+                        LOGGER.warn("login failed for " + mName.getName() + ": " + aResponse);
+                        loginFailed();
+                    }
+                }
+            });
+        }
+
+        void loginFailed() {
+            mLoginFailures.incrementAndGet();
+            mLoginsDone.countDown();
+        }
+
+        void sendMessage() {
+            mSent.incrementAndGet();
+            sendCommand(new ChatMessageCmd(mIdGen.nextId(), new MessageInfo(null, mRecipient, mText)),
+                        new MessageListener(System.nanoTime()));
+        }
+
+        void close() {
+            Channel channel = mChannel;
+            if (channel != null) {
+                channel.close();
+            }
+        }
+
+        @Override
+        protected void processChatMsgNotif(ChannelHandlerContext aCtx, ChatMessageCmd aCmd) {
+            mReceived.incrementAndGet();
+        }
+
+        @Override
+        protected void processDeliveryReceiptNotif(ChannelHandlerContext aCtx, DeliveryReceiptCmd aCmd) {
+            mReceipts.incrementAndGet();
+        }
+
+        @Override
+        protected void processAddContactInviteNotif(ChannelHandlerContext aCtx, AddContactInviteCmd aCmd) {
+            // not used by the load test
+        }
+
+        @Override
+        protected void processAddContactResponseNotif(ChannelHandlerContext aCtx, AddContactResponseCmd aCmd) {
+            // not used by the load test
+        }
+
+        private abstract class SetupListener implements ResponseListener {
+            @Override
+            public long getTimeoutMillis() {
+                return TIMEOUT_MILLIS;
+            }
+
+            @Override
+            public void onTimeout(Command aRequest) {
+                LOGGER.warn("timeout for " + mName.getName() + ": " + aRequest);
+                loginFailed();
+            }
+        }
+    }
+
+    private class MessageListener implements ResponseListener {
+        private final long mStartNanos;
+
+        MessageListener(long aStartNanos) {
+            mStartNanos = aStartNanos;
+        }
+
+        @Override
+        public void onResponse(Command aResponse) {
+            if (aResponse instanceof OkResponse) {
+                mLatencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - mStartNanos));
+                mOk.incrementAndGet();
+            } else {
+                mErrors.incrementAndGet();
+            }
+        }
+
+        @Override
+        public long getTimeoutMillis() {
+            return TIMEOUT_MILLIS;
+        }
+
+        @Override
+        public void onTimeout(Command aRequest) {
+            mTimeouts.incrementAndGet();
+        }
+    }
+
+    /**
+     * Main method. The load is configured with system properties, e.g.
+     * <code>-Dchat.load.connections=5000 -Dchat.load.messagesPerSecond=20000</code>.
+     * @param aArgs arguments. Not used.
+     * @throws InterruptedException if interrupted.
+     */
+    public static void main(String[] aArgs) throws InterruptedException {
+        new LoadGenerator().run();
+    }
+}
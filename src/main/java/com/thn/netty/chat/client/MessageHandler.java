@@ -6,8 +6,11 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -18,7 +21,14 @@ import com.thn.netty.chat.primitive.AddContactInviteCmd;
 import com.thn.netty.chat.primitive.AddContactResponseCmd;
 import com.thn.netty.chat.primitive.ChatMessageCmd;
 import com.thn.netty.chat.primitive.Command;
+import com.thn.netty.chat.primitive.CommandRegistry;
+import com.thn.netty.chat.primitive.CommandType;
+import com.thn.netty.chat.primitive.DeliveryAckCmd;
+import com.thn.netty.chat.primitive.DeliveryReceiptCmd;
 import com.thn.netty.chat.primitive.MessageInfo;
+import com.thn.netty.chat.primitive.PresenceCmd;
+import com.thn.netty.chat.primitive.RoomPostCmd;
+import com.thn.netty.chat.primitive.UserName;
 
 /**
  * Sends outbound commands to the server and handles inbound responses and
@@ -30,11 +40,20 @@ import com.thn.netty.chat.primitive.MessageInfo;
  */
 public class MessageHandler extends SimpleChannelInboundHandler<Command> {
     private static final Logger LOGGER = Logger.getLogger(MessageHandler.class.getName());
+    private static final int MAX_ACKED_NOTIFS = 1024;
 
     // no need for concurrent hashMap as netty guarantees a single thread is used for each connection
     private final Map<Integer,ResponseListener> mListeners = new HashMap<>();
     private Map<Integer,Future<?>> mTimeoutFutures = new ConcurrentHashMap<>();
     private ChannelHandlerContext mContext; // context to send outbound events in a thread-safe way
+    // ids of the last chat messages acknowledged, to ignore the ones delivered again. Only accessed by the NIO thread
+    private final Set<Integer> mAckedNotifIds = Collections.newSetFromMap(new LinkedHashMap<Integer, Boolean>() {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> aEldest) {
+            return size() > MAX_ACKED_NOTIFS;
+        }
+    });
     
     /**
      * Sends a command.
@@ -52,12 +71,14 @@ public class MessageHandler extends SimpleChannelInboundHandler<Command> {
                     setupTimeout(aCmd, aListener);
                 }
                 ChannelFuture future = mContext.writeAndFlush(aCmd); // thread-safe. Can be called from any thread.
-                future.addListener(new ChannelFutureListener() {
-                    @Override
-                    public void operationComplete(ChannelFuture aFuture) throws Exception {
-                        LOGGER.info("cmd sent: " + aCmd);
-                    }
-                });
+                if (LOGGER.isInfoEnabled()) {
+                    future.addListener(new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(ChannelFuture aFuture) throws Exception {
+                            LOGGER.info("cmd sent: " + aCmd);
+                        }
+                    });
+                }
             }
         });
     }
@@ -70,17 +91,14 @@ public class MessageHandler extends SimpleChannelInboundHandler<Command> {
 
     @Override
     protected void channelRead0(ChannelHandlerContext aCtx, Command aCmd) throws Exception {
-        LOGGER.info("msg received: " + aCmd);
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("msg received: " + aCmd);
+        }
 
         // first process notifications
-        if (aCmd instanceof AddContactInviteCmd) {
-            processAddContactInviteNotif(aCtx, (AddContactInviteCmd) aCmd);
-            return;
-        } else if (aCmd instanceof AddContactResponseCmd) {
-            processAddContactResponseNotif(aCtx, (AddContactResponseCmd) aCmd);
-            return;
-        } else if (aCmd instanceof ChatMessageCmd) {
-            processChatMsgNotif(aCtx, (ChatMessageCmd) aCmd);
+        CommandRegistry.Entry<NotifHandler> entry = NOTIF_HANDLERS.get(aCmd.getType());
+        if (entry != null) {
+            entry.getHandler().handle(this, aCtx, aCmd);
             return;
         }
         // TODO ThierryH 2014-01-02 process other notifs (NewMessage...)
@@ -96,6 +114,58 @@ public class MessageHandler extends SimpleChannelInboundHandler<Command> {
         // otherwise (not a notif), we have a late response. Ignore it.
     }
 
+    /**
+     * Processes a type of notification.
+     */
+    private interface NotifHandler {
+        void handle(MessageHandler aHandler, ChannelHandlerContext aCtx, Command aCmd);
+    }
+
+    private static final CommandRegistry<NotifHandler> NOTIF_HANDLERS = new CommandRegistry<>();
+    static {
+        NOTIF_HANDLERS.register(CommandType.ADD_CONTACT_INVITE, new NotifHandler() {
+            @Override
+            public void handle(MessageHandler aHandler, ChannelHandlerContext aCtx, Command aCmd) {
+                aHandler.processAddContactInviteNotif(aCtx, (AddContactInviteCmd) aCmd);
+            }
+        }, false);
+        NOTIF_HANDLERS.register(CommandType.ADD_CONTACT_RESPONSE, new NotifHandler() {
+            @Override
+            public void handle(MessageHandler aHandler, ChannelHandlerContext aCtx, Command aCmd) {
+                aHandler.processAddContactResponseNotif(aCtx, (AddContactResponseCmd) aCmd);
+            }
+        }, false);
+        NOTIF_HANDLERS.register(CommandType.MESSAGE, new NotifHandler() {
+            @Override
+            public void handle(MessageHandler aHandler, ChannelHandlerContext aCtx, Command aCmd) {
+                if (aHandler.mAckedNotifIds.add(aCmd.getId())) {
+                    aHandler.processChatMsgNotif(aCtx, (ChatMessageCmd) aCmd);
+                }
+                // acknowledge so that the server doesn't deliver it again. Again if delivered again: the previous
+                // acknowledgment was late or lost
+                aCtx.writeAndFlush(new DeliveryAckCmd(aCmd.getId()));
+            }
+        }, false);
+        NOTIF_HANDLERS.register(CommandType.DELIVERY_RECEIPT, new NotifHandler() {
+            @Override
+            public void handle(MessageHandler aHandler, ChannelHandlerContext aCtx, Command aCmd) {
+                aHandler.processDeliveryReceiptNotif(aCtx, (DeliveryReceiptCmd) aCmd);
+            }
+        }, false);
+        NOTIF_HANDLERS.register(CommandType.PRESENCE, new NotifHandler() {
+            @Override
+            public void handle(MessageHandler aHandler, ChannelHandlerContext aCtx, Command aCmd) {
+                aHandler.processPresenceNotif(aCtx, (PresenceCmd) aCmd);
+            }
+        }, false);
+        NOTIF_HANDLERS.register(CommandType.ROOM_POST, new NotifHandler() {
+            @Override
+            public void handle(MessageHandler aHandler, ChannelHandlerContext aCtx, Command aCmd) {
+                aHandler.processRoomPostNotif(aCtx, (RoomPostCmd) aCmd);
+            }
+        }, false);
+    }
+
     private void setupTimeout(final Command aCmd, final ResponseListener aListener) {
         Runnable runnable = new Runnable() {
             @Override
@@ -118,20 +188,37 @@ public class MessageHandler extends SimpleChannelInboundHandler<Command> {
         }
     }
 
-    private void processAddContactInviteNotif(ChannelHandlerContext aCtx, AddContactInviteCmd aCmd) {
+    protected void processAddContactInviteNotif(ChannelHandlerContext aCtx, AddContactInviteCmd aCmd) {
         System.out.println("Received contact request from " + aCmd.getUserName());
     }
     
-    private void processAddContactResponseNotif(ChannelHandlerContext aCtx, AddContactResponseCmd aCmd) {
+    protected void processAddContactResponseNotif(ChannelHandlerContext aCtx, AddContactResponseCmd aCmd) {
         System.out.println("Received contact response from " + aCmd.getContactName() +". Invitation accepted: " + 
                            aCmd.isAccepted());
     }
     
-    private void processChatMsgNotif(ChannelHandlerContext aCtx, ChatMessageCmd aCmd) {
+    protected void processChatMsgNotif(ChannelHandlerContext aCtx, ChatMessageCmd aCmd) {
         MessageInfo msgInfo = aCmd.getMessageInfo();
         System.out.println("Received message from " + msgInfo.getSender().getName() +": " + msgInfo.getMessage());
     }
     
+    protected void processDeliveryReceiptNotif(ChannelHandlerContext aCtx, DeliveryReceiptCmd aCmd) {
+        System.out.println("Message " + aCmd.getId() + " delivered to " + aCmd.getRecipient().getName());
+    }
+    
+    protected void processPresenceNotif(ChannelHandlerContext aCtx, PresenceCmd aCmd) {
+        for (UserName contact : aCmd.getOnline()) {
+            System.out.println("Contact " + contact.getName() + " is online");
+        }
+        for (UserName contact : aCmd.getOffline()) {
+            System.out.println("Contact " + contact.getName() + " is offline");
+        }
+    }
+    
+    protected void processRoomPostNotif(ChannelHandlerContext aCtx, RoomPostCmd aCmd) {
+        System.out.println("[" + aCmd.getRoomName() + "] " + aCmd.getSender().getName() + ": " + aCmd.getMessage());
+    }
+    
     @Override
     public void handlerAdded(ChannelHandlerContext aCtx) throws Exception {
         super.handlerAdded(aCtx);
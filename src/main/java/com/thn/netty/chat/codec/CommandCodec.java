@@ -1,11 +1,19 @@
 package com.thn.netty.chat.codec;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageCodec;
 
-import java.util.EnumMap;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
 
 import org.apache.log4j.Logger;
 
@@ -14,36 +22,222 @@ import com.thn.netty.chat.primitive.CommandType;
 
 /**
  * {@link ByteToMessageCodec} implementation to encode/decode commands. Knows the relationship between the
- * command types and the {@link DelegateCodec} implementation and calls the right delegate.
+ * command types and the {@link DelegateCodec} implementation and calls the right delegate, found by indexing an array
+ * with the command type id. The delegates of the commands of this package are generated from their
+ * {@link com.thn.netty.chat.primitive.Wire} constructor; other ones can be registered.</p>
+ * A frame is the command type id, the record length and the record. The decoder does the framing itself: it waits in
+ * its cumulation buffer for the whole frame and decodes the record in place, without a separate frame decoder and
+ * its copy of the bytes.</p>
+ * The frame length is checked against the budget of its command type as soon as its header is received, before
+ * anything is buffered: a peer announcing a frame too long is disconnected and the rest of its bytes are discarded.
+ * The budgets are 4 MB for the lists (pending messages, contacts, presence), 8 KB for the chat and room messages and
+ * 4 KB for the other commands (<code>chat.codec.maxFrameLength</code> system property). Each one can be overridden
+ * by the <code>chat.codec.maxFrameLength.&lt;type&gt;</code> system property, e.g.
+ * <code>chat.codec.maxFrameLength.MESSAGE</code>. The lists are only sent by the server: on the server side, they
+ * get the budget of the other commands, so that a client can't make the server buffer megabytes.</p>
+ * Once compression is enabled on a codec, the frames it encodes larger than <code>chat.compression.threshold</code>
+ * bytes (1 KB) are deflated, each one on its own, if it makes them smaller. A compressed frame has the high bit of the
+ * command type id set, the compressed length, the length of the record once decompressed (checked against the budget
+ * of the command type before decompressing) and the deflated record. Every codec decodes the compressed frames;
+ * the server compresses the frames of a connection when the client asked for it at login.
  * @author Thierry Herrmann
  */
 public class CommandCodec extends ByteToMessageCodec<Command> {
     private static final Logger LOGGER = Logger.getLogger(CommandCodec.class.getName());
+    // command type id, record length
+    private static final int FRAME_HEADER_SIZE = 1 + 4;
+    // budget of the requests and small responses, and of the unknown command types
+    private static final int MAX_FRAME_LENGTH = Integer.getInteger("chat.codec.maxFrameLength", 4 * 1024);
+    // a chat message text has at most 1024 characters, i.e. 3 KB in UTF-8
+    private static final int MAX_MESSAGE_FRAME_LENGTH = 8 * 1024;
+    private static final int MAX_LIST_FRAME_LENGTH = 4 * 1024 * 1024;
+    // high bit of the command type id of a compressed frame
+    private static final int COMPRESSED_FLAG = 0x80;
+    // frames up to this length aren't compressed (0 to never compress)
+    private static final int COMPRESSION_THRESHOLD = Integer.getInteger("chat.compression.threshold", 1024);
     
-    private static final EnumMap<CommandType, DelegateCodec> DELEGATES = new EnumMap<>(CommandType.class);
+    private static final DelegateCodec[] DELEGATES = new DelegateCodec[CommandType.count()];
+    // budgets of the frames received by the client and by the server
+    private static final int[] CLIENT_MAX_FRAME_LENGTHS = new int[CommandType.count()];
+    private static final int[] SERVER_MAX_FRAME_LENGTHS = new int[CommandType.count()];
     static {
-       DELEGATES.put(CommandType.CREATE_ACCOUNT, new CreateAccountRequestCodec());
-       DELEGATES.put(CommandType.CHANGE_PASSWORD, new ChangePasswordRequestCodec());
-       DELEGATES.put(CommandType.LOGOUT, new LogoutRequestCodec());
-       DELEGATES.put(CommandType.EXIT, new ExitRequestCodec());
-       DELEGATES.put(CommandType.LOGIN, new LoginRequestCodec());
-       DELEGATES.put(CommandType.ADD_CONTACT_INVITE, new AddContactInviteCodec());
-       DELEGATES.put(CommandType.ADD_CONTACT_RESPONSE, new AddContactResponseCodec());
-       DELEGATES.put(CommandType.REMOVE_CONTACT, new RemoveContactCodec());
-       DELEGATES.put(CommandType.GET_CONTACT_OF_USERS, new GetContactOfUsersCodec());
-       DELEGATES.put(CommandType.GET_CONTACT_OF_USERS_RESPONSE, new GetContactOfUsersResponseCodec());
-       DELEGATES.put(CommandType.MESSAGE, new ChatMessageCodec());
-       DELEGATES.put(CommandType.GET_PENDING_MESSAGES, new GetPendingMessagesCodec());
-       DELEGATES.put(CommandType.GET_PENDING_MESSAGES_RESPONSE, new GetPendingMessagesResponseCodec());
-       DELEGATES.put(CommandType.SHUTDOWN_SERVER, new ShutdownRequestCodec());
-       DELEGATES.put(CommandType.OK, new OkResponseCodec());
-       DELEGATES.put(CommandType.ERROR, new ErrorResponseCodec());
+       for (CommandType type : CommandType.values()) {
+           int maxFrameLength = Integer.getInteger("chat.codec.maxFrameLength." + type.name(), 
+                                                   defaultMaxFrameLength(type));
+           CLIENT_MAX_FRAME_LENGTHS[type.id()] = maxFrameLength;
+           SERVER_MAX_FRAME_LENGTHS[type.id()] = isSentByServerOnly(type) ? MAX_FRAME_LENGTH : maxFrameLength;
+       }
+       register(CommandType.CREATE_ACCOUNT, new CreateAccountRequestWire());
+       register(CommandType.CHANGE_PASSWORD, new ChangePasswordRequestWire());
+       register(CommandType.LOGOUT, new LogoutRequestWire());
+       register(CommandType.EXIT, new ExitRequestWire());
+       register(CommandType.LOGIN, new LoginRequestWire());
+       register(CommandType.ADD_CONTACT_INVITE, new AddContactInviteCmdWire());
+       register(CommandType.ADD_CONTACT_RESPONSE, new AddContactResponseCmdWire());
+       register(CommandType.REMOVE_CONTACT, new RemoveContactCmdWire());
+       register(CommandType.GET_CONTACT_OF_USERS, new GetContactOfUsersWire());
+       register(CommandType.GET_CONTACT_OF_USERS_RESPONSE, new GetContactOfUsersResponseWire());
+       register(CommandType.MESSAGE, new ChatMessageCmdWire());
+       register(CommandType.GET_PENDING_MESSAGES, new GetPendingMessagesWire());
+       register(CommandType.GET_PENDING_MESSAGES_RESPONSE, new GetPendingMessagesResponseWire());
+       register(CommandType.SHUTDOWN_SERVER, new ShutdownServerRequestWire());
+       register(CommandType.OK, new OkResponseWire());
+       register(CommandType.ERROR, new ErrorResponseWire());
+       register(CommandType.PRESENCE, new PresenceCmdWire());
+       register(CommandType.ROOM_CREATE, new RoomCreateCmdWire());
+       register(CommandType.ROOM_JOIN, new RoomJoinCmdWire());
+       register(CommandType.ROOM_LEAVE, new RoomLeaveCmdWire());
+       register(CommandType.ROOM_POST, new RoomPostCmdWire());
+       register(CommandType.DELIVERY_ACK, new DeliveryAckCmdWire());
+       register(CommandType.DELIVERY_RECEIPT, new DeliveryReceiptCmdWire());
+    }
+
+    private final Metrics mMetrics;
+    private final int[] mMaxFrameLengths;
+    private boolean mDiscarding; // frame too long received: discard everything until the connection is closed
+    private volatile int mCompressionThreshold; // 0 while compression is not enabled
+
+    /**
+     * Constructor of a client side codec.
+     */
+    public CommandCodec() {
+        this(new Metrics(), false);
+    }
+
+    /**
+     * Constructor.
+     * @param aMetrics metrics, usually shared by all the connections.
+     * @param aServer true for the codec of the server, decoding the commands sent by the clients.
+     */
+    public CommandCodec(Metrics aMetrics, boolean aServer) {
+        mMetrics = aMetrics;
+        mMaxFrameLengths = aServer ? SERVER_MAX_FRAME_LENGTHS : CLIENT_MAX_FRAME_LENGTHS;
+    }
+
+    private static boolean isSentByServerOnly(CommandType aType) {
+        return defaultMaxFrameLength(aType) == MAX_LIST_FRAME_LENGTH;
+    }
+
+    private static int defaultMaxFrameLength(CommandType aType) {
+        switch (aType) {
+        case GET_PENDING_MESSAGES_RESPONSE:
+        case GET_CONTACT_OF_USERS_RESPONSE:
+        case PRESENCE:
+            return MAX_LIST_FRAME_LENGTH; // sent by the server only
+        case MESSAGE:
+        case ROOM_POST:
+            return MAX_MESSAGE_FRAME_LENGTH;
+        default:
+            return MAX_FRAME_LENGTH;
+        }
+    }
+
+    /**
+     * Enables the compression of the frames encoded by this codec larger than the compression threshold. Does
+     * nothing if the threshold is 0.
+     */
+    public void enableCompression() {
+        mCompressionThreshold = COMPRESSION_THRESHOLD;
+    }
+
+    /**
+     * Tells if the frames encoded by this codec are compressed.
+     * @return true if compression is enabled.
+     */
+    public boolean isCompressionEnabled() {
+        return mCompressionThreshold > 0;
+    }
+
+    /**
+     * Registers the codec of a command type.
+     * @param aType command type.
+     * @param aCodec codec of the commands of this type.
+     * @throws IllegalStateException if the command type already has a codec.
+     */
+    public static synchronized void register(CommandType aType, DelegateCodec aCodec) {
+        if (DELEGATES[aType.id()] != null) {
+            throw new IllegalStateException("codec already registered for command type: " + aType);
+        }
+        DELEGATES[aType.id()] = aCodec;
+    }
+
+    /**
+     * Returns the command types having a {@link DelegateCodec}. Used by the benchmarks to cover all the codecs.
+     * @return the command types.
+     */
+    static Set<CommandType> getRegisteredTypes() {
+        Set<CommandType> types = EnumSet.noneOf(CommandType.class);
+        for (CommandType type : CommandType.values()) {
+            if (DELEGATES[type.id()] != null) {
+                types.add(type);
+            }
+        }
+        return Collections.unmodifiableSet(types);
     }
+
+    /**
+     * Encodes a command outside of a pipeline, e.g. to encode once a notification written to many connections. The
+     * resulting buffer goes through the {@link CommandCodec} of the pipelines unchanged.
+     * @param aAlloc allocator of the buffer.
+     * @param aMsg command.
+     * @return the encoded command. The caller is responsible to release it.
+     * @throws Exception if the command can't be encoded.
+     */
+    public static ByteBuf encode(ByteBufAllocator aAlloc, Command aMsg) throws Exception {
+        ByteBuf out = aAlloc.buffer();
+        try {
+            encode(null, aMsg, out, true);
+        } catch (Exception e) {
+            out.release();
+            throw e;
+        }
+        return out;
+    }
+
     @Override
     protected void encode(ChannelHandlerContext aCtx, Command aMsg, ByteBuf aOut) throws Exception {
+        int frameStart = aOut.writerIndex();
+        encode(aCtx, aMsg, aOut, false);
+        int compressionThreshold = mCompressionThreshold;
+        if (compressionThreshold > 0 && aOut.writerIndex() - frameStart > compressionThreshold) {
+            compress(aOut, frameStart);
+        }
+    }
+
+    /**
+     * Replaces the frame at the end of the buffer by its compressed form, unless it's not smaller.
+     */
+    private void compress(ByteBuf aOut, int aFrameStart) {
+        long start = System.nanoTime();
+        int recordStart = aFrameStart + 1;
+        int recordLength = aOut.writerIndex() - recordStart;
+        FrameCompressor compressor = FrameCompressor.get();
+        int compressedLength = compressor.deflate(aOut, recordStart, recordLength);
+        // the compressed frame also holds the uncompressed length
+        if (compressedLength < 0 || compressedLength + 4 >= recordLength) {
+            mMetrics.mIncompressibleCount.incrementAndGet();
+            mMetrics.mCompressNanos.addAndGet(System.nanoTime() - start);
+            return;
+        }
+        aOut.setByte(aFrameStart, aOut.getByte(aFrameStart) | COMPRESSED_FLAG);
+        aOut.writerIndex(recordStart);
+        aOut.writeInt(4 + compressedLength);
+        aOut.writeInt(recordLength);
+        aOut.writeBytes(compressor.getOutput(), 0, compressedLength);
+        mMetrics.mCompressedCount.incrementAndGet();
+        mMetrics.mCompressedBytesIn.addAndGet(1 + recordLength);
+        mMetrics.mCompressedBytesOut.addAndGet(aOut.writerIndex() - aFrameStart);
+        mMetrics.mCompressNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    private static void encode(ChannelHandlerContext aCtx, Command aMsg, ByteBuf aOut, boolean aStrict) 
+        throws Exception {
         CommandType cmdType = aMsg.getType();
-        DelegateCodec codec = DELEGATES.get(cmdType);
+        DelegateCodec codec = DELEGATES[cmdType.id()];
         if (codec == null) {
+            if (aStrict) {
+                throw new IllegalArgumentException("no codec for command type: " + cmdType);
+            }
             LOGGER.warn("no codec for command type: " + cmdType);
             return;
         }
@@ -51,25 +245,208 @@ public class CommandCodec extends ByteToMessageCodec<Command> {
         codec.encode(aCtx, aMsg, aOut);
     }
 
+    /**
+     * Returns the maximum length of the frames of a command type received by this codec.
+     * @param aType command type.
+     * @return the maximum length in bytes, header included.
+     */
+    public int getMaxFrameLength(CommandType aType) {
+        return mMaxFrameLengths[aType.id()];
+    }
+
     @Override
     protected void decode(ChannelHandlerContext aCtx, ByteBuf aIn, List<Object> aOut) throws Exception {
-        if (aIn.readableBytes() == 0) {
+        if (mDiscarding) {
+            aIn.skipBytes(aIn.readableBytes());
             return;
         }
-        byte cmdTypeInt = aIn.readByte();
-        CommandType cmdType;
-        try {
-            cmdType = CommandType.forId(cmdTypeInt);
-        } catch (IllegalArgumentException e) {
-            LOGGER.warn("unknown command type", e);
+        if (aIn.readableBytes() < FRAME_HEADER_SIZE) {
             return;
         }
-        DelegateCodec codec = DELEGATES.get(cmdType);
-        if (codec == null) {
-            LOGGER.warn("no codec for command type: " + cmdType);
+        int frameStart = aIn.readerIndex();
+        byte typeByte = aIn.getByte(frameStart);
+        boolean compressed = (typeByte & COMPRESSED_FLAG) != 0;
+        byte cmdTypeInt = (byte) (typeByte & ~COMPRESSED_FLAG);
+        boolean known = cmdTypeInt >= 0 && cmdTypeInt < DELEGATES.length;
+        long frameLength = FRAME_HEADER_SIZE + (aIn.getInt(frameStart + 1) & 0xffffffffL);
+        int maxFrameLength = known ? mMaxFrameLengths[cmdTypeInt] : MAX_FRAME_LENGTH;
+        if (frameLength > maxFrameLength) {
+            reject(aCtx, aIn, cmdTypeInt, frameLength, maxFrameLength);
             return;
         }
-        codec.decode(aCtx, aIn, aOut);
+        if (aIn.readableBytes() < frameLength) {
+            return; // wait for the rest of the frame
+        }
+        DelegateCodec codec = known ? DELEGATES[cmdTypeInt] : null;
+        if (codec == null) {
+            mMetrics.mUnknownCount.incrementAndGet();
+            LOGGER.warn("no codec for command type: " + (int) cmdTypeInt);
+        } else if (compressed) {
+            if (!decompress(aCtx, aIn, aOut, codec, cmdTypeInt, (int) frameLength, maxFrameLength)) {
+                return;
+            }
+        } else {
+            aIn.skipBytes(1);
+            codec.decode(aCtx, aIn, aOut);
+        }
+        aIn.readerIndex(frameStart + (int) frameLength);
+    }
+
+    /**
+     * Decodes the compressed frame at the reader index of the buffer. The length announced for the decompressed
+     * record is checked against the budget of the command type before decompressing anything.
+     * @return false if the frame was rejected.
+     */
+    private boolean decompress(ChannelHandlerContext aCtx, ByteBuf aIn, List<Object> aOut, DelegateCodec aCodec,
+                               byte aCmdTypeInt, int aFrameLength, int aMaxFrameLength) throws Exception {
+        int frameStart = aIn.readerIndex();
+        // uncompressed length, at least the record length
+        if (aFrameLength < FRAME_HEADER_SIZE + 4 + 1) {
+            reject(aCtx, aIn, aCmdTypeInt, aFrameLength, aMaxFrameLength);
+            return false;
+        }
+        long recordLength = aIn.getInt(frameStart + FRAME_HEADER_SIZE) & 0xffffffffL;
+        if (recordLength < 4 || 1 + recordLength > aMaxFrameLength) {
+            reject(aCtx, aIn, aCmdTypeInt, 1 + recordLength, aMaxFrameLength);
+            return false;
+        }
+        long start = System.nanoTime();
+        int compressedStart = frameStart + FRAME_HEADER_SIZE + 4;
+        ByteBuf record;
+        try {
+            record = FrameCompressor.get().inflate(aIn, compressedStart, frameStart + aFrameLength - compressedStart,
+                                                   (int) recordLength);
+        } catch (DataFormatException e) {
+            mMetrics.mCorruptedCount.incrementAndGet();
+            mDiscarding = true;
+            aIn.skipBytes(aIn.readableBytes());
+            LOGGER.warn("bad compressed frame of command type " + (int) aCmdTypeInt + " (" + e.getMessage() + 
+                        "), closing connection: " + aCtx.channel());
+            aCtx.close();
+            return false;
+        }
+        mMetrics.mDecompressedCount.incrementAndGet();
+        mMetrics.mDecompressNanos.addAndGet(System.nanoTime() - start);
+        aCodec.decode(aCtx, record, aOut);
+        return true;
+    }
+
+    /**
+     * Disconnects a peer announcing a frame over budget. The frame isn't buffered: the peer doesn't follow the
+     * protocol and the following bytes can't be framed anyway.
+     */
+    private void reject(ChannelHandlerContext aCtx, ByteBuf aIn, byte aCmdTypeInt, long aFrameLength,
+                        int aMaxFrameLength) {
+        mMetrics.mRejectedCount.incrementAndGet();
+        mMetrics.mRejectedBytes.addAndGet(aFrameLength);
+        mDiscarding = true;
+        aIn.skipBytes(aIn.readableBytes());
+        LOGGER.warn("frame of command type " + (int) aCmdTypeInt + " too long (" + aFrameLength + " bytes, max " + 
+                    aMaxFrameLength + "), closing connection: " + aCtx.channel());
+        aCtx.close();
+    }
+
+    /**
+     * Frames rejected by the decoders, and compression: bytes saved and time spent.
+     */
+    public static class Metrics {
+        private final AtomicLong mRejectedCount = new AtomicLong(); // over budget, i.e. connections closed
+        private final AtomicLong mRejectedBytes = new AtomicLong(); // announced by the frames over budget
+        private final AtomicLong mUnknownCount = new AtomicLong(); // unknown command type, skipped
+        private final AtomicLong mCorruptedCount = new AtomicLong(); // can't be decompressed, connections closed
+        private final AtomicLong mCompressedCount = new AtomicLong();
+        private final AtomicLong mIncompressibleCount = new AtomicLong(); // not smaller once compressed, sent as is
+        private final AtomicLong mCompressedBytesIn = new AtomicLong(); // length of the compressed frames before
+        private final AtomicLong mCompressedBytesOut = new AtomicLong(); // and after compression
+        private final AtomicLong mCompressNanos = new AtomicLong(); // incompressible frames included
+        private final AtomicLong mDecompressedCount = new AtomicLong();
+        private final AtomicLong mDecompressNanos = new AtomicLong();
+
+        public long getRejectedCount() {
+            return mRejectedCount.get();
+        }
+
+        public long getRejectedBytes() {
+            return mRejectedBytes.get();
+        }
+
+        public long getUnknownCount() {
+            return mUnknownCount.get();
+        }
+
+        public long getCorruptedCount() {
+            return mCorruptedCount.get();
+        }
+
+        public long getCompressedCount() {
+            return mCompressedCount.get();
+        }
+
+        public long getIncompressibleCount() {
+            return mIncompressibleCount.get();
+        }
+
+        public long getCompressedBytesIn() {
+            return mCompressedBytesIn.get();
+        }
+
+        public long getCompressedBytesOut() {
+            return mCompressedBytesOut.get();
+        }
+
+        public long getCompressNanos() {
+            return mCompressNanos.get();
+        }
+
+        public long getDecompressedCount() {
+            return mDecompressedCount.get();
+        }
+
+        public long getDecompressNanos() {
+            return mDecompressNanos.get();
+        }
+
+        /**
+         * Returns the length of the compressed frames after compression over their length before.
+         * @return the ratio, 1 if no frame was compressed.
+         */
+        public double getCompressionRatio() {
+            long bytesIn = getCompressedBytesIn();
+            return bytesIn == 0 ? 1 : (double) getCompressedBytesOut() / bytesIn;
+        }
+
+        /**
+         * Returns the average time spent compressing a frame, the frames sent uncompressed included.
+         * @return the time in microseconds.
+         */
+        public double getAvgCompressMicros() {
+            long count = getCompressedCount() + getIncompressibleCount();
+            return count == 0 ? 0 : getCompressNanos() / 1000.0 / count;
+        }
+
+        public double getAvgDecompressMicros() {
+            long count = getDecompressedCount();
+            return count == 0 ? 0 : getDecompressNanos() / 1000.0 / count;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString()
+        {
+            return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+            .append("rejected", getRejectedCount())
+            .append("rejectedBytes", getRejectedBytes())
+            .append("unknown", getUnknownCount())
+            .append("corrupted", getCorruptedCount())
+            .append("compressed", getCompressedCount())
+            .append("incompressible", getIncompressibleCount())
+            .append("bytesSaved", getCompressedBytesIn() - getCompressedBytesOut())
+            .append("ratio", String.format("%.2f", getCompressionRatio()))
+            .append("avgCompressMicros", String.format("%.1f", getAvgCompressMicros()))
+            .append("decompressed", getDecompressedCount())
+            .append("avgDecompressMicros", String.format("%.1f", getAvgDecompressMicros()))
+            .toString();
+        }
     }
 
 }
@@ -0,0 +1,108 @@
+package com.thn.netty.chat.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses the records of the frames, each one independently of the others (block compression),
+ * with the fastest deflate level. One instance per thread: the native state of the deflater and inflater and the
+ * byte arrays are shared by all the connections of an event loop instead of being allocated per connection.
+ * @author Thierry Herrmann
+ */
+final class FrameCompressor {
+    private static final ThreadLocal<FrameCompressor> INSTANCE = new ThreadLocal<FrameCompressor>() {
+        @Override
+        protected FrameCompressor initialValue() {
+            return new FrameCompressor();
+        }
+    };
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater mInflater = new Inflater();
+    private byte[] mInput = new byte[4096];
+    private byte[] mOutput = new byte[4096];
+
+    private FrameCompressor() {
+    }
+
+    /**
+     * Returns the instance of the current thread.
+     * @return the instance.
+     */
+    static FrameCompressor get() {
+        return INSTANCE.get();
+    }
+
+    /**
+     * Compresses bytes of a buffer into {@link #getOutput()}.
+     * @param aIn buffer.
+     * @param aIndex index of the first byte to compress.
+     * @param aLength number of bytes to compress.
+     * @return the compressed length or -1 if not smaller than <code>aLength</code>.
+     */
+    int deflate(ByteBuf aIn, int aIndex, int aLength) {
+        byte[] input = getInput(aIn, aIndex, aLength);
+        if (mOutput.length < aLength) {
+            mOutput = new byte[aLength];
+        }
+        mDeflater.reset();
+        mDeflater.setInput(input, aIn.hasArray() ? aIn.arrayOffset() + aIndex : 0, aLength);
+        mDeflater.finish();
+        int length = 0;
+        while (!mDeflater.finished() && length < aLength) {
+            length += mDeflater.deflate(mOutput, length, aLength - length);
+        }
+        return mDeflater.finished() && length < aLength ? length : -1;
+    }
+
+    byte[] getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * Decompresses bytes of a buffer.
+     * @param aIn buffer.
+     * @param aIndex index of the first byte to decompress.
+     * @param aLength number of bytes to decompress.
+     * @param aInflatedLength expected length once decompressed.
+     * @return the decompressed bytes. Only valid until the next call in the same thread.
+     * @throws DataFormatException if the bytes are not compressed data of the expected length.
+     */
+    ByteBuf inflate(ByteBuf aIn, int aIndex, int aLength, int aInflatedLength) throws DataFormatException {
+        byte[] input = getInput(aIn, aIndex, aLength);
+        if (mOutput.length < aInflatedLength) {
+            mOutput = new byte[aInflatedLength];
+        }
+        mInflater.reset();
+        mInflater.setInput(input, aIn.hasArray() ? aIn.arrayOffset() + aIndex : 0, aLength);
+        int length = 0;
+        while (!mInflater.finished() && length < aInflatedLength) {
+            int inflated = mInflater.inflate(mOutput, length, aInflatedLength - length);
+            if (inflated == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                break; // truncated
+            }
+            length += inflated;
+        }
+        if (!mInflater.finished() || length != aInflatedLength) {
+            throw new DataFormatException("compressed record doesn't have the announced length: " + aInflatedLength);
+        }
+        return Unpooled.wrappedBuffer(mOutput, 0, aInflatedLength);
+    }
+
+    /**
+     * Returns the array holding the bytes: the backing array of the buffer if any, a copy otherwise.
+     */
+    private byte[] getInput(ByteBuf aIn, int aIndex, int aLength) {
+        if (aIn.hasArray()) {
+            return aIn.array();
+        }
+        if (mInput.length < aLength) {
+            mInput = new byte[aLength];
+        }
+        aIn.getBytes(aIndex, mInput, 0, aLength);
+        return mInput;
+    }
+}
@@ -0,0 +1,141 @@
+package com.thn.netty.chat.codec;
+
+import io.netty.buffer.ByteBuf;
+
+import com.thn.netty.chat.util.Util;
+
+/**
+ * Encoding of the records and of the fields that aren't a single {@link ByteBuf} call, used by the codecs generated
+ * from the {@link com.thn.netty.chat.primitive.Wire} constructors. A record is its length followed by its fields;
+ * the fields have a fixed layout and no type tag.
+ * @author Thierry Herrmann
+ */
+final class WireFormat {
+    private static final int LENGTH_SIZE = 4;
+
+    private WireFormat() {
+        // prevents instantiation
+    }
+
+    /**
+     * Starts a record at the current writer index of the buffer by reserving its length.
+     * @param aOut outbound byte buffer.
+     * @return the index of the record length, given to {@link #endRecord(ByteBuf, int)}.
+     */
+    static int beginRecord(ByteBuf aOut) {
+        int lengthIndex = aOut.writerIndex();
+        aOut.writeInt(0); // record length placeholder. Set by endRecord()
+        return lengthIndex;
+    }
+
+    /**
+     * Ends a record by back-patching its length.
+     * @param aOut outbound byte buffer.
+     * @param aLengthIndex index returned by {@link #beginRecord(ByteBuf)}.
+     */
+    static void endRecord(ByteBuf aOut, int aLengthIndex) {
+        aOut.setInt(aLengthIndex, aOut.writerIndex() - aLengthIndex - LENGTH_SIZE);
+    }
+
+    /**
+     * Consumes the record at the current reader index of the buffer.
+     * @param aIn inbound byte buffer.
+     * @return the fields of the record, sharing the bytes of the buffer: reading beyond the record fails.
+     */
+    static ByteBuf readRecord(ByteBuf aIn) {
+        int length = aIn.readInt();
+        if (length < 0 || length > aIn.readableBytes()) {
+            throw new IllegalStateException("record overflows frame: " + length + " bytes");
+        }
+        return aIn.readSlice(length);
+    }
+
+    static void writeString(ByteBuf aOut, String aValue) {
+        if (aValue == null) {
+            aOut.writeInt(-1); // for null string, as opposed to 0 for empty string
+            return;
+        }
+        int lengthIndex = aOut.writerIndex();
+        aOut.writeInt(0); // string length placeholder
+        int length = writeUtf8(aOut, aValue);
+        aOut.setInt(lengthIndex, length);
+    }
+
+    static String readString(ByteBuf aIn) {
+        int length = aIn.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > aIn.readableBytes()) {
+            throw new IllegalStateException("string overflows record: " + length + " bytes");
+        }
+        String value = aIn.toString(aIn.readerIndex(), length, Util.UTF8);
+        aIn.skipBytes(length);
+        return value;
+    }
+
+    /**
+     * Reads the element count of a list.
+     * @param aIn inbound byte buffer.
+     * @return the element count.
+     */
+    static int readCount(ByteBuf aIn) {
+        int count = aIn.readInt();
+        if (count < 0 || count > aIn.readableBytes()) { // each element takes at least one byte
+            throw new IllegalStateException("bad element count: " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Reads the marker written before the fields of a value: false if the value is null.
+     * @param aIn inbound byte buffer.
+     * @return true if the fields of the value follow.
+     */
+    static boolean readPresent(ByteBuf aIn) {
+        byte marker = aIn.readByte();
+        if (marker != 0 && marker != 1) {
+            throw new IllegalStateException("bad value marker: " + marker);
+        }
+        return marker == 1;
+    }
+
+    /**
+     * Encodes a string in UTF-8 directly in the buffer. Unpaired surrogates are replaced by '?' like
+     * {@link String#getBytes(java.nio.charset.Charset)} does.
+     * @return the number of bytes written.
+     */
+    private static int writeUtf8(ByteBuf aOut, String aValue) {
+        int length = aValue.length();
+        aOut.ensureWritable(length * 3); // a UTF-16 char never takes more than 3 bytes (4 bytes for 2 chars)
+        int start = aOut.writerIndex();
+        for (int i = 0; i < length; i++) {
+            char c = aValue.charAt(i);
+            if (c < 0x80) {
+                aOut.writeByte(c);
+            }
+            else if (c < 0x800) {
+                aOut.writeByte(0xc0 | (c >> 6));
+                aOut.writeByte(0x80 | (c & 0x3f));
+            }
+            else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(aValue.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, aValue.charAt(++i));
+                    aOut.writeByte(0xf0 | (codePoint >> 18));
+                    aOut.writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                    aOut.writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                    aOut.writeByte(0x80 | (codePoint & 0x3f));
+                }
+                else {
+                    aOut.writeByte('?');
+                }
+            }
+            else {
+                aOut.writeByte(0xe0 | (c >> 12));
+                aOut.writeByte(0x80 | ((c >> 6) & 0x3f));
+                aOut.writeByte(0x80 | (c & 0x3f));
+            }
+        }
+        return aOut.writerIndex() - start;
+    }
+}
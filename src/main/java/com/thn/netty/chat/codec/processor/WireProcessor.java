@@ -0,0 +1,426 @@
+package com.thn.netty.chat.codec.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates the encoder and decoder of each class having a constructor annotated with
+ * <code>com.thn.netty.chat.primitive.Wire</code> (see its documentation for the wire format). The generated code
+ * calls the getters and the constructor directly, without reflection, and reads and writes each field with the
+ * {@link io.netty.buffer.ByteBuf} method of its type: there is no type tag to write nor to check.</p>
+ * Compiled before the other classes by its own execution of the compiler plugin (see the pom), then run by the
+ * compilation of the other classes.
+ * @author Thierry Herrmann
+ */
+@SupportedAnnotationTypes(WireProcessor.WIRE)
+public class WireProcessor extends AbstractProcessor {
+    static final String WIRE = "com.thn.netty.chat.primitive.Wire";
+    private static final String COMMAND = "com.thn.netty.chat.primitive.Command";
+    private static final String PACKAGE = "com.thn.netty.chat.codec";
+    private static final String INDENT = "    ";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> aAnnotations, RoundEnvironment aRoundEnv) {
+        TypeElement wire = processingEnv.getElementUtils().getTypeElement(WIRE);
+        if (wire == null) {
+            return false;
+        }
+        for (Element element : aRoundEnv.getElementsAnnotatedWith(wire)) {
+            try {
+                generate((ExecutableElement) element);
+            } catch (WireException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, e.getMessage(), element);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "can't write codec: " + e, element);
+            }
+        }
+        return true;
+    }
+
+    private void generate(ExecutableElement aConstructor) throws WireException, IOException {
+        TypeElement type = (TypeElement) aConstructor.getEnclosingElement();
+        if (!aConstructor.getModifiers().contains(Modifier.PUBLIC) || type.getModifiers().contains(Modifier.ABSTRACT)) {
+            throw new WireException("@Wire constructor must be public, in a concrete class");
+        }
+        List<String> names = getPropertyNames(aConstructor);
+        List<? extends VariableElement> params = aConstructor.getParameters();
+        if (names.size() != params.size()) {
+            throw new WireException("@Wire names " + names.size() + " properties for " + params.size() +
+                                    " constructor parameters");
+        }
+        Imports imports = new Imports();
+        String typeName = imports.use(type);
+        boolean command = processingEnv.getTypeUtils().isAssignable(type.asType(), getType(COMMAND).asType());
+        String codecName = getCodecName(type);
+
+        StringBuilder body = new StringBuilder();
+        if (command) {
+            imports.use("io.netty.channel.ChannelHandlerContext");
+            imports.use("java.util.List");
+            imports.use(COMMAND);
+            body.append(INDENT).append("@Override\n");
+            body.append(INDENT)
+                .append("public void encode(ChannelHandlerContext aCtx, Command aMsg, ByteBuf aOut) {\n");
+            body.append(INDENT).append(INDENT).append("int lengthIndex = WireFormat.beginRecord(aOut);\n");
+            body.append(INDENT).append(INDENT).append("write(aOut, (").append(typeName).append(") aMsg);\n");
+            body.append(INDENT).append(INDENT).append("WireFormat.endRecord(aOut, lengthIndex);\n");
+            body.append(INDENT).append("}\n\n");
+            body.append(INDENT).append("@Override\n");
+            body.append(INDENT)
+                .append("public void decode(ChannelHandlerContext aCtx, ByteBuf aIn, List<Object> aOut) {\n");
+            body.append(INDENT).append(INDENT).append("aOut.add(read(WireFormat.readRecord(aIn)));\n");
+            body.append(INDENT).append("}\n\n");
+        } else {
+            body.append(INDENT).append("private ").append(codecName).append("() {\n");
+            body.append(INDENT).append(INDENT).append("// prevents instantiation\n");
+            body.append(INDENT).append("}\n\n");
+        }
+
+        String indent = INDENT + INDENT;
+        body.append(INDENT).append("static void write(ByteBuf aOut, ").append(typeName).append(" aValue) {\n");
+        if (!command) {
+            body.append(indent).append("if (aValue == null) {\n");
+            body.append(indent).append(INDENT).append("aOut.writeByte(0);\n");
+            body.append(indent).append(INDENT).append("return;\n");
+            body.append(indent).append("}\n");
+            body.append(indent).append("aOut.writeByte(1);\n");
+        }
+        for (int i = 0; i < params.size(); i++) {
+            TypeMirror paramType = params.get(i).asType();
+            String getter = getGetter(type, names.get(i), paramType);
+            write(body, imports, indent, paramType, "aValue." + getter + "()", 0, names.get(i));
+        }
+        body.append(INDENT).append("}\n\n");
+
+        body.append(INDENT).append("static ").append(typeName).append(" read(ByteBuf aIn) {\n");
+        if (!command) {
+            body.append(indent).append("if (!WireFormat.readPresent(aIn)) {\n");
+            body.append(indent).append(INDENT).append("return null;\n");
+            body.append(indent).append("}\n");
+        }
+        for (int i = 0; i < params.size(); i++) {
+            read(body, imports, indent, params.get(i).asType(), names.get(i), 0, names.get(i));
+        }
+        body.append(indent).append("return new ").append(typeName).append("(");
+        for (int i = 0; i < names.size(); i++) {
+            body.append(i == 0 ? "" : ", ").append(names.get(i));
+        }
+        body.append(");\n");
+        body.append(INDENT).append("}\n");
+
+        imports.use("io.netty.buffer.ByteBuf");
+        try (Writer out = processingEnv.getFiler().createSourceFile(PACKAGE + "." + codecName, type).openWriter()) {
+            out.write("package " + PACKAGE + ";\n\n");
+            out.write(imports.toString());
+            out.write("\n/**\n");
+            out.write(" * " + (command ? "{@link DelegateCodec}" : "Encoder and decoder") + " of {@link " + typeName +
+                      "}, generated by " + WireProcessor.class.getSimpleName() + " from its @Wire constructor.\n");
+            out.write(" */\n");
+            out.write("final class " + codecName + (command ? " implements DelegateCodec" : "") + " {\n");
+            out.write(body.toString());
+            out.write("}\n");
+        }
+    }
+
+    private void write(StringBuilder aBody, Imports aImports, String aIndent, TypeMirror aType, String aValue,
+                       int aDepth, String aProperty) throws WireException {
+        switch (aType.getKind()) {
+        case BOOLEAN:
+            aBody.append(aIndent).append("aOut.writeBoolean(").append(aValue).append(");\n");
+            return;
+        case BYTE:
+            aBody.append(aIndent).append("aOut.writeByte(").append(aValue).append(");\n");
+            return;
+        case INT:
+            aBody.append(aIndent).append("aOut.writeInt(").append(aValue).append(");\n");
+            return;
+        case LONG:
+            aBody.append(aIndent).append("aOut.writeLong(").append(aValue).append(");\n");
+            return;
+        default:
+            break;
+        }
+        TypeElement element = asDeclared(aType, aProperty);
+        String name = element.getQualifiedName().toString();
+        if (name.equals(String.class.getName())) {
+            aBody.append(aIndent).append("WireFormat.writeString(aOut, ").append(aValue).append(");\n");
+        } else if (element.getKind() == ElementKind.ENUM) {
+            checkEnum(element, aProperty);
+            aBody.append(aIndent).append("aOut.writeByte(").append(aValue).append(".id());\n");
+        } else if (name.equals(List.class.getName())) {
+            TypeMirror elementType = getListElementType(aType, aProperty);
+            String list = aValue;
+            if (aDepth == 0) { // getter call
+                list = aProperty;
+                aBody.append(aIndent).append(aImports.use(aType)).append(" ").append(list).append(" = ")
+                     .append(aValue).append(";\n");
+            }
+            String value = "element" + aDepth;
+            aBody.append(aIndent).append("aOut.writeInt(").append(list).append(".size());\n");
+            aBody.append(aIndent).append("for (").append(aImports.use(elementType)).append(" ").append(value)
+                 .append(" : ").append(list).append(") {\n");
+            write(aBody, aImports, aIndent + INDENT, elementType, value, aDepth + 1, aProperty);
+            aBody.append(aIndent).append("}\n");
+        } else if (hasWireConstructor(element)) {
+            aBody.append(aIndent).append(getCodecName(element)).append(".write(aOut, ").append(aValue).append(");\n");
+        } else {
+            throw new WireException("unsupported type of property " + aProperty + ": " + aType);
+        }
+    }
+
+    private void read(StringBuilder aBody, Imports aImports, String aIndent, TypeMirror aType, String aVariable,
+                      int aDepth, String aProperty) throws WireException {
+        String typeName = aImports.use(aType);
+        String start = aIndent + typeName + " " + aVariable + " = ";
+        switch (aType.getKind()) {
+        case BOOLEAN:
+            aBody.append(start).append("aIn.readBoolean();\n");
+            return;
+        case BYTE:
+            aBody.append(start).append("aIn.readByte();\n");
+            return;
+        case INT:
+            aBody.append(start).append("aIn.readInt();\n");
+            return;
+        case LONG:
+            aBody.append(start).append("aIn.readLong();\n");
+            return;
+        default:
+            break;
+        }
+        TypeElement element = asDeclared(aType, aProperty);
+        String name = element.getQualifiedName().toString();
+        if (name.equals(String.class.getName())) {
+            aBody.append(start).append("WireFormat.readString(aIn);\n");
+        } else if (element.getKind() == ElementKind.ENUM) {
+            aBody.append(start).append(typeName).append(".forId(aIn.readByte());\n");
+        } else if (name.equals(List.class.getName())) {
+            TypeMirror elementType = getListElementType(aType, aProperty);
+            String count = aVariable + "Count";
+            String index = "i" + aDepth;
+            String value = "element" + aDepth;
+            aBody.append(aIndent).append("int ").append(count).append(" = WireFormat.readCount(aIn);\n");
+            aBody.append(start).append("new ").append(aImports.use(ArrayList.class.getName())).append("<>(")
+                 .append(count).append(");\n");
+            aBody.append(aIndent).append("for (int ").append(index).append(" = 0; ").append(index).append(" < ")
+                 .append(count).append("; ").append(index).append("++) {\n");
+            read(aBody, aImports, aIndent + INDENT, elementType, value, aDepth + 1, aProperty);
+            aBody.append(aIndent).append(INDENT).append(aVariable).append(".add(").append(value).append(");\n");
+            aBody.append(aIndent).append("}\n");
+        } else if (hasWireConstructor(element)) {
+            aBody.append(start).append(getCodecName(element)).append(".read(aIn);\n");
+        } else {
+            throw new WireException("unsupported type of property " + aProperty + ": " + aType);
+        }
+    }
+
+    private static TypeElement asDeclared(TypeMirror aType, String aProperty) throws WireException {
+        if (aType.getKind() != TypeKind.DECLARED) {
+            throw new WireException("unsupported type of property " + aProperty + ": " + aType);
+        }
+        return (TypeElement) ((DeclaredType) aType).asElement();
+    }
+
+    private static TypeMirror getListElementType(TypeMirror aType, String aProperty) throws WireException {
+        List<? extends TypeMirror> args = ((DeclaredType) aType).getTypeArguments();
+        if (args.size() != 1 || args.get(0).getKind() != TypeKind.DECLARED) {
+            throw new WireException("list of property " + aProperty + " must have a declared element type: " + aType);
+        }
+        return args.get(0);
+    }
+
+    /**
+     * Checks that an enum has the <code>byte id()</code> and <code>static forId(byte)</code> methods.
+     */
+    private static void checkEnum(TypeElement aEnum, String aProperty) throws WireException {
+        boolean id = false;
+        boolean forId = false;
+        for (ExecutableElement method : ElementFilter.methodsIn(aEnum.getEnclosedElements())) {
+            String name = method.getSimpleName().toString();
+            if (name.equals("id") && method.getParameters().isEmpty() &&
+                method.getReturnType().getKind() == TypeKind.BYTE) {
+                id = true;
+            } else if (name.equals("forId") && method.getModifiers().contains(Modifier.STATIC) &&
+                       method.getParameters().size() == 1 &&
+                       method.getParameters().get(0).asType().getKind() == TypeKind.BYTE) {
+                forId = true;
+            }
+        }
+        if (!id || !forId) {
+            throw new WireException("enum of property " + aProperty + " needs byte id() and static forId(byte): " +
+                                    aEnum);
+        }
+    }
+
+    private static boolean hasWireConstructor(TypeElement aType) {
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(aType.getEnclosedElements())) {
+            if (getWire(constructor) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static AnnotationMirror getWire(Element aElement) {
+        for (AnnotationMirror annotation : aElement.getAnnotationMirrors()) {
+            TypeElement annotationType = (TypeElement) annotation.getAnnotationType().asElement();
+            if (annotationType.getQualifiedName().contentEquals(WIRE)) {
+                return annotation;
+            }
+        }
+        return null;
+    }
+
+    private static List<String> getPropertyNames(ExecutableElement aConstructor) {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+             getWire(aConstructor).getElementValues().entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals("value")) {
+                for (Object value : (List<?>) entry.getValue().getValue()) {
+                    names.add((String) ((AnnotationValue) value).getValue());
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns the name of the getter of a property: <code>getXxx()</code>, <code>isXxx()</code> or
+     * <code>xxx()</code>, returning the type of the constructor parameter.
+     */
+    private String getGetter(TypeElement aType, String aProperty, TypeMirror aParamType) throws WireException {
+        String suffix = Character.toUpperCase(aProperty.charAt(0)) + aProperty.substring(1);
+        List<ExecutableElement> methods =
+            ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(aType));
+        for (String getter : new String[] {"get" + suffix, "is" + suffix, aProperty}) {
+            for (ExecutableElement method : methods) {
+                if (method.getSimpleName().contentEquals(getter) && method.getParameters().isEmpty() &&
+                    method.getModifiers().contains(Modifier.PUBLIC) &&
+                    !method.getModifiers().contains(Modifier.STATIC) &&
+                    processingEnv.getTypeUtils().isSameType(method.getReturnType(), aParamType)) {
+                    return getter;
+                }
+            }
+        }
+        throw new WireException("no public getter of property " + aProperty + " returning " + aParamType);
+    }
+
+    private TypeElement getType(String aName) {
+        return processingEnv.getElementUtils().getTypeElement(aName);
+    }
+
+    /**
+     * Returns the simple name of the generated codec of a type: the names of its enclosing types and its own name,
+     * followed by <code>Wire</code>.
+     */
+    private static String getCodecName(TypeElement aType) {
+        StringBuilder name = new StringBuilder("Wire");
+        for (Element element = aType; element instanceof TypeElement; element = element.getEnclosingElement()) {
+            name.insert(0, element.getSimpleName());
+        }
+        return name.toString();
+    }
+
+    /**
+     * Imports of a generated class. A type is referred by its simple name unless another imported type has the
+     * same simple name.
+     */
+    private static class Imports {
+        private final Map<String, String> mBySimpleName = new TreeMap<>(); // simple name -> qualified name
+        {
+            mBySimpleName.put("DelegateCodec", PACKAGE + ".DelegateCodec");
+            mBySimpleName.put("WireFormat", PACKAGE + ".WireFormat");
+        }
+
+        String use(TypeMirror aType) {
+            if (aType.getKind() != TypeKind.DECLARED) {
+                return aType.toString();
+            }
+            DeclaredType type = (DeclaredType) aType;
+            StringBuilder name = new StringBuilder(use((TypeElement) type.asElement()));
+            List<? extends TypeMirror> args = type.getTypeArguments();
+            if (!args.isEmpty()) {
+                name.append('<');
+                for (int i = 0; i < args.size(); i++) {
+                    name.append(i == 0 ? "" : ", ").append(use(args.get(i)));
+                }
+                name.append('>');
+            }
+            return name.toString();
+        }
+
+        String use(TypeElement aType) {
+            return use(aType.getQualifiedName().toString());
+        }
+
+        String use(String aQualifiedName) {
+            String simpleName = aQualifiedName.substring(aQualifiedName.lastIndexOf('.') + 1);
+            String imported = mBySimpleName.get(simpleName);
+            if (imported == null) {
+                mBySimpleName.put(simpleName, aQualifiedName);
+                return simpleName;
+            }
+            return imported.equals(aQualifiedName) ? simpleName : aQualifiedName;
+        }
+
+        @Override
+        public String toString() {
+            List<String> imports = new ArrayList<>();
+            for (String name : mBySimpleName.values()) {
+                if (!isInPackage(name, PACKAGE) && !isInPackage(name, "java.lang")) {
+                    imports.add(name);
+                }
+            }
+            Collections.sort(imports);
+            StringBuilder out = new StringBuilder();
+            for (String name : imports) {
+                out.append("import ").append(name).append(";\n");
+            }
+            return out.toString();
+        }
+
+        private static boolean isInPackage(String aQualifiedName, String aPackage) {
+            return aQualifiedName.startsWith(aPackage + ".") && aQualifiedName.indexOf('.', aPackage.length() + 1) < 0;
+        }
+    }
+
+    /**
+     * Class which can't be encoded. Reported as a compilation error on its @Wire constructor.
+     */
+    private static class WireException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        WireException(String aMessage) {
+            super(aMessage);
+        }
+    }
+}
@@ -25,6 +25,7 @@ public class AddContactInviteCmd extends BaseAddContactCmd {
      * @param aUserName name of the requester user. Null for the current user.
      * @param aContactName name of the new contact. Null for the current user.  
      */
+    @Wire({"id", "userName", "contactName"})
     public AddContactInviteCmd(int aCmdId, UserName aUserName, UserName aContactName) {
         super(CommandType.ADD_CONTACT_INVITE, aCmdId, aUserName, aContactName);
     }
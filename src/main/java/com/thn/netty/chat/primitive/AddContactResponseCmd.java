@@ -17,6 +17,7 @@ public class AddContactResponseCmd extends BaseAddContactCmd {
      * @param aContactName name of the new contact. Null for the current user.  
      * @param aAccepted true if the contact has accepted the request, false if has declined.
      */
+    @Wire({"id", "userName", "contactName", "accepted"})
     public AddContactResponseCmd(int aCmdId, UserName aUserName, UserName aContactName, 
                                        boolean aAccepted) {
         super(CommandType.ADD_CONTACT_RESPONSE, aCmdId, aUserName, aContactName);
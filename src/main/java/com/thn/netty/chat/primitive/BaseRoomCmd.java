@@ -0,0 +1,31 @@
+package com.thn.netty.chat.primitive;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+/**
+ * Base class for the commands managing the membership of a chat room.
+ * @author Thierry Herrmann
+ */
+public abstract class BaseRoomCmd extends Command {
+    private final String mRoomName;
+
+    public BaseRoomCmd(CommandType aType, int aCmdId, String aRoomName) {
+        super(aType, aCmdId);
+        mRoomName = aRoomName;
+    }
+
+    public String getRoomName() {
+        return mRoomName;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .appendSuper(super.toString())
+        .append("mRoomName", mRoomName)
+        .toString();
+    }
+}
@@ -12,8 +12,9 @@ public class ChangePasswordRequest extends Command {
     private final String mOldPassword;
     private final String mNewPassword;
 
+    @Wire({"id", "userName", "oldPassword", "newPassword"})
     public ChangePasswordRequest(int aCmdId, UserName aUserName, String aOldPassword, String aNewPassword) {
-        super(CommandType.CREATE_ACCOUNT, aCmdId);
+        super(CommandType.CHANGE_PASSWORD, aCmdId);
         mUserName = aUserName;
         mOldPassword = aOldPassword;
         mNewPassword = aNewPassword;
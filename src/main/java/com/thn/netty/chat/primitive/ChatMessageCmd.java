@@ -15,6 +15,7 @@ public class ChatMessageCmd extends Command {
      * @param aCmdId command id.
      * @param aMsgInfo details of the message.
      */
+    @Wire({"id", "messageInfo"})
     public ChatMessageCmd(int aCmdId, MessageInfo aMsgInfo) {
         super(CommandType.MESSAGE, aCmdId);
         mMsgInfo = aMsgInfo;
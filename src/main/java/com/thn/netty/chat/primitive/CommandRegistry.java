@@ -0,0 +1,60 @@
+package com.thn.netty.chat.primitive;
+
+/**
+ * Table of the handlers of the received commands, indexed by command type id: finding the handler of a command and
+ * whether it requires the user to be logged in is a single array access. A new command type is supported by
+ * registering its handler.
+ * @param <H> type of the handlers.
+ * @author Thierry Herrmann
+ */
+public class CommandRegistry<H> {
+    private final Entry<?>[] mEntries = new Entry<?>[CommandType.count()];
+
+    /**
+     * Registers the handler of a command type.
+     * @param aType command type.
+     * @param aHandler handler of the commands of this type.
+     * @param aLoginRequired true if the user must be logged in to send commands of this type.
+     * @return this registry.
+     * @throws IllegalStateException if the command type already has a handler.
+     */
+    public CommandRegistry<H> register(CommandType aType, H aHandler, boolean aLoginRequired) {
+        if (mEntries[aType.id()] != null) {
+            throw new IllegalStateException("command type already registered: " + aType);
+        }
+        mEntries[aType.id()] = new Entry<>(aHandler, aLoginRequired);
+        return this;
+    }
+
+    /**
+     * Returns the registration of a command type.
+     * @param aType command type.
+     * @return the registration or null if the command type has no handler.
+     */
+    @SuppressWarnings("unchecked")
+    public Entry<H> get(CommandType aType) {
+        return (Entry<H>) mEntries[aType.id()];
+    }
+
+    /**
+     * Handler of a command type.
+     * @param <H> type of the handler.
+     */
+    public static class Entry<H> {
+        private final H mHandler;
+        private final boolean mLoginRequired;
+
+        Entry(H aHandler, boolean aLoginRequired) {
+            mHandler = aHandler;
+            mLoginRequired = aLoginRequired;
+        }
+
+        public H getHandler() {
+            return mHandler;
+        }
+
+        public boolean isLoginRequired() {
+            return mLoginRequired;
+        }
+    }
+}
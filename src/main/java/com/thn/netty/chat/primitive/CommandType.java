@@ -21,9 +21,18 @@ public enum CommandType {
     GET_PENDING_MESSAGES_RESPONSE((byte)getIdx()),
     SHUTDOWN_SERVER((byte)getIdx()),
     OK((byte)getIdx()),
-    ERROR((byte)getIdx())
+    ERROR((byte)getIdx()),
+    PRESENCE((byte)getIdx()),
+    ROOM_CREATE((byte)getIdx()),
+    ROOM_JOIN((byte)getIdx()),
+    ROOM_LEAVE((byte)getIdx()),
+    ROOM_POST((byte)getIdx()),
+    DELIVERY_ACK((byte)getIdx()),
+    DELIVERY_RECEIPT((byte)getIdx())
     ; 
     static int sIndex;
+    // indexed by id: values() copies its array at each call
+    private static final CommandType[] BY_ID = values();
     private final byte mId;
     static int getIdx(){
         return sIndex++;
@@ -35,12 +44,17 @@ public enum CommandType {
         return mId;
     }
     public static CommandType forId(byte aId) {
-        for (CommandType type : CommandType.values()) {
-            if (type.mId == aId) {
-                return type;
-            }
+        if (aId < 0 || aId >= BY_ID.length) {
+            throw new IllegalArgumentException("bad id: " + ((int) aId));
         }
-        throw new IllegalArgumentException("bad id: " + ((int) aId));
+        return BY_ID[aId];
+    }
+    /**
+     * Returns the number of command types. The ids go from 0 to this number (excluded).
+     * @return the number of command types.
+     */
+    public static int count() {
+        return BY_ID.length;
     }
     @Override
     public String toString() {
@@ -11,6 +11,7 @@ public class CreateAccountRequest extends Command {
     private final UserName mUserName;
     private final String mPassword;
 
+    @Wire({"id", "userName", "password"})
     public CreateAccountRequest(int aCmdId, UserName aUserName, String aPassword) {
         super(CommandType.CREATE_ACCOUNT, aCmdId);
         if (aUserName == null) {
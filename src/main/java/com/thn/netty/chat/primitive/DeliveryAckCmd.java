@@ -0,0 +1,30 @@
+package com.thn.netty.chat.primitive;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+/**
+ * Sent by a client when it received a chat message notification, so that the server doesn't deliver it again. Not
+ * answered by the server.
+ * @author Thierry Herrmann
+ */
+public class DeliveryAckCmd extends Command {
+
+    /**
+     * Constructor.
+     * @param aCmdId id of the acknowledged notification.
+     */
+    @Wire({"id"})
+    public DeliveryAckCmd(int aCmdId) {
+        super(CommandType.DELIVERY_ACK, aCmdId);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .appendSuper(super.toString())
+        .toString();
+    }
+}
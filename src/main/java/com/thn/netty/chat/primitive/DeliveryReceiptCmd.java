@@ -0,0 +1,37 @@
+package com.thn.netty.chat.primitive;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+/**
+ * Notification sent by the server to the sender of a chat message once the recipient acknowledged it.
+ * @author Thierry Herrmann
+ */
+public class DeliveryReceiptCmd extends Command {
+    private final UserName mRecipient;
+
+    /**
+     * Constructor.
+     * @param aCmdId id of the chat message command sent by the sender.
+     * @param aRecipient recipient of the message.
+     */
+    @Wire({"id", "recipient"})
+    public DeliveryReceiptCmd(int aCmdId, UserName aRecipient) {
+        super(CommandType.DELIVERY_RECEIPT, aCmdId);
+        mRecipient = aRecipient;
+    }
+
+    public UserName getRecipient() {
+        return mRecipient;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .appendSuper(super.toString())
+        .append("mRecipient", mRecipient)
+        .toString();
+    }
+}
@@ -17,6 +17,7 @@ public class ErrorResponse extends Command {
      * @param aCode error code.
      * @param aDescription description. Optional (can be null).
      */
+    @Wire({"id", "code", "description"})
     public ErrorResponse(int aCmdId, Code aCode, String aDescription) {
         super(CommandType.ERROR, aCmdId);
         mCode = aCode;
@@ -52,6 +53,8 @@ public class ErrorResponse extends Command {
         INTERNAL_ERROR((byte)getIdx()),
         TIMEOUT((byte)getIdx()),
         BAD_REQUEST((byte)getIdx()),
+        BUSY((byte)getIdx()),
+        RECIPIENT_BUSY((byte)getIdx()),
         ; 
         static int sIndex;
         private final byte mId;
@@ -9,6 +9,7 @@ import org.apache.commons.lang.builder.ToStringStyle;
  */
 public class ExitRequest extends Command {
 
+    @Wire({"id"})
     public ExitRequest(int aCmdId) {
         super(CommandType.EXIT, aCmdId);
     }
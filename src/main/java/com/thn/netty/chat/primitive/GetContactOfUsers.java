@@ -12,6 +12,7 @@ import com.thn.netty.chat.user.ContactState;
  */
 public class GetContactOfUsers extends Command  {
     private final ContactState mState;
+    @Wire({"id", "contactState"})
     public GetContactOfUsers(int aCmdId, ContactState aState) {
         super(CommandType.GET_CONTACT_OF_USERS, aCmdId);
         if (aState == null) {
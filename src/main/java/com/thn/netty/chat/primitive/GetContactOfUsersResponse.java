@@ -13,6 +13,7 @@ import org.apache.commons.lang.builder.ToStringStyle;
 public class GetContactOfUsersResponse extends Command  {
     private final List<UserName> mRequesterNames;
 
+    @Wire({"id", "requesterNames"})
     public GetContactOfUsersResponse(int aCmdId, List<UserName> aRequesterNames) {
         super(CommandType.GET_CONTACT_OF_USERS_RESPONSE, aCmdId);
         if (aRequesterNames == null) {
@@ -1,11 +1,57 @@
 package com.thn.netty.chat.primitive;
 
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
 /**
- * Command to get all the messages sent to the current user while he was offline. 
+ * Command to get all the messages sent to the current user while he was offline. The messages are returned one page
+ * at a time: each request acknowledges the page received before (so that the server deletes it) and asks for the
+ * next one.
  * @author Thierry Herrmann
  */
 public class GetPendingMessages extends Command  {
+    private final long mAckToken;
+    private final int mMaxMessages;
+
+    /**
+     * Constructor to get the first page.
+     * @param aCmdId command id.
+     */
     public GetPendingMessages(int aCmdId) {
+        this(aCmdId, 0, 0);
+    }
+
+    /**
+     * Constructor.
+     * @param aCmdId command id.
+     * @param aAckToken continuation token of the last page received. All the messages up to this page are deleted
+     *                  by the server. 0 to get the first page without acknowledging anything.
+     * @param aMaxMessages maximum number of messages in the page. 0 to use the server page size. The server page 
+     *                     size is also the upper bound.
+     */
+    @Wire({"id", "ackToken", "maxMessages"})
+    public GetPendingMessages(int aCmdId, long aAckToken, int aMaxMessages) {
         super(CommandType.GET_PENDING_MESSAGES, aCmdId);
+        mAckToken = aAckToken;
+        mMaxMessages = aMaxMessages;
+    }
+
+    public long getAckToken() {
+        return mAckToken;
+    }
+
+    public int getMaxMessages() {
+        return mMaxMessages;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .appendSuper(super.toString())
+        .append("mAckToken", mAckToken)
+        .append("mMaxMessages", mMaxMessages)
+        .toString();
     }
 }
@@ -6,24 +6,50 @@ import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 
 /**
- * Response to {@link GetPendingMessages} command.
+ * Response to {@link GetPendingMessages} command. Contains one page of messages.
  * @author Thierry Herrmann
  */
 public class GetPendingMessagesResponse extends Command  {
     private final List<MessageInfo> mMessages;
+    private final long mContinuationToken;
+    private final boolean mHasMore;
 
     public GetPendingMessagesResponse(int aCmdId, List<MessageInfo> aMessages) {
+        this(aCmdId, aMessages, 0, false);
+    }
+
+    /**
+     * Constructor.
+     * @param aCmdId command id.
+     * @param aMessages messages of the page.
+     * @param aContinuationToken token to pass in the next {@link GetPendingMessages} to acknowledge this page and get
+     *                           the next one.
+     * @param aHasMore true if more messages are pending after this page.
+     */
+    @Wire({"id", "messages", "continuationToken", "hasMore"})
+    public GetPendingMessagesResponse(int aCmdId, List<MessageInfo> aMessages, long aContinuationToken,
+                                      boolean aHasMore) {
         super(CommandType.GET_PENDING_MESSAGES_RESPONSE, aCmdId);
         if (aMessages == null) {
             throw new NullPointerException("aMessages must not be null");
         }
         mMessages = aMessages;
+        mContinuationToken = aContinuationToken;
+        mHasMore = aHasMore;
     }
 
     public List<MessageInfo> getMessages() {
         return mMessages;
     }
 
+    public long getContinuationToken() {
+        return mContinuationToken;
+    }
+
+    public boolean hasMore() {
+        return mHasMore;
+    }
+
     /** {@inheritDoc} */
     @Override
     public String toString()
@@ -31,6 +57,8 @@ public class GetPendingMessagesResponse extends Command  {
         return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
         .appendSuper(super.toString())
         .append("mMessages", mMessages)
+        .append("mContinuationToken", mContinuationToken)
+        .append("mHasMore", mHasMore)
         .toString();
     }
 }
@@ -10,11 +10,25 @@ import org.apache.commons.lang.builder.ToStringStyle;
 public class LoginRequest extends Command {
     private final UserName mUserName;
     private final String mPassword;
+    private final boolean mCompression;
 
     public LoginRequest(int aCmdId, UserName aUserName, String aPassword) {
+        this(aCmdId, aUserName, aPassword, false);
+    }
+
+    /**
+     * Constructor.
+     * @param aCmdId command id.
+     * @param aUserName user name.
+     * @param aPassword password.
+     * @param aCompression true to ask the server to compress the large frames it sends on this connection.
+     */
+    @Wire({"id", "userName", "password", "compression"})
+    public LoginRequest(int aCmdId, UserName aUserName, String aPassword, boolean aCompression) {
         super(CommandType.LOGIN, aCmdId);
         mUserName = aUserName;
         mPassword = aPassword;
+        mCompression = aCompression;
     }
 
     public UserName getUserName() {
@@ -27,6 +41,10 @@ public class LoginRequest extends Command {
         return mPassword;
     }
 
+    public boolean isCompression() {
+        return mCompression;
+    }
+
     /** {@inheritDoc} */
     @Override
     public String toString()
@@ -35,6 +53,7 @@ public class LoginRequest extends Command {
         .appendSuper(super.toString())
         .append("mUserName", mUserName)
         .append("mPassword", mPassword)
+        .append("mCompression", mCompression)
         .toString();
     }
 }
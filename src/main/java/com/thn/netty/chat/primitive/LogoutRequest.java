@@ -10,6 +10,7 @@ import org.apache.commons.lang.builder.ToStringStyle;
  */
 public class LogoutRequest extends Command {
 
+    @Wire({"id"})
     public LogoutRequest(int aCmdId) {
         super(CommandType.LOGOUT, aCmdId);
     }
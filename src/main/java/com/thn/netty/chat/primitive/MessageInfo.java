@@ -19,6 +19,7 @@ public class MessageInfo {
      * @param aRecipient recipient. Null if received by the current user.
      * @param aMessage message text. Must not be null.
      */
+    @Wire({"sender", "recipient", "message"})
     public MessageInfo(UserName aSender, UserName aRecipient, String aMessage) {
         mSender = aSender;
         mRecipient = aRecipient;
@@ -10,6 +10,7 @@ import org.apache.commons.lang.builder.ToStringStyle;
  * @author Thierry Herrmann
  */
 public class OkResponse extends Command {
+    @Wire({"id"})
     public  OkResponse(int aCmdId) {
         super(CommandType.OK, aCmdId);
     }
@@ -0,0 +1,50 @@
+package com.thn.netty.chat.primitive;
+
+import java.util.List;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+/**
+ * Notification sent by the server to tell a user which of its contacts came online or went offline.
+ * @author Thierry Herrmann
+ */
+public class PresenceCmd extends Command {
+    private final List<UserName> mOnline;
+    private final List<UserName> mOffline;
+
+    /**
+     * Constructor.
+     * @param aCmdId command id.
+     * @param aOnline contacts that came online.
+     * @param aOffline contacts that went offline.
+     */
+    @Wire({"id", "online", "offline"})
+    public PresenceCmd(int aCmdId, List<UserName> aOnline, List<UserName> aOffline) {
+        super(CommandType.PRESENCE, aCmdId);
+        if (aOnline == null || aOffline == null) {
+            throw new NullPointerException("aOnline and aOffline must not be null");
+        }
+        mOnline = aOnline;
+        mOffline = aOffline;
+    }
+
+    public List<UserName> getOnline() {
+        return mOnline;
+    }
+
+    public List<UserName> getOffline() {
+        return mOffline;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .appendSuper(super.toString())
+        .append("mOnline", mOnline)
+        .append("mOffline", mOffline)
+        .toString();
+    }
+}
@@ -10,6 +10,7 @@ import org.apache.commons.lang.builder.ToStringStyle;
 public class RemoveContactCmd extends Command {
     private final UserName mContactName;
 
+    @Wire({"id", "contactName"})
     public RemoveContactCmd(int aCmdId, UserName aContactName) {
         super(CommandType.REMOVE_CONTACT, aCmdId);
         mContactName = aContactName;
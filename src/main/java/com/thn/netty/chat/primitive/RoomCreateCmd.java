@@ -0,0 +1,13 @@
+package com.thn.netty.chat.primitive;
+
+/**
+ * Command to create a chat room. The creator becomes its first member.
+ * @author Thierry Herrmann
+ */
+public class RoomCreateCmd extends BaseRoomCmd {
+
+    @Wire({"id", "roomName"})
+    public RoomCreateCmd(int aCmdId, String aRoomName) {
+        super(CommandType.ROOM_CREATE, aCmdId, aRoomName);
+    }
+}
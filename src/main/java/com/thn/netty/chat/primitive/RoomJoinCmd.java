@@ -0,0 +1,13 @@
+package com.thn.netty.chat.primitive;
+
+/**
+ * Command to join a chat room: the current user gets the messages posted to the room.
+ * @author Thierry Herrmann
+ */
+public class RoomJoinCmd extends BaseRoomCmd {
+
+    @Wire({"id", "roomName"})
+    public RoomJoinCmd(int aCmdId, String aRoomName) {
+        super(CommandType.ROOM_JOIN, aCmdId, aRoomName);
+    }
+}
@@ -0,0 +1,13 @@
+package com.thn.netty.chat.primitive;
+
+/**
+ * Command to leave a chat room. The room is deleted when its last member leaves.
+ * @author Thierry Herrmann
+ */
+public class RoomLeaveCmd extends BaseRoomCmd {
+
+    @Wire({"id", "roomName"})
+    public RoomLeaveCmd(int aCmdId, String aRoomName) {
+        super(CommandType.ROOM_LEAVE, aCmdId, aRoomName);
+    }
+}
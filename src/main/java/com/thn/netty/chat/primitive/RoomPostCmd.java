@@ -0,0 +1,47 @@
+package com.thn.netty.chat.primitive;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+/**
+ * Message posted to a chat room. Sent by a member to the server (request) and by the server to the other members
+ * (notification).
+ * @author Thierry Herrmann
+ */
+public class RoomPostCmd extends BaseRoomCmd {
+    private final UserName mSender;
+    private final String mMessage;
+
+    /**
+     * Constructor.
+     * @param aCmdId command id.
+     * @param aRoomName name of the room.
+     * @param aSender name of the member who posted the message. Null for the current user.
+     * @param aMessage message.
+     */
+    @Wire({"id", "roomName", "sender", "message"})
+    public RoomPostCmd(int aCmdId, String aRoomName, UserName aSender, String aMessage) {
+        super(CommandType.ROOM_POST, aCmdId, aRoomName);
+        mSender = aSender;
+        mMessage = aMessage;
+    }
+
+    public UserName getSender() {
+        return mSender;
+    }
+
+    public String getMessage() {
+        return mMessage;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .appendSuper(super.toString())
+        .append("mSender", mSender)
+        .append("mMessage", mMessage)
+        .toString();
+    }
+}
@@ -7,6 +7,7 @@ package com.thn.netty.chat.primitive;
  */
 public class ShutdownServerRequest extends Command {
 
+    @Wire({"id"})
     public ShutdownServerRequest(int aCmdId) {
         super(CommandType.SHUTDOWN_SERVER, aCmdId);
     }
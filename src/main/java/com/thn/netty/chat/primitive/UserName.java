@@ -11,6 +11,7 @@ public class UserName {
     private static final int MAX_LENGTH = 20;
     private final String mName;
 
+    @Wire({"name"})
     public UserName(String aName) {
         if (aName.length() > MAX_LENGTH) {
             throw new IllegalArgumentException("name too long. Max " + MAX_LENGTH + " chars: " + aName);
@@ -0,0 +1,32 @@
+package com.thn.netty.chat.primitive;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the wire fields of a command or of a value carried by commands: the parameters of the annotated
+ * constructor, in order, each one read back with the getter of the property of the same position in
+ * {@link #value()} (<code>getXxx()</code>, <code>isXxx()</code> or <code>xxx()</code>).</p>
+ * At compile time, <code>com.thn.netty.chat.codec.processor.WireProcessor</code> generates the encoder and decoder
+ * of the class in the <code>com.thn.netty.chat.codec</code> package: <code>&lt;class name&gt;Wire</code>, a
+ * {@link com.thn.netty.chat.codec.DelegateCodec} for the commands. The fields are written one after the other with
+ * a fixed layout, without any type tag:
+ * <ul>
+ * <li><code>boolean</code>, <code>byte</code>, <code>int</code>, <code>long</code>: big endian, 1, 1, 4 and 8 bytes
+ * <li><code>String</code>: UTF-8 length (-1 for null) and bytes
+ * <li>enum with a <code>byte id()</code> method and a static <code>forId(byte)</code> method: the id
+ * <li>{@link java.util.List}: element count and elements
+ * <li>class with a {@link Wire} constructor: 0 for null, or 1 and its fields
+ * </ul>
+ * @author Thierry Herrmann
+ */
+@Retention(RetentionPolicy.CLASS) // seen by the processor in the classes compiled earlier
+@Target(ElementType.CONSTRUCTOR)
+public @interface Wire {
+    /**
+     * Names of the properties set by the constructor parameters, in order.
+     */
+    String[] value();
+}
@@ -0,0 +1,124 @@
+package com.thn.netty.chat.server;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+/**
+ * Executor for the blocking business logic (e.g. User DB accesses) with a fixed number of threads and a bounded
+ * queue. When the queue is full, {@link #execute(Runnable)} throws a {@link RejectedExecutionException} so that the
+ * caller can answer the client that the server is busy instead of piling up threads or tasks.
+ * <p>
+ * Also measures the time tasks wait in the queue and the time they run.
+ * @author Thierry Herrmann
+ */
+public class BoundedExecutor extends ThreadPoolExecutor {
+    private final String mName;
+    private final AtomicLong mExecutedCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mWaitNanos = new AtomicLong();
+    private final AtomicLong mRunNanos = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param aName name of the executor. Used to name the threads.
+     * @param aThreads number of threads.
+     * @param aQueueCapacity maximum number of tasks waiting for a thread.
+     */
+    public BoundedExecutor(String aName, int aThreads, int aQueueCapacity) {
+        super(aThreads, aThreads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(aQueueCapacity),
+              new DefaultThreadFactory(aName), new ThreadPoolExecutor.AbortPolicy());
+        mName = aName;
+    }
+
+    /**
+     * Executes a task.
+     * @param aTask task.
+     * @throws RejectedExecutionException if the queue is full or the executor is shut down.
+     */
+    @Override
+    public void execute(Runnable aTask) {
+        try {
+            super.execute(new TimedTask(aTask));
+        } catch (RejectedExecutionException e) {
+            mRejectedCount.incrementAndGet();
+            throw e;
+        }
+    }
+
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    public long getExecutedCount() {
+        return mExecutedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * Returns the average time the executed tasks waited in the queue.
+     * @return the average wait time in microseconds.
+     */
+    public long getAverageWaitMicros() {
+        long count = mExecutedCount.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(mWaitNanos.get() / count);
+    }
+
+    /**
+     * Returns the average run time of the executed tasks.
+     * @return the average run time in microseconds.
+     */
+    public long getAverageRunMicros() {
+        long count = mExecutedCount.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(mRunNanos.get() / count);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .append("mName", mName)
+        .append("activeThreads", getActiveCount())
+        .append("queueDepth", getQueueDepth())
+        .append("executed", getExecutedCount())
+        .append("rejected", getRejectedCount())
+        .append("avgWaitMicros", getAverageWaitMicros())
+        .append("avgRunMicros", getAverageRunMicros())
+        .toString();
+    }
+
+    /**
+     * Task wrapper recording when it was queued.
+     */
+    private class TimedTask implements Runnable {
+        private final Runnable mTask;
+        private final long mQueuedNanos = System.nanoTime();
+
+        TimedTask(Runnable aTask) {
+            mTask = aTask;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            mWaitNanos.addAndGet(start - mQueuedNanos);
+            try {
+                mTask.run();
+            } finally {
+                mRunNanos.addAndGet(System.nanoTime() - start);
+                mExecutedCount.incrementAndGet();
+            }
+        }
+    }
+}
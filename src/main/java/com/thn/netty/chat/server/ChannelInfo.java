@@ -1,9 +1,15 @@
 package com.thn.netty.chat.server;
 
+import com.thn.netty.chat.primitive.Command;
 import com.thn.netty.chat.user.UserInfo;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+
 /**
  * Maintains the relationship between the connection and the user information. Also keeps the 
  * {@link ChannelHandlerContext} to send outbound messages in a thread safe way.
@@ -12,6 +18,10 @@ import io.netty.channel.ChannelHandlerContext;
 public class ChannelInfo {
     private ChannelHandlerContext mContext; // context of the first handler in the server pipeline
     private UserInfo mUserInfo;
+    // responses and notifications (commands or already encoded ByteBuf) waiting for the channel to be writable. Only
+    // accessed from the NIO thread of the channel
+    private final Queue<Object> mParked = new ArrayDeque<>();
+    private UnackedWindow mUnacked; // created on first use. Only accessed from the NIO thread of the channel
     
     public ChannelInfo(ChannelHandlerContext aContext) {
         mContext = aContext;
@@ -32,4 +42,56 @@ public class ChannelInfo {
     public boolean isUserLoggedIn() {
         return mUserInfo != null;
     }
+
+    /**
+     * Parks a response until the channel is writable again. Must be called from the NIO thread of the channel.
+     * @param aResponse response: a {@link Command} or an encoded command ({@link ByteBuf}).
+     */
+    public void parkUntilWritable(Object aResponse) {
+        mParked.add(aResponse);
+    }
+
+    /**
+     * Returns the next parked response. Must be called from the NIO thread of the channel.
+     * @return the next parked response or null if none.
+     */
+    public Object pollParked() {
+        return mParked.poll();
+    }
+
+    /**
+     * Removes a parked response, e.g. a notification given up before it could be written. Must be called from the
+     * NIO thread of the channel.
+     * @param aResponse response to remove (same instance).
+     * @return true if it was parked.
+     */
+    public boolean removeParked(Object aResponse) {
+        for (Iterator<Object> it = mParked.iterator(); it.hasNext();) {
+            if (it.next() == aResponse) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the chat messages sent to this channel and not acknowledged yet. Must be called from the NIO thread of
+     * the channel.
+     * @return the window of the channel.
+     */
+    public UnackedWindow getUnackedWindow() {
+        if (mUnacked == null) {
+            mUnacked = new UnackedWindow();
+        }
+        return mUnacked;
+    }
+
+    /**
+     * Returns the number of parked responses. Must be called from the NIO thread of the channel.
+     * @return the number of parked responses.
+     */
+    public int getParkedCount() {
+        return mParked.size();
+    }
 }
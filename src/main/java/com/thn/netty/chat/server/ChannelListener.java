@@ -8,16 +8,38 @@ import io.netty.util.AttributeKey;
 
 import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
 
 /**
- * Gets and keeps the reference to {@link ChannelInfo} when the connection is established.
+ * Gets and keeps the reference to {@link ChannelInfo} when the connection is established. Also counts the open
+ * connections of each event loop, to check how they are spread over the loops.
  * @author Thierry Herrmann
  */
 public class ChannelListener extends ChannelInboundHandlerAdapter {
         
     public static final AttributeKey<ChannelInfo> CHANNEL_INFO = AttributeKey.valueOf("channelInfo");
+    private static final Logger LOGGER = Logger.getLogger(ChannelListener.class.getName());
+    private final ConcurrentMap<String, AtomicInteger> mChannelsPerLoop;
+
+    /**
+     * Constructor.
+     * @param aChannelsPerLoop number of open connections by event loop thread name. Shared by all the connections.
+     */
+    public ChannelListener(ConcurrentMap<String, AtomicInteger> aChannelsPerLoop) {
+        mChannelsPerLoop = aChannelsPerLoop;
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext aCtx) throws Exception {
+        // called in the event loop thread of the channel
+        String loop = Thread.currentThread().getName();
+        getChannelCount(loop).incrementAndGet();
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("channel " + aCtx.channel().remoteAddress() + " on " + loop);
+        }
         // save the context of the last handler
         ChannelPipeline pipeline = aCtx.pipeline();
         ChannelHandlerContext context = null;
@@ -28,4 +50,22 @@ public class ChannelListener extends ChannelInboundHandlerAdapter {
         aCtx.channel().attr(CHANNEL_INFO).set(new ChannelInfo(context));
         super.channelActive(aCtx);
     }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext aCtx) throws Exception {
+        getChannelCount(Thread.currentThread().getName()).decrementAndGet();
+        super.channelInactive(aCtx);
+    }
+
+    private AtomicInteger getChannelCount(String aLoop) {
+        AtomicInteger count = mChannelsPerLoop.get(aLoop);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = mChannelsPerLoop.putIfAbsent(aLoop, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        return count;
+    }
 }
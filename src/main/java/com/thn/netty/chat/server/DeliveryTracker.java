@@ -0,0 +1,292 @@
+package com.thn.netty.chat.server;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+import org.apache.log4j.Logger;
+
+import com.thn.netty.chat.primitive.ChatMessageCmd;
+import com.thn.netty.chat.primitive.DeliveryAckCmd;
+import com.thn.netty.chat.primitive.DeliveryReceiptCmd;
+import com.thn.netty.chat.primitive.UserId;
+import com.thn.netty.chat.primitive.UserName;
+import com.thn.netty.chat.server.SlowConsumerGuard.Policy;
+import com.thn.netty.chat.server.store.StoreException;
+
+/**
+ * Delivers the chat messages to the online recipients at least once. A chat message notification stays in the
+ * {@link UnackedWindow} of each recipient connection until the client acknowledges it ({@link DeliveryAckCmd}). It
+ * is written again if not acknowledged within the ack timeout, unless the connection is not writable or has parked
+ * notifications (the previous copy may not even be written yet), and stored as an offline message once it was written
+ * too many times or when the connection closes before the acknowledgment. The first acknowledgment is forwarded to
+ * the sender as a {@link DeliveryReceiptCmd}.</p>
+ * The windows are only accessed from the NIO thread of their connection and each window has at most one timer, for
+ * its first entry: tracking a message costs one small entry and no lock.
+ * @author Thierry Herrmann
+ */
+public class DeliveryTracker {
+    private static final Logger LOGGER = Logger.getLogger(DeliveryTracker.class.getName());
+    private final UserManager mUserMgr;
+    private final SlowConsumerGuard mSlowConsumerGuard;
+    private final long mAckTimeoutNanos;
+    private final int mMaxAttempts;
+    private final int mMaxUnacked;
+    private final AtomicLong mTrackedCount = new AtomicLong();
+    private final AtomicLong mAckedCount = new AtomicLong();
+    private final AtomicLong mRedeliveredCount = new AtomicLong();
+    private final AtomicLong mSpilledCount = new AtomicLong();
+    private final AtomicLong mReceiptCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param aUserMgr user manager to store the messages not acknowledged.
+     * @param aSlowConsumerGuard used to write the notifications again.
+     * @param aAckTimeoutMillis time after which a notification not acknowledged is written again.
+     * @param aMaxAttempts number of times a notification is written before storing it as an offline message.
+     * @param aMaxUnacked maximum number of notifications not acknowledged per connection. Beyond that, the oldest
+     *        one is stored as an offline message.
+     */
+    public DeliveryTracker(UserManager aUserMgr, SlowConsumerGuard aSlowConsumerGuard, long aAckTimeoutMillis,
+                           int aMaxAttempts, int aMaxUnacked) {
+        mUserMgr = aUserMgr;
+        mSlowConsumerGuard = aSlowConsumerGuard;
+        mAckTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(aAckTimeoutMillis);
+        mMaxAttempts = aMaxAttempts;
+        mMaxUnacked = aMaxUnacked;
+    }
+
+    /**
+     * Returns a listener tracking a chat message notification sent to a connection once it is accepted by the
+     * {@link SlowConsumerGuard}.
+     * @param aSession connection of the recipient.
+     * @param aDelivery message being delivered.
+     * @param aNext listener notified after the tracking. Optional (can be null).
+     * @return the listener to give to the {@link SlowConsumerGuard}.
+     */
+    public SlowConsumerGuard.Listener track(final ChannelInfo aSession, final Delivery aDelivery,
+                                           final SlowConsumerGuard.Listener aNext) {
+        return new SlowConsumerGuard.Listener() {
+            @Override
+            public void accepted() {
+                track(aSession, aDelivery);
+                if (aNext != null) {
+                    aNext.accepted();
+                }
+            }
+            @Override
+            public void overflowed(Policy aPolicy) {
+                if (aNext != null) {
+                    aNext.overflowed(aPolicy);
+                }
+            }
+        };
+    }
+
+    private void track(ChannelInfo aSession, Delivery aDelivery) {
+        mTrackedCount.incrementAndGet();
+        aDelivery.mSessions.incrementAndGet();
+        UnackedWindow window = aSession.getUnackedWindow();
+        if (window.size() >= mMaxUnacked) {
+            // client not acknowledging: don't keep more in memory. Not written later if still parked
+            Delivery oldest = window.poll().mDelivery;
+            aSession.removeParked(oldest.mNotif);
+            giveUp(oldest);
+        }
+        window.add(new UnackedWindow.Entry(aDelivery, System.nanoTime() + mAckTimeoutNanos));
+        scheduleRedelivery(aSession, window);
+    }
+
+    /**
+     * Processes the acknowledgment of a notification. Must be called from the NIO thread of the connection.
+     * @param aSession connection acknowledging the notification.
+     * @param aAck acknowledgment.
+     */
+    public void acked(ChannelInfo aSession, DeliveryAckCmd aAck) {
+        UnackedWindow window = aSession.getUnackedWindow();
+        UnackedWindow.Entry entry = window.remove(aAck.getId());
+        if (entry == null) {
+            return; // acknowledged twice (redelivered), given up, or not a tracked notification
+        }
+        mAckedCount.incrementAndGet();
+        if (window.size() == 0 && window.mTimer != null) {
+            window.mTimer.cancel(false);
+            window.mTimer = null;
+        }
+        Delivery delivery = entry.mDelivery;
+        delivery.mSessions.decrementAndGet();
+        if (delivery.mDone.compareAndSet(false, true)) {
+            ChannelInfo sender = delivery.mSender;
+            if (sender.getContext().channel().isActive()) {
+                mReceiptCount.incrementAndGet();
+                sender.getContext().writeAndFlush(new DeliveryReceiptCmd(delivery.mSenderCmdId,
+                                                                         delivery.mRecipientName));
+            }
+        }
+    }
+
+    /**
+     * Stores the notifications not acknowledged by a closed connection. Must be called from the NIO thread of the
+     * connection.
+     * @param aSession closed connection.
+     */
+    public void sessionClosed(ChannelInfo aSession) {
+        UnackedWindow window = aSession.getUnackedWindow();
+        if (window.mTimer != null) {
+            window.mTimer.cancel(false);
+            window.mTimer = null;
+        }
+        UnackedWindow.Entry entry;
+        while ((entry = window.poll()) != null) {
+            giveUp(entry.mDelivery);
+        }
+    }
+
+    private void scheduleRedelivery(final ChannelInfo aSession, final UnackedWindow aWindow) {
+        UnackedWindow.Entry first = aWindow.peek();
+        if (aWindow.mTimer != null || first == null) {
+            return;
+        }
+        long delay = Math.max(0, first.mDeadlineNanos - System.nanoTime());
+        aWindow.mTimer = aSession.getContext().channel().eventLoop().schedule(new Runnable() {
+            @Override
+            public void run() {
+                aWindow.mTimer = null;
+                redeliver(aSession, aWindow);
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void redeliver(ChannelInfo aSession, UnackedWindow aWindow) {
+        if (!aSession.getContext().channel().isActive()) {
+            return; // sessionClosed() takes care of the window
+        }
+        // a stalled client wouldn't get the copy any sooner: only a duplicate to buffer
+        boolean stalled = !aSession.getContext().channel().isWritable() || aSession.getParkedCount() > 0;
+        long now = System.nanoTime();
+        UnackedWindow.Entry entry;
+        while ((entry = aWindow.peek()) != null && entry.mDeadlineNanos - now <= 0) {
+            aWindow.poll();
+            if (entry.mDelivery.mDone.get()) {
+                entry.mDelivery.mSessions.decrementAndGet(); // acknowledged by another session of the recipient
+                continue;
+            }
+            if (stalled) {
+                entry.mDeadlineNanos = now + mAckTimeoutNanos; // not an attempt: wait for the client to catch up
+                aWindow.add(entry);
+                continue;
+            }
+            if (entry.mAttempts >= mMaxAttempts) {
+                giveUp(entry.mDelivery);
+                continue;
+            }
+            entry.mAttempts++;
+            entry.mDeadlineNanos = now + mAckTimeoutNanos;
+            aWindow.add(entry); // last deadline: goes at the end
+            mRedeliveredCount.incrementAndGet();
+            mSlowConsumerGuard.sendInEventLoop(aSession, entry.mDelivery.mNotif, null);
+        }
+        scheduleRedelivery(aSession, aWindow);
+    }
+
+    /**
+     * A session stops delivering a message: the message is stored as an offline message if no other session of the
+     * recipient still delivers it and it wasn't acknowledged.
+     */
+    private void giveUp(Delivery aDelivery) {
+        if (aDelivery.mSessions.decrementAndGet() > 0 || !aDelivery.mDone.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            mUserMgr.insertMessage(aDelivery.mSenderId, aDelivery.mRecipientId,
+                                   aDelivery.mNotif.getMessageInfo().getMessage(), new OfflineMessageWriter.Listener() {
+                @Override
+                public void messageWritten() {
+                    mSpilledCount.incrementAndGet();
+                }
+                @Override
+                public void writeFailed(StoreException aCause) {
+                    LOGGER.error("unacknowledged message not stored: " + aCause);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("offline message writer saturated, unacknowledged message lost: " + aDelivery.mNotif);
+        }
+    }
+
+    public long getTrackedCount() {
+        return mTrackedCount.get();
+    }
+
+    public long getAckedCount() {
+        return mAckedCount.get();
+    }
+
+    public long getRedeliveredCount() {
+        return mRedeliveredCount.get();
+    }
+
+    public long getSpilledCount() {
+        return mSpilledCount.get();
+    }
+
+    public long getReceiptCount() {
+        return mReceiptCount.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .append("tracked", getTrackedCount())
+        .append("acked", getAckedCount())
+        .append("redelivered", getRedeliveredCount())
+        .append("spilled", getSpilledCount())
+        .append("receipts", getReceiptCount())
+        .toString();
+    }
+
+    /**
+     * A chat message being delivered to the sessions of its recipient.
+     */
+    public static class Delivery {
+        private final ChatMessageCmd mNotif;
+        private final ChannelInfo mSender;
+        private final int mSenderCmdId;
+        private final UserId mSenderId;
+        private final UserId mRecipientId;
+        private final UserName mRecipientName;
+        // sessions having the message in their window
+        private final AtomicInteger mSessions = new AtomicInteger();
+        // acknowledged or stored as an offline message
+        private final AtomicBoolean mDone = new AtomicBoolean();
+
+        /**
+         * Constructor.
+         * @param aNotif notification sent to the recipient.
+         * @param aSender connection of the sender, to send the receipt.
+         * @param aSenderCmdId id of the chat message command sent by the sender.
+         * @param aSenderId id of the sender.
+         * @param aRecipientId id of the recipient.
+         * @param aRecipientName name of the recipient.
+         */
+        public Delivery(ChatMessageCmd aNotif, ChannelInfo aSender, int aSenderCmdId, UserId aSenderId,
+                        UserId aRecipientId, UserName aRecipientName) {
+            mNotif = aNotif;
+            mSender = aSender;
+            mSenderCmdId = aSenderCmdId;
+            mSenderId = aSenderId;
+            mRecipientId = aRecipientId;
+            mRecipientName = aRecipientName;
+        }
+
+        public int getNotifId() {
+            return mNotif.getId();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.thn.netty.chat.server;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+/**
+ * Coalesces the flushes of a connection so that several messages are sent with one <code>write()</code> system
+ * call. The flushes requested while reading are done once the read is complete. The other ones (e.g. the responses
+ * and notifications written by the scheduler threads) are done by a single task executed once the tasks already
+ * queued in the event loop are done, i.e. once per event loop iteration. In both cases, the messages are flushed as
+ * soon as a maximum number of them is pending, or if the channel becomes non writable. Must be the first handler of
+ * the pipeline to see all the flushes.
+ * @author Thierry Herrmann
+ */
+public class FlushCoalescingHandler extends ChannelDuplexHandler {
+    private final int mMaxPendingMessages;
+    private final Metrics mMetrics;
+    // the next fields are only accessed from the event loop of the channel
+    private ChannelHandlerContext mCtx;
+    private boolean mReadInProgress;
+    private boolean mFlushRequested;
+    private boolean mFlushScheduled;
+    private int mPendingMessages;
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            if (mFlushRequested && !mReadInProgress) {
+                flushNow(mCtx);
+            }
+        }
+    };
+
+    /**
+     * Constructor.
+     * @param aMaxPendingMessages number of written messages after which a requested flush is done right away.
+     * @param aMetrics metrics, usually shared by all the connections.
+     */
+    public FlushCoalescingHandler(int aMaxPendingMessages, Metrics aMetrics) {
+        mMaxPendingMessages = aMaxPendingMessages;
+        mMetrics = aMetrics;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext aCtx) throws Exception {
+        mCtx = aCtx;
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext aCtx) throws Exception {
+        flushIfRequested(aCtx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext aCtx, Object aMsg) throws Exception {
+        mReadInProgress = true;
+        aCtx.fireChannelRead(aMsg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext aCtx) throws Exception {
+        // let the next handlers write and flush their responses before flushing them all
+        aCtx.fireChannelReadComplete();
+        mReadInProgress = false;
+        flushIfRequested(aCtx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext aCtx) throws Exception {
+        if (!aCtx.channel().isWritable()) {
+            // the messages must reach the socket to make the channel writable again
+            flushIfRequested(aCtx);
+        }
+        aCtx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void write(ChannelHandlerContext aCtx, Object aMsg, ChannelPromise aPromise) throws Exception {
+        mPendingMessages++;
+        aCtx.write(aMsg, aPromise);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext aCtx) throws Exception {
+        mFlushRequested = true;
+        if (mPendingMessages >= mMaxPendingMessages) {
+            flushNow(aCtx);
+        } else if (!mReadInProgress && !mFlushScheduled) {
+            mFlushScheduled = true;
+            aCtx.channel().eventLoop().execute(mFlushTask);
+        }
+    }
+
+    @Override
+    public void close(ChannelHandlerContext aCtx, ChannelPromise aPromise) throws Exception {
+        flushIfRequested(aCtx);
+        aCtx.close(aPromise);
+    }
+
+    @Override
+    public void disconnect(ChannelHandlerContext aCtx, ChannelPromise aPromise) throws Exception {
+        flushIfRequested(aCtx);
+        aCtx.disconnect(aPromise);
+    }
+
+    private void flushIfRequested(ChannelHandlerContext aCtx) {
+        if (mFlushRequested) {
+            flushNow(aCtx);
+        }
+    }
+
+    private void flushNow(ChannelHandlerContext aCtx) {
+        mMetrics.mFlushCount.incrementAndGet();
+        mMetrics.mMessageCount.addAndGet(mPendingMessages);
+        mPendingMessages = 0;
+        mFlushRequested = false;
+        aCtx.flush();
+    }
+
+    /**
+     * Number of flushes and of flushed messages, to see how many messages are sent per flush.
+     */
+    public static class Metrics {
+        private final AtomicLong mFlushCount = new AtomicLong();
+        private final AtomicLong mMessageCount = new AtomicLong();
+
+        public long getFlushCount() {
+            return mFlushCount.get();
+        }
+
+        public long getMessageCount() {
+            return mMessageCount.get();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString()
+        {
+            long flushes = getFlushCount();
+            long messages = getMessageCount();
+            return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+            .append("flushes", flushes)
+            .append("messages", messages)
+            .append("avgMessagesPerFlush", flushes == 0 ? 0 : (double) messages / flushes)
+            .toString();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.thn.netty.chat.server;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+/**
+ * Executor made of lanes, each one a single thread {@link BoundedExecutor}. A task is executed in the lane selected
+ * by the hash of its key: the tasks with the same key (e.g. the commands of a user) run one after the other in
+ * submission order while the tasks with different keys run in parallel in the other lanes.
+ * @author Thierry Herrmann
+ */
+public class KeyedSerialExecutor {
+    private final BoundedExecutor[] mLanes;
+
+    /**
+     * Constructor.
+     * @param aName name of the executor. Used to name the threads.
+     * @param aLanes number of lanes, i.e. of threads.
+     * @param aQueueCapacity maximum number of tasks waiting in the lanes. Shared equally by the lanes.
+     */
+    public KeyedSerialExecutor(String aName, int aLanes, int aQueueCapacity) {
+        mLanes = new BoundedExecutor[aLanes];
+        int laneCapacity = Math.max(1, aQueueCapacity / aLanes);
+        for (int i = 0; i < aLanes; i++) {
+            mLanes[i] = new BoundedExecutor(aName + "-" + i, 1, laneCapacity);
+        }
+    }
+
+    /**
+     * Executes a task after the tasks previously submitted with an equal key.
+     * @param aKey key. Null keys all go in the same lane.
+     * @param aTask task.
+     * @throws RejectedExecutionException if the queue of the lane is full or the executor is shut down.
+     */
+    public void execute(Object aKey, Runnable aTask) {
+        mLanes[laneIndex(aKey)].execute(aTask);
+    }
+
+    private int laneIndex(Object aKey) {
+        if (aKey == null) {
+            return 0;
+        }
+        int hash = aKey.hashCode();
+        hash ^= hash >>> 16; // spread the high bits
+        return (hash & Integer.MAX_VALUE) % mLanes.length;
+    }
+
+    /**
+     * Stops accepting tasks. The already submitted tasks are still executed.
+     */
+    public void shutdown() {
+        for (BoundedExecutor lane : mLanes) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * Stops all the lanes and interrupts the running tasks.
+     */
+    public void shutdownNow() {
+        for (BoundedExecutor lane : mLanes) {
+            lane.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for the termination of all the lanes after a shutdown.
+     * @param aTimeout maximum time to wait.
+     * @param aUnit unit of the timeout.
+     * @return true if all lanes terminated, false if the timeout elapsed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitTermination(long aTimeout, TimeUnit aUnit) throws InterruptedException {
+        long deadline = System.nanoTime() + aUnit.toNanos(aTimeout);
+        for (BoundedExecutor lane : mLanes) {
+            if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        int queueDepth = 0;
+        int maxQueueDepth = 0;
+        long executed = 0;
+        long rejected = 0;
+        long waitMicros = 0;
+        long runMicros = 0;
+        for (BoundedExecutor lane : mLanes) {
+            int depth = lane.getQueueDepth();
+            queueDepth += depth;
+            maxQueueDepth = Math.max(maxQueueDepth, depth);
+            long laneExecuted = lane.getExecutedCount();
+            executed += laneExecuted;
+            rejected += lane.getRejectedCount();
+            waitMicros += lane.getAverageWaitMicros() * laneExecuted;
+            runMicros += lane.getAverageRunMicros() * laneExecuted;
+        }
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .append("lanes", mLanes.length)
+        .append("queueDepth", queueDepth)
+        .append("maxLaneQueueDepth", maxQueueDepth)
+        .append("executed", executed)
+        .append("rejected", rejected)
+        .append("avgWaitMicros", executed == 0 ? 0 : waitMicros / executed)
+        .append("avgRunMicros", executed == 0 ? 0 : runMicros / executed)
+        .toString();
+    }
+}
@@ -0,0 +1,196 @@
+package com.thn.netty.chat.server;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+import org.apache.log4j.Logger;
+
+import com.thn.netty.chat.server.store.MessageStore;
+import com.thn.netty.chat.server.store.OfflineMessage;
+import com.thn.netty.chat.server.store.StoreException;
+
+/**
+ * Writes the offline messages of all the senders to the {@link MessageStore} by batches, each one inserted in a
+ * single transaction (group commit). A batch is written when it reaches its maximum size or when its first message waited
+ * for the maximum delay. The messages are written in the order they were submitted and the listener of each message
+ * is notified once its batch is committed.
+ * @author Thierry Herrmann
+ */
+public class OfflineMessageWriter {
+    private static final Logger LOGGER = Logger.getLogger(OfflineMessageWriter.class.getName());
+    private static final long STOP_CHECK_MILLIS = 100;
+
+    /**
+     * Notified in the writer thread when the batch of a message is committed or failed.
+     */
+    public interface Listener {
+        void messageWritten();
+        void writeFailed(StoreException aCause);
+    }
+
+    private final MessageStore mStore;
+    private final int mMaxBatchSize;
+    private final long mMaxDelayNanos;
+    private final BlockingQueue<PendingMessage> mQueue;
+    private final Thread mThread;
+    private volatile boolean mStopped;
+    private final AtomicLong mBatchCount = new AtomicLong();
+    private final AtomicLong mMessageCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+
+    /**
+     * Constructor. Starts the writer thread.
+     * @param aStore store to write the messages to.
+     * @param aMaxBatchSize maximum number of messages per batch.
+     * @param aMaxDelayMillis maximum time to wait for more messages before writing a batch.
+     * @param aQueueCapacity maximum number of messages waiting to be written.
+     */
+    public OfflineMessageWriter(MessageStore aStore, int aMaxBatchSize, long aMaxDelayMillis, int aQueueCapacity) {
+        mStore = aStore;
+        mMaxBatchSize = aMaxBatchSize;
+        mMaxDelayNanos = TimeUnit.MILLISECONDS.toNanos(aMaxDelayMillis);
+        mQueue = new ArrayBlockingQueue<>(aQueueCapacity);
+        mThread = new DefaultThreadFactory("chat-msg-writer", true).newThread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        });
+        mThread.start();
+    }
+
+    /**
+     * Submits a message to write.
+     * @param aMessage message.
+     * @param aListener notified once the message is committed or failed.
+     * @throws RejectedExecutionException if too many messages are waiting to be written or if the writer is stopped.
+     */
+    public void write(OfflineMessage aMessage, Listener aListener) {
+        if (mStopped || !mQueue.offer(new PendingMessage(aMessage, aListener))) {
+            throw new RejectedExecutionException("offline message not accepted: " + aMessage);
+        }
+    }
+
+    /**
+     * Stops the writer after writing the messages already submitted.
+     * @param aTimeoutMillis maximum time to wait for the writer thread to finish.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void shutdown(long aTimeoutMillis) throws InterruptedException {
+        mStopped = true;
+        mThread.join(aTimeoutMillis);
+    }
+
+    private void writeLoop() {
+        List<PendingMessage> batch = new ArrayList<>(mMaxBatchSize);
+        while (!mStopped || !mQueue.isEmpty()) {
+            try {
+                PendingMessage first = mQueue.poll(STOP_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + mMaxDelayNanos;
+                while (batch.size() < mMaxBatchSize) {
+                    mQueue.drainTo(batch, mMaxBatchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() == mMaxBatchSize || remaining <= 0 || mStopped) {
+                        break;
+                    }
+                    PendingMessage next = mQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                mStopped = true; // write what was already taken and the remaining messages, then stop
+            }
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingMessage> aBatch) {
+        List<OfflineMessage> msgs = new ArrayList<>(aBatch.size());
+        for (PendingMessage pending : aBatch) {
+            msgs.add(pending.mMessage);
+        }
+        StoreException error = null;
+        try {
+            mStore.insertMessages(msgs);
+            mBatchCount.incrementAndGet();
+            mMessageCount.addAndGet(msgs.size());
+        } catch (StoreException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new StoreException("Could not save batch of " + msgs.size() + " messages", e);
+        }
+        if (error != null) {
+            mFailedCount.addAndGet(msgs.size());
+            LOGGER.error("offline messages batch failed", error);
+        }
+        for (PendingMessage pending : aBatch) {
+            try {
+                if (error == null) {
+                    pending.mListener.messageWritten();
+                } else {
+                    pending.mListener.writeFailed(error);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error("offline message listener failed", e);
+            }
+        }
+    }
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public long getBatchCount() {
+        return mBatchCount.get();
+    }
+
+    public long getMessageCount() {
+        return mMessageCount.get();
+    }
+
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        long batches = getBatchCount();
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .append("queueDepth", getQueueDepth())
+        .append("batches", batches)
+        .append("messages", getMessageCount())
+        .append("avgBatchSize", batches == 0 ? 0 : getMessageCount() / batches)
+        .append("failed", getFailedCount())
+        .toString();
+    }
+
+    private static class PendingMessage {
+        private final OfflineMessage mMessage;
+        private final Listener mListener;
+
+        PendingMessage(OfflineMessage aMessage, Listener aListener) {
+            mMessage = aMessage;
+            mListener = aListener;
+        }
+    }
+}
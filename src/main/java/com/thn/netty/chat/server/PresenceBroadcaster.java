@@ -0,0 +1,242 @@
+package com.thn.netty.chat.server;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+import org.apache.log4j.Logger;
+
+import com.thn.netty.chat.primitive.PresenceCmd;
+import com.thn.netty.chat.primitive.UserId;
+import com.thn.netty.chat.primitive.UserName;
+import com.thn.netty.chat.user.ContactInfo;
+import com.thn.netty.chat.user.ContactState;
+import com.thn.netty.chat.user.UserInfo;
+import com.thn.netty.chat.util.DefaultIdGenerator;
+import com.thn.netty.chat.util.IdGenerator;
+
+/**
+ * Pushes a {@link PresenceCmd} to the online contacts of the users who come online or go offline, so that the
+ * clients don't have to poll. The changes are collected and broadcast once per window: a user logging in and out
+ * within the same window (flapping) is not broadcast at all. Each session gets at most one notification per window
+ * with all the changes of its contacts, and the notifications of the sessions of the same event loop are written
+ * by a single task of that loop. A new session first gets the contacts online as of the last broadcast, so that the
+ * next broadcasts bring it up to date. The notifications go through the {@link SlowConsumerGuard}.
+ * @author Thierry Herrmann
+ */
+public class PresenceBroadcaster implements UserManager.PresenceListener {
+    private static final Logger LOGGER = Logger.getLogger(PresenceBroadcaster.class.getName());
+    private final UserManager mUserMgr;
+    private final SlowConsumerGuard mSlowConsumerGuard;
+    private final IdGenerator mNotifIdGen = DefaultIdGenerator.getInstance();
+    // latest change of each user since the last broadcast
+    private final ConcurrentMap<UserId, Change> mPendingChanges = new ConcurrentHashMap<>();
+    // users last broadcast as online. Only accessed by the broadcasting thread
+    private final Map<UserId, Boolean> mBroadcastOnline = new HashMap<>();
+    private final ScheduledExecutorService mExecutor;
+    private final AtomicLong mChangeCount = new AtomicLong();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+    private final AtomicLong mBroadcastCount = new AtomicLong();
+    private final AtomicLong mNotifCount = new AtomicLong();
+    private final AtomicLong mLoopTaskCount = new AtomicLong();
+    private final AtomicLong mSnapshotCount = new AtomicLong();
+
+    /**
+     * Constructor. Starts broadcasting the changes every window.
+     * @param aUserMgr user manager to get the contacts and their sessions.
+     * @param aSlowConsumerGuard used to send the notifications.
+     * @param aWindowMillis window during which the changes are collected. 0 to not start broadcasting (for tests).
+     */
+    public PresenceBroadcaster(UserManager aUserMgr, SlowConsumerGuard aSlowConsumerGuard, long aWindowMillis) {
+        mUserMgr = aUserMgr;
+        mSlowConsumerGuard = aSlowConsumerGuard;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("chat-presence", true));
+        if (aWindowMillis > 0) {
+            mExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        broadcast();
+                    } catch (RuntimeException e) {
+                        LOGGER.error("presence broadcast failed", e); // keep broadcasting the next windows
+                    }
+                }
+            }, aWindowMillis, aWindowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void presenceChanged(UserInfo aUser, boolean aOnline) {
+        mChangeCount.incrementAndGet();
+        mPendingChanges.put(aUser.getId(), new Change(aUser.getName(), aOnline));
+    }
+
+    @Override
+    public void sessionStarted(final UserInfo aUser, final ChannelInfo aSession) {
+        // in the broadcasting thread to be consistent with the changes broadcast
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sendSnapshot(aUser, aSession);
+            }
+        });
+    }
+
+    /**
+     * Sends to a new session the contacts of its user that were online at the last broadcast. Called by the
+     * broadcasting thread.
+     */
+    void sendSnapshot(UserInfo aUser, ChannelInfo aSession) {
+        List<UserName> online = new ArrayList<>();
+        for (ContactInfo contact : aUser.getContacts()) {
+            UserInfo contactUser = contact.getContact();
+            if (contact.getState() == ContactState.CONTACT && mBroadcastOnline.containsKey(contactUser.getId())) {
+                online.add(contactUser.getName());
+            }
+        }
+        mSnapshotCount.incrementAndGet();
+        mSlowConsumerGuard.send(aSession, new PresenceCmd(mNotifIdGen.nextId(), online, new ArrayList<UserName>(0)), 
+                                null);
+    }
+
+    /**
+     * Broadcasts the changes collected since the last call. Called every window by the broadcasting thread.
+     */
+    void broadcast() {
+        // presence changes of the contacts of each session, grouped by event loop
+        Map<EventLoop, Map<ChannelInfo, PresenceChanges>> loops = new LinkedHashMap<>();
+        for (Iterator<Map.Entry<UserId, Change>> iter = mPendingChanges.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry<UserId, Change> entry = iter.next();
+            UserId userId = entry.getKey();
+            Change change = entry.getValue();
+            mPendingChanges.remove(userId, change); // keep a change made meanwhile for the next window
+            boolean wasOnline = mBroadcastOnline.containsKey(userId);
+            if (change.mOnline == wasOnline) {
+                mCoalescedCount.incrementAndGet(); // came back to the state last broadcast
+                continue;
+            }
+            if (change.mOnline) {
+                mBroadcastOnline.put(userId, Boolean.TRUE);
+            } else {
+                mBroadcastOnline.remove(userId);
+            }
+            mBroadcastCount.incrementAndGet();
+            addToContactSessions(change, loops);
+        }
+        for (Map.Entry<EventLoop, Map<ChannelInfo, PresenceChanges>> entry : loops.entrySet()) {
+            final Map<ChannelInfo, PresenceChanges> sessions = entry.getValue();
+            mLoopTaskCount.incrementAndGet();
+            entry.getKey().execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (Map.Entry<ChannelInfo, PresenceChanges> session : sessions.entrySet()) {
+                        PresenceChanges changes = session.getValue();
+                        PresenceCmd notif = new PresenceCmd(mNotifIdGen.nextId(), changes.mOnline, changes.mOffline);
+                        mSlowConsumerGuard.sendInEventLoop(session.getKey(), notif, null);
+                    }
+                }
+            });
+        }
+    }
+
+    private void addToContactSessions(Change aChange, Map<EventLoop, Map<ChannelInfo, PresenceChanges>> aLoops) {
+        UserInfo user = mUserMgr.getUserByName(aChange.mName);
+        if (user == null) {
+            return; // deleted meanwhile
+        }
+        for (ContactInfo contact : user.getContacts()) {
+            if (contact.getState() != ContactState.CONTACT) {
+                continue;
+            }
+            for (ChannelInfo session : mUserMgr.getLoggedInUserChannels(contact.getContact().getId())) {
+                EventLoop loop = session.getContext().channel().eventLoop();
+                Map<ChannelInfo, PresenceChanges> sessions = aLoops.get(loop);
+                if (sessions == null) {
+                    sessions = new LinkedHashMap<>();
+                    aLoops.put(loop, sessions);
+                }
+                PresenceChanges changes = sessions.get(session);
+                if (changes == null) {
+                    changes = new PresenceChanges();
+                    sessions.put(session, changes);
+                    mNotifCount.incrementAndGet();
+                }
+                (aChange.mOnline ? changes.mOnline : changes.mOffline).add(aChange.mName);
+            }
+        }
+    }
+
+    /**
+     * Stops broadcasting.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    public long getChangeCount() {
+        return mChangeCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    public long getBroadcastCount() {
+        return mBroadcastCount.get();
+    }
+
+    public long getNotifCount() {
+        return mNotifCount.get();
+    }
+
+    public long getLoopTaskCount() {
+        return mLoopTaskCount.get();
+    }
+
+    public long getSnapshotCount() {
+        return mSnapshotCount.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .append("changes", getChangeCount())
+        .append("coalesced", getCoalescedCount())
+        .append("broadcasts", getBroadcastCount())
+        .append("notifs", getNotifCount())
+        .append("loopTasks", getLoopTaskCount())
+        .append("snapshots", getSnapshotCount())
+        .toString();
+    }
+
+    private static class Change {
+        private final UserName mName;
+        private final boolean mOnline;
+
+        Change(UserName aName, boolean aOnline) {
+            mName = aName;
+            mOnline = aOnline;
+        }
+    }
+
+    private static class PresenceChanges {
+        private final List<UserName> mOnline = new ArrayList<>(1);
+        private final List<UserName> mOffline = new ArrayList<>(1);
+    }
+}
@@ -0,0 +1,272 @@
+package com.thn.netty.chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+import com.thn.netty.chat.primitive.UserId;
+
+/**
+ * Sessions of the logged in users. A user can have several sessions (connections) at the same time. The users are
+ * spread over a fixed number of shards by their numeric id, whatever the event loop of their sessions, so that
+ * logins and logouts of different users rarely contend. Each shard maps the ids to the sessions with an open
+ * addressing table of primitive ids: looking the sessions up, e.g. to fan a message out, takes the uncontended lock
+ * of one shard and allocates nothing. The sessions of a user are kept in an array replaced on each change, so it
+ * can be used after the lock is released. The counts don't block the logins.
+ * @author Thierry Herrmann
+ */
+public class PresenceRegistry {
+    private static final ChannelInfo[] NO_SESSION = new ChannelInfo[0];
+    private final Shard[] mShards;
+    private final int mShardMask;
+
+    /**
+     * Constructor.
+     * @param aShardCount number of shards. Rounded up to a power of 2.
+     */
+    public PresenceRegistry(int aShardCount) {
+        int count = Integer.highestOneBit(Math.max(1, aShardCount - 1)) << 1;
+        mShards = new Shard[aShardCount <= 1 ? 1 : count];
+        for (int i = 0; i < mShards.length; i++) {
+            mShards[i] = new Shard();
+        }
+        mShardMask = mShards.length - 1;
+    }
+
+    /**
+     * Adds a session.
+     * @param aUserId user of the session.
+     * @param aSession session.
+     * @return true if it is the first session of the user, i.e. the user just came online.
+     */
+    public boolean add(UserId aUserId, ChannelInfo aSession) {
+        long userId = aUserId.getId();
+        Shard shard = shardOf(userId);
+        synchronized (shard) {
+            ChannelInfo[] sessions = shard.get(userId);
+            if (sessions == null) {
+                shard.put(userId, new ChannelInfo[] {aSession});
+                shard.mSessionCount++;
+                return true;
+            }
+            for (ChannelInfo session : sessions) {
+                if (session == aSession) {
+                    return false;
+                }
+            }
+            ChannelInfo[] newSessions = Arrays.copyOf(sessions, sessions.length + 1);
+            newSessions[sessions.length] = aSession;
+            shard.put(userId, newSessions);
+            shard.mSessionCount++;
+            return false;
+        }
+    }
+
+    /**
+     * Removes a session.
+     * @param aUserId user of the session.
+     * @param aSession session.
+     * @return true if it was the last session of the user, i.e. the user just went offline.
+     */
+    public boolean remove(UserId aUserId, ChannelInfo aSession) {
+        long userId = aUserId.getId();
+        Shard shard = shardOf(userId);
+        synchronized (shard) {
+            ChannelInfo[] sessions = shard.get(userId);
+            if (sessions == null) {
+                return false;
+            }
+            int index = -1;
+            for (int i = 0; i < sessions.length && index < 0; i++) {
+                if (sessions[i] == aSession) {
+                    index = i;
+                }
+            }
+            if (index < 0) {
+                return false;
+            }
+            shard.mSessionCount--;
+            if (sessions.length == 1) {
+                shard.remove(userId);
+                return true;
+            }
+            ChannelInfo[] newSessions = new ChannelInfo[sessions.length - 1];
+            System.arraycopy(sessions, 0, newSessions, 0, index);
+            System.arraycopy(sessions, index + 1, newSessions, index, newSessions.length - index);
+            shard.put(userId, newSessions);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the sessions of a user.
+     * @param aUserId user.
+     * @return the sessions, empty if the user is offline. Must not be modified.
+     */
+    public ChannelInfo[] getSessions(UserId aUserId) {
+        long userId = aUserId.getId();
+        Shard shard = shardOf(userId);
+        ChannelInfo[] sessions;
+        synchronized (shard) {
+            sessions = shard.get(userId);
+        }
+        return sessions == null ? NO_SESSION : sessions;
+    }
+
+    public boolean isOnline(UserId aUserId) {
+        long userId = aUserId.getId();
+        Shard shard = shardOf(userId);
+        synchronized (shard) {
+            return shard.get(userId) != null;
+        }
+    }
+
+    /**
+     * Returns the number of online users. Not atomic over the shards.
+     * @return the count.
+     */
+    public int getOnlineUserCount() {
+        int count = 0;
+        for (Shard shard : mShards) {
+            count += shard.mUserCount;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of sessions. Not atomic over the shards.
+     * @return the count.
+     */
+    public int getSessionCount() {
+        int count = 0;
+        for (Shard shard : mShards) {
+            count += shard.mSessionCount;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the online users. Not atomic over the shards: the users logging in or out meanwhile may or may not be
+     * included.
+     * @return the users.
+     */
+    public List<UserId> getOnlineUsers() {
+        List<UserId> users = new ArrayList<>(getOnlineUserCount());
+        for (Shard shard : mShards) {
+            synchronized (shard) {
+                for (int i = 0; i < shard.mKeys.length; i++) {
+                    if (shard.mValues[i] != null) {
+                        users.add(new UserId(shard.mKeys[i]));
+                    }
+                }
+            }
+        }
+        return users;
+    }
+
+    private Shard shardOf(long aUserId) {
+        int hash = (int) (aUserId ^ (aUserId >>> 32));
+        hash ^= (hash >>> 16);
+        return mShards[(hash * 0x9E3779B9) >>> 16 & mShardMask];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .append("shards", mShards.length)
+        .append("onlineUsers", getOnlineUserCount())
+        .append("sessions", getSessionCount())
+        .toString();
+    }
+
+    /**
+     * Users whose ids fall in the same shard: a linear probing table of the user ids, a slot being free when it has
+     * no sessions. Accessed while synchronized on the shard, except the counts.
+     */
+    private static class Shard {
+        private static final int INITIAL_CAPACITY = 64;
+        private long[] mKeys = new long[INITIAL_CAPACITY];
+        private ChannelInfo[][] mValues = new ChannelInfo[INITIAL_CAPACITY][];
+        private volatile int mUserCount;
+        private volatile int mSessionCount;
+
+        ChannelInfo[] get(long aUserId) {
+            int mask = mKeys.length - 1;
+            for (int i = slot(aUserId, mask); mValues[i] != null; i = (i + 1) & mask) {
+                if (mKeys[i] == aUserId) {
+                    return mValues[i];
+                }
+            }
+            return null;
+        }
+
+        void put(long aUserId, ChannelInfo[] aSessions) {
+            int mask = mKeys.length - 1;
+            int i = slot(aUserId, mask);
+            for (; mValues[i] != null; i = (i + 1) & mask) {
+                if (mKeys[i] == aUserId) {
+                    mValues[i] = aSessions;
+                    return;
+                }
+            }
+            mKeys[i] = aUserId;
+            mValues[i] = aSessions;
+            mUserCount++;
+            if (mUserCount * 2 > mKeys.length) {
+                resize(mKeys.length * 2); // at most half full: short probes
+            }
+        }
+
+        void remove(long aUserId) {
+            int mask = mKeys.length - 1;
+            int i = slot(aUserId, mask);
+            while (mKeys[i] != aUserId || mValues[i] == null) {
+                if (mValues[i] == null) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            mValues[i] = null;
+            mUserCount--;
+            // shift back the following entries of the probe sequence over the freed slot: no tombstones
+            for (int j = (i + 1) & mask; mValues[j] != null; j = (j + 1) & mask) {
+                int home = slot(mKeys[j], mask);
+                boolean between = i <= j ? i < home && home <= j : i < home || home <= j;
+                if (!between) {
+                    mKeys[i] = mKeys[j];
+                    mValues[i] = mValues[j];
+                    mValues[j] = null;
+                    i = j;
+                }
+            }
+        }
+
+        private void resize(int aCapacity) {
+            long[] keys = mKeys;
+            ChannelInfo[][] values = mValues;
+            mKeys = new long[aCapacity];
+            mValues = new ChannelInfo[aCapacity][];
+            int mask = aCapacity - 1;
+            for (int i = 0; i < keys.length; i++) {
+                if (values[i] != null) {
+                    int j = slot(keys[i], mask);
+                    while (mValues[j] != null) {
+                        j = (j + 1) & mask;
+                    }
+                    mKeys[j] = keys[i];
+                    mValues[j] = values[i];
+                }
+            }
+        }
+
+        private static int slot(long aUserId, int aMask) {
+            long hash = aUserId * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & aMask;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.thn.netty.chat.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.channel.EventLoop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+import org.apache.log4j.Logger;
+
+import com.thn.netty.chat.codec.CommandCodec;
+import com.thn.netty.chat.primitive.RoomPostCmd;
+import com.thn.netty.chat.primitive.UserId;
+import com.thn.netty.chat.server.SlowConsumerGuard.Policy;
+import com.thn.netty.chat.server.store.StoreException;
+import com.thn.netty.chat.user.UserInfo;
+import com.thn.netty.chat.util.DefaultIdGenerator;
+import com.thn.netty.chat.util.IdGenerator;
+
+/**
+ * Keeps the members of the chat rooms and fans the posted messages out to them. A posted message is encoded once
+ * into a reference counted buffer: each session of the online members gets a duplicate of it (sharing the bytes),
+ * written by a single task per event loop, so that the cost of a post doesn't grow with the encoding of every
+ * recipient. The offline members get the message as an offline message. The rooms are only kept in memory.
+ * @author Thierry Herrmann
+ */
+public class RoomManager {
+    private static final Logger LOGGER = Logger.getLogger(RoomManager.class.getName());
+    private static final UserInfo[] NO_MEMBERS = new UserInfo[0];
+    private final UserManager mUserMgr;
+    private final SlowConsumerGuard mSlowConsumerGuard;
+    private final IdGenerator mNotifIdGen = DefaultIdGenerator.getInstance();
+    private final ConcurrentMap<String, Room> mRooms = new ConcurrentHashMap<>();
+    private final AtomicLong mPostCount = new AtomicLong();
+    private final AtomicLong mDeliveredCount = new AtomicLong();
+    private final AtomicLong mOfflineCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mLoopTaskCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param aUserMgr user manager to get the sessions of the members and store the offline messages.
+     * @param aSlowConsumerGuard used to send the messages to the online members.
+     */
+    public RoomManager(UserManager aUserMgr, SlowConsumerGuard aSlowConsumerGuard) {
+        mUserMgr = aUserMgr;
+        mSlowConsumerGuard = aSlowConsumerGuard;
+    }
+
+    /**
+     * Creates a room. Its creator becomes its first member.
+     * @param aRoomName name of the room.
+     * @param aCreator creator.
+     * @return false if the room already exists.
+     */
+    public boolean create(String aRoomName, UserInfo aCreator) {
+        Room room = new Room(aRoomName);
+        room.mMembers = new UserInfo[] {aCreator};
+        return mRooms.putIfAbsent(aRoomName, room) == null;
+    }
+
+    /**
+     * Adds a member to a room.
+     * @param aRoomName name of the room.
+     * @param aUser new member.
+     * @return false if the room doesn't exist.
+     */
+    public boolean join(String aRoomName, UserInfo aUser) {
+        Room room = mRooms.get(aRoomName);
+        if (room == null) {
+            return false;
+        }
+        synchronized (room) {
+            if (room.mDeleted) {
+                return false; // last member left meanwhile
+            }
+            if (indexOf(room.mMembers, aUser.getId()) < 0) {
+                UserInfo[] members = Arrays.copyOf(room.mMembers, room.mMembers.length + 1);
+                members[members.length - 1] = aUser;
+                room.mMembers = members;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Removes a member from a room. The room is deleted when its last member leaves.
+     * @param aRoomName name of the room.
+     * @param aUser member.
+     * @return false if the user wasn't a member of the room.
+     */
+    public boolean leave(String aRoomName, UserInfo aUser) {
+        Room room = mRooms.get(aRoomName);
+        if (room == null) {
+            return false;
+        }
+        synchronized (room) {
+            int idx = indexOf(room.mMembers, aUser.getId());
+            if (idx < 0) {
+                return false;
+            }
+            UserInfo[] members = new UserInfo[room.mMembers.length - 1];
+            System.arraycopy(room.mMembers, 0, members, 0, idx);
+            System.arraycopy(room.mMembers, idx + 1, members, idx, members.length - idx);
+            room.mMembers = members;
+            if (members.length == 0) {
+                room.mDeleted = true;
+                mRooms.remove(aRoomName, room);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the members of a room.
+     * @param aRoomName name of the room.
+     * @return the members. Empty if the room doesn't exist.
+     */
+    public UserInfo[] getMembers(String aRoomName) {
+        Room room = mRooms.get(aRoomName);
+        return room == null ? NO_MEMBERS : room.mMembers;
+    }
+
+    /**
+     * Posts a message to the other members of a room and to the other sessions of the sender. Doesn't block: the
+     * messages are written by the event loops of the sessions and the offline messages by the offline message
+     * writer.
+     * @param aRoomName name of the room.
+     * @param aSender session of the member posting the message.
+     * @param aMessage message.
+     * @param aAlloc allocator of the encoded message.
+     * @return false if the sender isn't a member of the room.
+     * @throws Exception if the message can't be encoded.
+     */
+    public boolean post(String aRoomName, ChannelInfo aSender, String aMessage, ByteBufAllocator aAlloc)
+        throws Exception {
+        UserInfo sender = aSender.getUserInfo();
+        UserInfo[] members = getMembers(aRoomName);
+        if (indexOf(members, sender.getId()) < 0) {
+            return false;
+        }
+        mPostCount.incrementAndGet();
+        RoomPostCmd notif = new RoomPostCmd(mNotifIdGen.nextId(), aRoomName, sender.getName(), aMessage);
+        // sessions of the online members grouped by event loop
+        Map<EventLoop, List<Delivery>> loops = new LinkedHashMap<>();
+        for (UserInfo member : members) {
+            ChannelInfo[] sessions = mUserMgr.getLoggedInUserChannels(member.getId());
+            MemberListener listener = new MemberListener(aRoomName, sender, member, aMessage, sessions.length);
+            boolean online = false;
+            for (ChannelInfo session : sessions) {
+                if (session == aSender) {
+                    listener.mRemaining.decrementAndGet(); // the sender doesn't get its own message
+                    continue;
+                }
+                EventLoop loop = session.getContext().channel().eventLoop();
+                List<Delivery> deliveries = loops.get(loop);
+                if (deliveries == null) {
+                    deliveries = new ArrayList<>();
+                    loops.put(loop, deliveries);
+                }
+                deliveries.add(new Delivery(session, listener));
+                online = true;
+            }
+            if (!online && !member.getId().equals(sender.getId())) {
+                storeOfflineMessage(aRoomName, sender, member, aMessage);
+            }
+        }
+        if (loops.isEmpty()) {
+            return true;
+        }
+        final ByteBuf encoded = CommandCodec.encode(aAlloc, notif);
+        try {
+            for (Map.Entry<EventLoop, List<Delivery>> entry : loops.entrySet()) {
+                final List<Delivery> deliveries = entry.getValue();
+                mLoopTaskCount.incrementAndGet();
+                encoded.retain(); // released by the task
+                try {
+                    entry.getKey().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                for (Delivery delivery : deliveries) {
+                                    // each write gets its own reader index and reference on the shared bytes
+                                    mSlowConsumerGuard.sendInEventLoop(delivery.mSession, 
+                                                                       new Post(encoded.duplicate().retain(), 
+                                                                                delivery.mListener), 
+                                                                       delivery.mListener);
+                                }
+                            } finally {
+                                encoded.release();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    encoded.release(); // the task won't run, e.g. event loop shut down
+                    throw e;
+                }
+            }
+        } finally {
+            encoded.release();
+        }
+        return true;
+    }
+
+    private void storeOfflineMessage(final String aRoomName, UserInfo aSender, UserInfo aMember, String aMessage) {
+        try {
+            mUserMgr.insertMessage(aSender.getId(), aMember.getId(), "[" + aRoomName + "] " + aMessage,
+                                   new OfflineMessageWriter.Listener() {
+                @Override
+                public void messageWritten() {
+                    mOfflineCount.incrementAndGet();
+                }
+                @Override
+                public void writeFailed(StoreException aCause) {
+                    mDroppedCount.incrementAndGet();
+                    LOGGER.error("room message to offline member not stored: " + aCause);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mDroppedCount.incrementAndGet();
+            LOGGER.warn("offline message writer saturated, room message dropped for " + aMember.getName());
+        }
+    }
+
+    private static int indexOf(UserInfo[] aMembers, UserId aUserId) {
+        for (int i = 0; i < aMembers.length; i++) {
+            if (aMembers[i].getId().equals(aUserId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getRoomCount() {
+        return mRooms.size();
+    }
+
+    public long getPostCount() {
+        return mPostCount.get();
+    }
+
+    public long getDeliveredCount() {
+        return mDeliveredCount.get();
+    }
+
+    public long getOfflineCount() {
+        return mOfflineCount.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public long getLoopTaskCount() {
+        return mLoopTaskCount.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .append("rooms", getRoomCount())
+        .append("posts", getPostCount())
+        .append("delivered", getDeliveredCount())
+        .append("offline", getOfflineCount())
+        .append("dropped", getDroppedCount())
+        .append("loopTasks", getLoopTaskCount())
+        .toString();
+    }
+
+    private static class Room {
+        private final String mName;
+        // copy on write: modified under the lock of the room, read without lock
+        private volatile UserInfo[] mMembers = NO_MEMBERS;
+        private boolean mDeleted;
+
+        Room(String aName) {
+            mName = aName;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    private static class Delivery {
+        private final ChannelInfo mSession;
+        private final MemberListener mListener;
+
+        Delivery(ChannelInfo aSession, MemberListener aListener) {
+            mSession = aSession;
+            mListener = aListener;
+        }
+    }
+
+    /**
+     * Encoded message written to a session of a member. Keeps the message to store it as an offline message if the
+     * session closes while it is parked, since the member listener was told it was accepted.
+     */
+    class Post extends DefaultByteBufHolder {
+        private final MemberListener mListener;
+
+        Post(ByteBuf aEncoded, MemberListener aListener) {
+            super(aEncoded);
+            mListener = aListener;
+        }
+
+        /**
+         * Stores the message as an offline message of the member, unless the member is the sender.
+         */
+        void storeOffline() {
+            if (!mListener.mMember.getId().equals(mListener.mSender.getId())) {
+                storeOfflineMessage(mListener.mRoomName, mListener.mSender, mListener.mMember, mListener.mMessage);
+            }
+        }
+    }
+
+    /**
+     * Outcome of the sessions of a member: the message is stored as an offline message if none of its sessions
+     * accepted it, unless it was dropped.
+     */
+    private class MemberListener implements SlowConsumerGuard.Listener {
+        private final String mRoomName;
+        private final UserInfo mSender;
+        private final UserInfo mMember;
+        private final String mMessage;
+        private final AtomicInteger mRemaining;
+        private volatile boolean mAccepted;
+        private volatile Policy mOverflow = Policy.SPILL;
+
+        MemberListener(String aRoomName, UserInfo aSender, UserInfo aMember, String aMessage, int aSessionCount) {
+            mRoomName = aRoomName;
+            mSender = aSender;
+            mMember = aMember;
+            mMessage = aMessage;
+            mRemaining = new AtomicInteger(aSessionCount);
+        }
+
+        @Override
+        public void accepted() {
+            mDeliveredCount.incrementAndGet();
+            mAccepted = true;
+            mRemaining.decrementAndGet();
+        }
+
+        @Override
+        public void overflowed(Policy aPolicy) {
+            if (aPolicy != Policy.SPILL) {
+                mOverflow = aPolicy; // SPILL only for the sessions closed meanwhile
+            }
+            if (mRemaining.decrementAndGet() == 0 && !mAccepted) {
+                if (mOverflow == Policy.DROP) {
+                    mDroppedCount.incrementAndGet();
+                } else if (!mMember.getId().equals(mSender.getId())) {
+                    storeOfflineMessage(mRoomName, mSender, mMember, mMessage);
+                }
+            }
+        }
+    }
+}
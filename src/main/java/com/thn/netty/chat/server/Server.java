@@ -7,19 +7,23 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.channel.EventLoopGroup;
 import io.netty.handler.timeout.IdleStateHandler;
 
 import java.net.InetSocketAddress;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
 import com.thn.netty.chat.codec.CommandCodec;
+import com.thn.netty.chat.util.AffinityThreadFactory;
+import com.thn.netty.chat.util.Transport;
 
 /**
  * Main chat server. Receive connection requests from clients and exchanges messages with them.
@@ -29,61 +33,168 @@ public class Server {
     private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
         
     private static final IdleConnectionHandler IDLENESS_HANDLER = new IdleConnectionHandler();
+    private static final Transport TRANSPORT = Transport.get();
+    // number of server sockets bound to the port with SO_REUSEPORT, each one with its own acceptor thread. epoll only
+    private static final int ACCEPTORS = Integer.getInteger("chat.server.acceptors", 1);
+    // event loops accepting the connections. One per acceptor by default
+    private static final int BOSS_THREADS = Integer.getInteger("chat.server.bossThreads", ACCEPTORS);
+    // event loops doing the I/O of the connections. 0 for netty's default (2 * number of cores)
+    private static final int WORKER_THREADS = Integer.getInteger("chat.server.workerThreads", 0);
+    // CPUs to pin the event loop threads to, e.g. "0-3" or "0,2,4". Not pinned if empty
+    private static final String BOSS_CPUS = System.getProperty("chat.server.bossCpus", "");
+    private static final String WORKER_CPUS = System.getProperty("chat.server.workerCpus", "");
+    private static final int LOGIC_THREADS = Integer.getInteger("chat.logic.threads", 16);
+    private static final int LOGIC_QUEUE_CAPACITY = Integer.getInteger("chat.logic.queueCapacity", 10000);
+    // number of written messages after which a flush is done right away instead of being coalesced. 0 to not coalesce
+    private static final int FLUSH_MAX_PENDING_MESSAGES = Integer.getInteger("chat.flush.maxPendingMessages", 256);
+    // outbound bytes buffered by a connection above which it is not writable, and below which it is writable again
+    private static final int WRITE_BUFFER_HIGH_WATER_MARK = Integer.getInteger("chat.writeBuffer.highWaterMark", 65536);
+    private static final int WRITE_BUFFER_LOW_WATER_MARK = Integer.getInteger("chat.writeBuffer.lowWaterMark", 32768);
+    // notifications parked by a non writable connection before applying the slow consumer policy
+    private static final int SLOW_CONSUMER_MAX_PARKED = Integer.getInteger("chat.slowConsumer.maxParked", 1000);
+    // window during which the presence changes are collected and coalesced before being broadcast. 0 to not broadcast
+    private static final long PRESENCE_WINDOW_MILLIS = Long.getLong("chat.presence.windowMillis", 500);
+    // chat messages are written again if not acknowledged by the recipient within this delay. 0 to not wait for acks
+    private static final long DELIVERY_ACK_TIMEOUT_MILLIS = Long.getLong("chat.delivery.ackTimeoutMillis", 10000);
+    private static final int DELIVERY_MAX_ATTEMPTS = Integer.getInteger("chat.delivery.maxAttempts", 3);
+    private static final int DELIVERY_MAX_UNACKED = Integer.getInteger("chat.delivery.maxUnacked", 1000);
+    private static final int METRICS_LOG_PERIOD_SECONDS = Integer.getInteger("chat.metrics.logPeriodSeconds", 60);
 
     private final UserManager mUserMgr = new UserManager();
     private ServerBootstrap mBootstrap;
-    private final ExecutorService mScheduler = Executors.newCachedThreadPool();
-    private NioEventLoopGroup mEventLoopGroup;
+    private final KeyedSerialExecutor mScheduler = new KeyedSerialExecutor("chat-logic", LOGIC_THREADS, 
+                                                                           LOGIC_QUEUE_CAPACITY);
+    private final AffinityThreadFactory mBossThreadFactory = new AffinityThreadFactory("chat-boss", BOSS_CPUS);
+    private final AffinityThreadFactory mWorkerThreadFactory = new AffinityThreadFactory("chat-worker", WORKER_CPUS);
+    private final EventLoopGroup mBossGroup;
+    private final EventLoopGroup mWorkerGroup;
+    // number of open connections of each worker event loop, by thread name
+    private final ConcurrentMap<String, AtomicInteger> mChannelsPerLoop = new ConcurrentHashMap<>();
+    private final FlushCoalescingHandler.Metrics mFlushMetrics = new FlushCoalescingHandler.Metrics();
+    private final CommandCodec.Metrics mFrameMetrics = new CommandCodec.Metrics();
+    private final SlowConsumerGuard mSlowConsumerGuard = new SlowConsumerGuard(SlowConsumerGuard.Policy.get(), 
+                                                                               SLOW_CONSUMER_MAX_PARKED);
+    private PresenceBroadcaster mPresenceBroadcaster;
+    private final RoomManager mRoomMgr = new RoomManager(mUserMgr, mSlowConsumerGuard);
+    private final DeliveryTracker mDeliveryTracker = DELIVERY_ACK_TIMEOUT_MILLIS <= 0 ? null : 
+        new DeliveryTracker(mUserMgr, mSlowConsumerGuard, DELIVERY_ACK_TIMEOUT_MILLIS, DELIVERY_MAX_ATTEMPTS, 
+                            DELIVERY_MAX_UNACKED);
     private Runnable mShutdownAction;
 
     private Server() {
         mBootstrap = new ServerBootstrap();
         mBootstrap.childOption(ChannelOption.ALLOCATOR, new PooledByteBufAllocator(false));
+        // netty rejects a high mark below the current low mark (32 KB by default) and the other way around
+        if (WRITE_BUFFER_LOW_WATER_MARK < 32768) {
+            mBootstrap.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, WRITE_BUFFER_LOW_WATER_MARK);
+        }
+        mBootstrap.childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, WRITE_BUFFER_HIGH_WATER_MARK);
+        mBootstrap.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, WRITE_BUFFER_LOW_WATER_MARK);
         ChannelInitializer<Channel> initializer = new ChannelInitializer<Channel>() {
             @Override
             protected void initChannel(Channel aCh) throws Exception {
-                aCh.pipeline().addLast(new ChannelListener());                                    // inbound
-                aCh.pipeline().addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 1, 4, 0, 0)); // inbound
-                aCh.pipeline().addLast(new CommandCodec());                                   // inbound / outbound
-                aCh.pipeline().addLast(new ServerLogicHandler(mUserMgr, mScheduler, mShutdownAction));  // inbound
+                if (FLUSH_MAX_PENDING_MESSAGES > 0) {
+                    aCh.pipeline().addLast(new FlushCoalescingHandler(FLUSH_MAX_PENDING_MESSAGES, mFlushMetrics));
+                }
+                aCh.pipeline().addLast(new ChannelListener(mChannelsPerLoop));                // inbound
+                aCh.pipeline().addLast(new CommandCodec(mFrameMetrics, true));                // inbound / outbound
+                aCh.pipeline().addLast(new ServerLogicHandler(mUserMgr, mScheduler, mSlowConsumerGuard, mRoomMgr,
+                                                              mDeliveryTracker, mShutdownAction));    // inbound
                 aCh.pipeline().addLast(new IdleStateHandler(0, 0, 1, TimeUnit.HOURS));        // inbound / outbound
                 aCh.pipeline().addLast(IDLENESS_HANDLER);
             }
         };
-        mEventLoopGroup = new NioEventLoopGroup();
+        if (PRESENCE_WINDOW_MILLIS > 0) {
+            mPresenceBroadcaster = new PresenceBroadcaster(mUserMgr, mSlowConsumerGuard, PRESENCE_WINDOW_MILLIS);
+            mUserMgr.setPresenceListener(mPresenceBroadcaster);
+        }
+        mBossGroup = TRANSPORT.newEventLoopGroup(BOSS_THREADS, mBossThreadFactory);
+        mWorkerGroup = TRANSPORT.newEventLoopGroup(WORKER_THREADS, mWorkerThreadFactory);
         setShutdownAction();
-        mBootstrap.group(mEventLoopGroup).channel(NioServerSocketChannel.class)
-                .childHandler(initializer);
+        mBootstrap.group(mBossGroup, mWorkerGroup).childHandler(initializer);
+        TRANSPORT.configure(mBootstrap, ACCEPTORS > 1);
     }
     
     private void start() {
-        ChannelFuture future = mBootstrap.bind(new InetSocketAddress(8080));
-        future.addListener(new ChannelFutureListener() {
-            @Override
-            public void operationComplete(ChannelFuture aChannelFuture) throws Exception {
-                if (aChannelFuture.isSuccess()) {
-                    System.out.println("Server bound");
-                } else {
-                    System.err.println("Bound attempt failed");
-                    aChannelFuture.cause().printStackTrace();
+        if (METRICS_LOG_PERIOD_SECONDS > 0) {
+            mWorkerGroup.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    logMetrics();
                 }
-            }
-        });
+            }, METRICS_LOG_PERIOD_SECONDS, METRICS_LOG_PERIOD_SECONDS, TimeUnit.SECONDS);
+        }
+        int acceptors = ACCEPTORS;
+        if (acceptors > 1 && !TRANSPORT.supportsReusePort()) {
+            LOGGER.warn("several acceptors require the epoll transport. Using one with " + TRANSPORT);
+            acceptors = 1;
+        }
+        List<ChannelFuture> futures = new ArrayList<>(acceptors);
+        for (int i = 0; i < acceptors; i++) {
+            ChannelFuture future = mBootstrap.bind(new InetSocketAddress(8080));
+            future.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture aChannelFuture) throws Exception {
+                    if (aChannelFuture.isSuccess()) {
+                        // notified in the event loop of the server channel
+                        System.out.println("Server bound (" + TRANSPORT + " transport) on "
+                                           + Thread.currentThread().getName());
+                    } else {
+                        System.err.println("Bound attempt failed");
+                        aChannelFuture.cause().printStackTrace();
+                    }
+                }
+            });
+            futures.add(future);
+        }
+        LOGGER.info("boss threads: " + (BOSS_THREADS == 0 ? "default" : BOSS_THREADS) + " cpus: '" + BOSS_CPUS
+                    + "', worker threads: " + (WORKER_THREADS == 0 ? "default" : WORKER_THREADS) + " cpus: '"
+                    + WORKER_CPUS + "'");
         try {
-            future.channel().closeFuture().sync();
+            for (ChannelFuture future : futures) {
+                future.channel().closeFuture().sync();
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
     }
     
+    private void logMetrics() {
+        LOGGER.info("scheduler: " + mScheduler);
+        LOGGER.info("user store: " + mUserMgr.getStore());
+        if (mUserMgr.getMessageStore() != mUserMgr.getStore()) {
+            LOGGER.info("message store: " + mUserMgr.getMessageStore());
+        }
+        LOGGER.info("presence: " + mUserMgr.getPresence() + " broadcasts: " + mPresenceBroadcaster);
+        LOGGER.info("offline message writer: " + mUserMgr.getMessageWriter());
+        LOGGER.info("flushes: " + mFlushMetrics);
+        LOGGER.info("frames: " + mFrameMetrics);
+        LOGGER.info("slow consumers: " + mSlowConsumerGuard);
+        LOGGER.info("rooms: " + mRoomMgr);
+        LOGGER.info("deliveries: " + mDeliveryTracker);
+        LOGGER.info("boss loops (thread=cpu): " + mBossThreadFactory.getAssignedCpus());
+        StringBuilder loops = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : mWorkerThreadFactory.getAssignedCpus().entrySet()) {
+            AtomicInteger channels = mChannelsPerLoop.get(entry.getKey());
+            loops.append(loops.length() == 0 ? "" : ", ").append(entry.getKey()).append("(cpu ")
+                 .append(entry.getValue()).append(")=").append(channels == null ? 0 : channels.get());
+        }
+        LOGGER.info("worker loops channels: " + loops);
+    }
+
     private void setShutdownAction() {
         mShutdownAction = new Runnable() {
             @Override
             public void run() {
                 try {
-                    mEventLoopGroup.shutdownGracefully().sync();
+                    if (mPresenceBroadcaster != null) {
+                        mPresenceBroadcaster.shutdown();
+                    }
+                    mBossGroup.shutdownGracefully().sync();
+                    mWorkerGroup.shutdownGracefully().sync();
                     mScheduler.shutdownNow();
                     mScheduler.awaitTermination(5, TimeUnit.SECONDS);
+                    mUserMgr.shutdown();
                 } catch (InterruptedException e) {
                     LOGGER.info("interrupted while waiting for tasks termination", e);
                 }
@@ -1,37 +1,44 @@
 package com.thn.netty.chat.server;
 
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.ReferenceCountUtil;
 
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.log4j.Logger;
 
+import com.thn.netty.chat.codec.CommandCodec;
 import com.thn.netty.chat.primitive.AddContactInviteCmd;
 import com.thn.netty.chat.primitive.AddContactResponseCmd;
+import com.thn.netty.chat.primitive.BaseRoomCmd;
 import com.thn.netty.chat.primitive.ChatMessageCmd;
 import com.thn.netty.chat.primitive.Command;
+import com.thn.netty.chat.primitive.CommandRegistry;
+import com.thn.netty.chat.primitive.CommandType;
 import com.thn.netty.chat.primitive.CreateAccountRequest;
+import com.thn.netty.chat.primitive.DeliveryAckCmd;
 import com.thn.netty.chat.primitive.ErrorResponse;
 import com.thn.netty.chat.primitive.ErrorResponse.Code;
-import com.thn.netty.chat.primitive.ExitRequest;
 import com.thn.netty.chat.primitive.GetContactOfUsers;
 import com.thn.netty.chat.primitive.GetContactOfUsersResponse;
 import com.thn.netty.chat.primitive.GetPendingMessages;
 import com.thn.netty.chat.primitive.GetPendingMessagesResponse;
 import com.thn.netty.chat.primitive.LoginRequest;
-import com.thn.netty.chat.primitive.LogoutRequest;
 import com.thn.netty.chat.primitive.MessageInfo;
 import com.thn.netty.chat.primitive.OkResponse;
 import com.thn.netty.chat.primitive.RemoveContactCmd;
-import com.thn.netty.chat.primitive.ShutdownServerRequest;
+import com.thn.netty.chat.primitive.RoomPostCmd;
 import com.thn.netty.chat.primitive.UserId;
 import com.thn.netty.chat.primitive.UserName;
+import com.thn.netty.chat.server.SlowConsumerGuard.Policy;
+import com.thn.netty.chat.server.store.MessagePage;
 import com.thn.netty.chat.server.store.StoreException;
 import com.thn.netty.chat.user.ContactInfo;
 import com.thn.netty.chat.user.ContactState;
@@ -48,18 +55,32 @@ public class ServerLogicHandler extends SimpleChannelInboundHandler<Command> {
     private static final Logger LOGGER = Logger.getLogger(ServerLogicHandler.class.getName());
     private final UserManager mUserMgr;
     private IdGenerator mNotifIdGen = DefaultIdGenerator.getInstance();
-    private final ExecutorService mScheduler;
+    private final KeyedSerialExecutor mScheduler;
+    private final SlowConsumerGuard mSlowConsumerGuard;
+    private final RoomManager mRoomMgr;
+    private final DeliveryTracker mDeliveryTracker;
     private final Runnable mShutdownAction;
+    private static final int PENDING_MSGS_PAGE_SIZE = Integer.getInteger("chat.pendingMessages.pageSize", 100);
 
     /**
      * Constructor.
      * @param aUserMgr user manager to access persistent data.
-     * @param aScheduler scheduler to execute blocking requests (e.g. JDBC) outside of NIO worker threads.
+     * @param aScheduler scheduler to execute blocking requests (e.g. JDBC) outside of NIO worker threads. The
+     *        requests of a user are executed in order.
+     * @param aSlowConsumerGuard sends the notifications without buffering too much data for slow clients.
+     * @param aRoomMgr chat rooms.
+     * @param aDeliveryTracker redelivers the chat messages until the recipient acknowledges them. Null to consider
+     *        a chat message delivered once written.
      * @param aShutdownAction action to execute to shutdown the server.
      */
-    public ServerLogicHandler(UserManager aUserMgr, ExecutorService aScheduler, Runnable aShutdownAction) {
+    public ServerLogicHandler(UserManager aUserMgr, KeyedSerialExecutor aScheduler, 
+                              SlowConsumerGuard aSlowConsumerGuard, RoomManager aRoomMgr, 
+                              DeliveryTracker aDeliveryTracker, Runnable aShutdownAction) {
         mUserMgr = aUserMgr;
         mScheduler = aScheduler;
+        mSlowConsumerGuard = aSlowConsumerGuard;
+        mRoomMgr = aRoomMgr;
+        mDeliveryTracker = aDeliveryTracker;
         mShutdownAction = aShutdownAction;
     }
 
@@ -68,15 +89,42 @@ public class ServerLogicHandler extends SimpleChannelInboundHandler<Command> {
         aCtx.flush();
     }
     
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext aCtx) throws Exception {
+        ChannelInfo channelInfo = aCtx.channel().attr(ChannelListener.CHANNEL_INFO).get();
+        Object parked;
+        while (aCtx.channel().isWritable() && (parked = channelInfo.pollParked()) != null) {
+            aCtx.writeAndFlush(SlowConsumerGuard.toWritable(parked));
+        }
+        super.channelWritabilityChanged(aCtx);
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext aCtx) throws Exception {
         super.channelInactive(aCtx);
         ChannelInfo channelInfo = aCtx.channel().attr(ChannelListener.CHANNEL_INFO).get();
-        StringBuilder builder = new StringBuilder();
         UserInfo userInfo = channelInfo.getUserInfo();
+        Object parked;
+        while ((parked = channelInfo.pollParked()) != null) {
+            if (mDeliveryTracker == null && userInfo != null && parked instanceof ChatMessageCmd) {
+                // the sender was answered when the message was parked: don't lose it
+                storeParkedMessage((ChatMessageCmd) parked, userInfo.getId());
+            } else if (parked instanceof RoomManager.Post) {
+                // accepted when parked as well: store it for the member
+                RoomManager.Post post = (RoomManager.Post) parked;
+                post.storeOffline();
+                post.release();
+            } else {
+                ReferenceCountUtil.release(parked);
+            }
+        }
+        if (mDeliveryTracker != null) {
+            mDeliveryTracker.sessionClosed(channelInfo); // store the messages not acknowledged, parked or not
+        }
+        StringBuilder builder = new StringBuilder();
         if (userInfo != null) {
             builder.append(" (username: ").append(userInfo.getName().getName()).append(')');
-            mUserMgr.userLoggedOut(userInfo.getName());
+            mUserMgr.userLoggedOut(userInfo, channelInfo);
         }
         LOGGER.info("Connection lost with client" + builder.toString());
     }
@@ -86,52 +134,133 @@ public class ServerLogicHandler extends SimpleChannelInboundHandler<Command> {
         LOGGER.info("cmd received: " + aMsg);
         int cmdId = aMsg.getId();
         ChannelInfo channelInfo = aCtx.channel().attr(ChannelListener.CHANNEL_INFO).get();
-        if (aMsg instanceof CreateAccountRequest) {
-            processCreateAccount(aCtx, aMsg);
-        }
-        else if (aMsg instanceof LoginRequest) {
-            processLogin(aCtx, aMsg, channelInfo);
-        }
-        else if (aMsg instanceof ExitRequest) {
-            processExit(aCtx, channelInfo);
+        CommandRegistry.Entry<Handler> entry = HANDLERS.get(aMsg.getType());
+        if (entry == null) {
+            aCtx.writeAndFlush(new ErrorResponse(cmdId, Code.BAD_REQUEST, "unknown comand: " + aMsg));
         }
-        else if (!mUserMgr.isUserLoggedIn(channelInfo)) { // the next commands require the user to be logged in
+        else if (entry.isLoginRequired() && !mUserMgr.isUserLoggedIn(channelInfo)) {
             aCtx.writeAndFlush(new ErrorResponse(cmdId, Code.NOT_LOGGED_IN));
         }
-        else if (aMsg instanceof LogoutRequest) {
-            processLogout(aCtx, aMsg, channelInfo);
-        }
-        else if (aMsg instanceof AddContactInviteCmd) {
-            processAddContact(aCtx, aMsg, channelInfo);
-        }
-        else if (aMsg instanceof AddContactResponseCmd) {
-            processAddContactResponse(aCtx, aMsg, channelInfo);
-        }
-        else if (aMsg instanceof RemoveContactCmd) {
-            processRemoveContact(aCtx, aMsg, channelInfo);
-        }
-        else if (aMsg instanceof GetContactOfUsers) {
-            processGetContactInvites(aCtx, aMsg, channelInfo);
-        }
-        else if (aMsg instanceof ChatMessageCmd) {
-            processChatMessage(aCtx, aMsg, channelInfo);
-        }
-        else if (aMsg instanceof GetPendingMessages) {
-            processGetMessages(aCtx, aMsg, channelInfo);
-        }
-        else if (aMsg instanceof ShutdownServerRequest) {
-            new Thread(mShutdownAction).start(); // start shutdown in other thread to no deadlock
-        }
         else {
-            aCtx.writeAndFlush(new ErrorResponse(cmdId, Code.BAD_REQUEST, "unknown comand: " + aMsg));
+            entry.getHandler().handle(this, aCtx, aMsg, channelInfo);
         }
     }
 
+    /**
+     * Processes a type of request.
+     */
+    private interface Handler {
+        void handle(ServerLogicHandler aLogic, ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aChannelInfo)
+            throws Exception;
+    }
+
+    private static final CommandRegistry<Handler> HANDLERS = new CommandRegistry<>();
+    static {
+        HANDLERS.register(CommandType.CREATE_ACCOUNT, new Handler() {
+            @Override
+            public void handle(ServerLogicHandler aLogic, ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aInfo) {
+                aLogic.processCreateAccount(aCtx, aMsg);
+            }
+        }, false);
+        HANDLERS.register(CommandType.LOGIN, new Handler() {
+            @Override
+            public void handle(ServerLogicHandler aLogic, ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aInfo) {
+                aLogic.processLogin(aCtx, aMsg, aInfo);
+            }
+        }, false);
+        HANDLERS.register(CommandType.EXIT, new Handler() {
+            @Override
+            public void handle(ServerLogicHandler aLogic, ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aInfo) {
+                aLogic.processExit(aCtx, aInfo);
+            }
+        }, false);
+        // the next commands require the user to be logged in
+        HANDLERS.register(CommandType.LOGOUT, new Handler() {
+            @Override
+            public void handle(ServerLogicHandler aLogic, ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aInfo) {
+                aLogic.processLogout(aCtx, aMsg, aInfo);
+            }
+        }, true);
+        HANDLERS.register(CommandType.ADD_CONTACT_INVITE, new Handler() {
+            @Override
+            public void handle(ServerLogicHandler aLogic, ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aInfo) {
+                aLogic.processAddContact(aCtx, aMsg, aInfo);
+            }
+        }, true);
+        HANDLERS.register(CommandType.ADD_CONTACT_RESPONSE, new Handler() {
+            @Override
+            public void handle(ServerLogicHandler aLogic, ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aInfo) {
+                aLogic.processAddContactResponse(aCtx, aMsg, aInfo);
+            }
+        }, true);
+        HANDLERS.register(CommandType.REMOVE_CONTACT, new Handler() {
+            @Override
+            public void handle(ServerLogicHandler aLogic, ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aInfo) {
+                aLogic.processRemoveContact(aCtx, aMsg, aInfo);
+            }
+        }, true);
+        HANDLERS.register(CommandType.GET_CONTACT_OF_USERS, new Handler() {
+            @Override
+            public void handle(ServerLogicHandler aLogic, ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aInfo) {
+                aLogic.processGetContactInvites(aCtx, aMsg, aInfo);
+            }
+        }, true);
+        HANDLERS.register(CommandType.MESSAGE, new Handler() {
+            @Override
+            public void handle(ServerLogicHandler aLogic, ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aInfo) {
+                aLogic.processChatMessage(aCtx, aMsg, aInfo);
+            }
+        }, true);
+        HANDLERS.register(CommandType.DELIVERY_ACK, new Handler() {
+            @Override
+            public void handle(ServerLogicHandler aLogic, ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aInfo) {
+                if (aLogic.mDeliveryTracker != null) {
+                    aLogic.mDeliveryTracker.acked(aInfo, (DeliveryAckCmd) aMsg); // not answered
+                }
+            }
+        }, true);
+        HANDLERS.register(CommandType.GET_PENDING_MESSAGES, new Handler() {
+            @Override
+            public void handle(ServerLogicHandler aLogic, ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aInfo) {
+                aLogic.processGetMessages(aCtx, aMsg, aInfo);
+            }
+        }, true);
+        HANDLERS.register(CommandType.ROOM_POST, new Handler() {
+            @Override
+            public void handle(ServerLogicHandler aLogic, ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aInfo) {
+                aLogic.processRoomPost(aCtx, aMsg, aInfo);
+            }
+        }, true);
+        HANDLERS.register(CommandType.ROOM_CREATE, new Handler() {
+            @Override
+            public void handle(ServerLogicHandler aLogic, ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aInfo) {
+                aLogic.processRoomCreate(aCtx, aMsg, aInfo);
+            }
+        }, true);
+        HANDLERS.register(CommandType.ROOM_JOIN, new Handler() {
+            @Override
+            public void handle(ServerLogicHandler aLogic, ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aInfo) {
+                aLogic.processRoomJoin(aCtx, aMsg, aInfo);
+            }
+        }, true);
+        HANDLERS.register(CommandType.ROOM_LEAVE, new Handler() {
+            @Override
+            public void handle(ServerLogicHandler aLogic, ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aInfo) {
+                aLogic.processRoomLeave(aCtx, aMsg, aInfo);
+            }
+        }, true);
+        HANDLERS.register(CommandType.SHUTDOWN_SERVER, new Handler() {
+            @Override
+            public void handle(ServerLogicHandler aLogic, ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aInfo) {
+                new Thread(aLogic.mShutdownAction).start(); // start shutdown in other thread to no deadlock
+            }
+        }, true);
+    }
+
     private void processLogout(ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aChannelInfo) {
         int cmdId = aMsg.getId();
         UserInfo userInfo = aChannelInfo.getUserInfo(); // not null since user logged in (verified earlier)
-        mUserMgr.userLoggedOut(userInfo.getName());
-        aChannelInfo.setUserInfo(null);
+        mUserMgr.userLoggedOut(userInfo, aChannelInfo);
         LOGGER.info("user logged out (still connected): " + userInfo.getName().getName());
         aCtx.writeAndFlush(new OkResponse(cmdId));
     }
@@ -140,8 +269,7 @@ public class ServerLogicHandler extends SimpleChannelInboundHandler<Command> {
         UserInfo userInfo = aChannelInfo.getUserInfo();
         if (userInfo != null) {
             // user still logged in: log it out
-            mUserMgr.userLoggedOut(userInfo.getName());
-            aChannelInfo.setUserInfo(null);
+            mUserMgr.userLoggedOut(userInfo, aChannelInfo);
             LOGGER.info("user logged out (still connected): " + userInfo.getName().getName());
         }
         // close connection
@@ -158,7 +286,7 @@ public class ServerLogicHandler extends SimpleChannelInboundHandler<Command> {
         }
         // the next steps do blocking calls (e.g. access User DB): execute them in other thread to not block 
         // the NIO thread and use ChannelHandlerContext to send outbound messages in a thread-safe way
-        mScheduler.execute(new Runnable() {
+        execute(aCtx, aMsg, ((LoginRequest) aMsg).getUserName(), new Runnable() {
             @Override
             public void run() {
                 LoginRequest loginCmd = (LoginRequest) aMsg;
@@ -173,7 +301,19 @@ public class ServerLogicHandler extends SimpleChannelInboundHandler<Command> {
                     aCtx.writeAndFlush(new ErrorResponse(cmdId, Code.INVALID_USER_OR_PASS));
                     return;
                 }
+                if (loginCmd.isCompression()) {
+                    // before the session is visible, so that all the notifications are compressed
+                    CommandCodec codec = aCtx.pipeline().get(CommandCodec.class);
+                    if (codec != null) {
+                        codec.enableCompression();
+                    }
+                }
                 mUserMgr.userLoggedIn(userInfo, aChannelInfo);
+                if (!aCtx.channel().isActive()) {
+                    // disconnected while logging in: channelInactive() may have missed the session
+                    mUserMgr.userLoggedOut(userInfo, aChannelInfo);
+                    return;
+                }
                 aCtx.writeAndFlush(new OkResponse(cmdId));
             }
         });
@@ -183,7 +323,7 @@ public class ServerLogicHandler extends SimpleChannelInboundHandler<Command> {
     {
         // this method does blocking calls (e.g. access User DB): execute them in other thread to not block 
         // the NIO thread and use ChannelHandlerContext to send outbound messages in a thread-safe way
-        mScheduler.execute(new Runnable() {
+        execute(aCtx, aMsg, ((CreateAccountRequest) aMsg).getUserName(), new Runnable() {
             @Override
             public void run() {
                 CreateAccountRequest cmd = (CreateAccountRequest) aMsg;
@@ -214,7 +354,7 @@ public class ServerLogicHandler extends SimpleChannelInboundHandler<Command> {
     {
         // this method does blocking calls (e.g. access User DB): execute them in other thread to not block 
         // the NIO thread and use ChannelHandlerContext to send outbound messages in a thread-safe way
-        mScheduler.execute(new Runnable() {
+        execute(aCtx, aMsg, aChannelInfo.getUserInfo().getName(), new Runnable() {
             @Override
             public void run() {
                 int cmdId = aMsg.getId();
@@ -233,8 +373,13 @@ public class ServerLogicHandler extends SimpleChannelInboundHandler<Command> {
                             contactName));
                     return;
                 }
-                // see if the contact to add is not already a contact or a pending contact
-                UserInfo requesterUser = aChannelInfo.getUserInfo();
+                // see if the contact to add is not already a contact or a pending contact. Read the latest contacts: 
+                // the user info of the session may miss the changes made by the other sessions of the user
+                UserInfo requesterUser = mUserMgr.getUserByName(aChannelInfo.getUserInfo().getName());
+                if (requesterUser == null) {
+                    aCtx.writeAndFlush(new ErrorResponse(cmdId, Code.BAD_REQUEST, "user does not exist anymore"));
+                    return;
+                }
                 if (getContact(requesterUser.getContacts(), contactName) != null) {
                     aCtx.writeAndFlush(new OkResponse(cmdId)); // already a contact
                     return;
@@ -250,13 +395,13 @@ public class ServerLogicHandler extends SimpleChannelInboundHandler<Command> {
                     return;
                 }
                 
-                ChannelInfo contactChannelInfo = mUserMgr.getLoggedInUserChannel(contactName);
-                if (contactChannelInfo != null) {
+                ChannelInfo[] contactSessions = mUserMgr.getLoggedInUserChannels(contact.getId());
+                if (contactSessions.length > 0) {
                     // contact existing and logged in: send the addContact as a notification
                     AddContactInviteCmd notif = new AddContactInviteCmd(mNotifIdGen.nextId(), 
                                                                         requesterUser.getName(), null);
-                    ChannelHandlerContext contactContext = contactChannelInfo.getContext();
-                    sendNotif(notif, contactContext);
+                    // the invitation is persisted: if the contact is too slow, it can still get it later
+                    sendNotif(notif, contactSessions, null);
                 }
                 
                 aChannelInfo.getContext().writeAndFlush(new OkResponse(cmdId)); // confirm the message was processed
@@ -269,7 +414,7 @@ public class ServerLogicHandler extends SimpleChannelInboundHandler<Command> {
     {
         // this method does blocking calls (e.g. access User DB): execute them in other thread to not block 
         // the NIO thread and use ChannelHandlerContext to send outbound messages in a thread-safe way
-        mScheduler.execute(new Runnable() {
+        execute(aCtx, aMsg, aChannelInfo.getUserInfo().getName(), new Runnable() {
             @Override
             public void run() {
                 int cmdId = aMsg.getId();
@@ -280,8 +425,12 @@ public class ServerLogicHandler extends SimpleChannelInboundHandler<Command> {
                             Code.BAD_REQUEST, "remove contact request must have a non null contact name"));
                     return;
                 }
-                // remove the contact
-                UserInfo requesterUser = aChannelInfo.getUserInfo();
+                // remove the contact from the latest contacts, not from the ones of the session
+                UserInfo requesterUser = mUserMgr.getUserByName(aChannelInfo.getUserInfo().getName());
+                if (requesterUser == null) {
+                    aCtx.writeAndFlush(new ErrorResponse(cmdId, Code.BAD_REQUEST, "user does not exist anymore"));
+                    return;
+                }
                 List<ContactInfo> existingContacts = requesterUser.getContacts();
                 List<ContactInfo> newContacts = removeContact(existingContacts, contactName);
                 if (existingContacts.size() == newContacts.size()) {
@@ -309,7 +458,7 @@ public class ServerLogicHandler extends SimpleChannelInboundHandler<Command> {
     {
         // this method does blocking calls (e.g. access User DB): execute them in other thread to not block 
         // the NIO thread and use ChannelHandlerContext to send outbound messages in a thread-safe way
-        mScheduler.execute(new Runnable() {
+        execute(aCtx, aMsg, aChannelInfo.getUserInfo().getName(), new Runnable() {
             @Override
             public void run() {
                 int cmdId = aMsg.getId();
@@ -340,10 +489,10 @@ public class ServerLogicHandler extends SimpleChannelInboundHandler<Command> {
     {
         // this method does blocking calls (e.g. access User DB): execute them in other thread to not block 
         // the NIO thread and use ChannelHandlerContext to send outbound messages in a thread-safe way
-        mScheduler.execute(new Runnable() {
+        execute(aCtx, aMsg, aChannelInfo.getUserInfo().getName(), new Runnable() {
             @Override
             public void run() {
-                int cmdId = aMsg.getId();
+                final int cmdId = aMsg.getId();
                 ChatMessageCmd cmd = (ChatMessageCmd) aMsg;
                 MessageInfo msgInfo = cmd.getMessageInfo();
                 UserName recipientName = msgInfo.getRecipient();
@@ -360,50 +509,275 @@ public class ServerLogicHandler extends SimpleChannelInboundHandler<Command> {
                             recipientName));
                     return;
                 }
-                UserInfo requesterUser = aChannelInfo.getUserInfo();
-                ChannelInfo recipientChannelInfo = mUserMgr.getLoggedInUserChannel(recipientName);
-                if (recipientChannelInfo != null) {
-                    // recipient existing and logged in: send the message as a notification
+                final UserInfo requesterUser = aChannelInfo.getUserInfo();
+                final UserId recipientId = recipient.getId();
+                final String message = msgInfo.getMessage();
+                ChannelInfo[] recipientSessions = mUserMgr.getLoggedInUserChannels(recipientId);
+                if (recipientSessions.length > 0) {
+                    // recipient existing and logged in: send the message as a notification to all its sessions
                     ChatMessageCmd notif = new ChatMessageCmd(mNotifIdGen.nextId(), 
-                                           new MessageInfo(requesterUser.getName(), null,msgInfo.getMessage()));
-                    ChannelHandlerContext recipientContext = recipientChannelInfo.getContext();
-                    sendNotif(notif, recipientContext);
-                } else {
-                    // persist the message (offline message) to later deliver it when the recipient logs in
-                    try {
-                        mUserMgr.insertMessage(requesterUser.getId(), recipient.getId(), msgInfo.getMessage());
-                    } catch (StoreException e) {
-                        aCtx.writeAndFlush(new ErrorResponse(cmdId, Code.INTERNAL_ERROR, e.getMessage()));
-                        LOGGER.error("internal error: " + e);
-                        return;
+                                           new MessageInfo(requesterUser.getName(), null, message));
+                    SlowConsumerGuard.Listener listener = aggregate(recipientSessions.length, 
+                                                                    new SlowConsumerGuard.Listener() {
+                        @Override
+                        public void accepted() {
+                            aCtx.writeAndFlush(new OkResponse(cmdId)); // respond to sender that the msg was processed
+                        }
+                        @Override
+                        public void overflowed(Policy aPolicy) {
+                            if (aPolicy == Policy.DROP) {
+                                aCtx.writeAndFlush(new ErrorResponse(cmdId, Code.RECIPIENT_BUSY, 
+                                                                     "recipient too slow, message dropped"));
+                            } else {
+                                storeOfflineMessage(aCtx, aMsg, requesterUser.getId(), recipientId, message);
+                            }
+                        }
+                    });
+                    // if tracked, kept by the sessions until acknowledged
+                    DeliveryTracker.Delivery delivery = mDeliveryTracker == null ? null : 
+                        new DeliveryTracker.Delivery(notif, aChannelInfo, cmdId, requesterUser.getId(), recipientId, 
+                                                     recipient.getName());
+                    for (ChannelInfo session : recipientSessions) {
+                        sendNotif(notif, session, 
+                                  delivery == null ? listener : mDeliveryTracker.track(session, delivery, listener));
                     }
+                    return;
                 }
-                aCtx.writeAndFlush(new OkResponse(cmdId)); // respond to sender that the msg has been processed
+                storeOfflineMessage(aCtx, aMsg, requesterUser.getId(), recipientId, message);
             }
         });
     }
 
+    /**
+     * Persists a message (offline message) to later deliver it when the recipient logs in. It is written in a batch
+     * with other messages: the sender is answered once the batch is committed. Doesn't block.
+     */
+    private void storeOfflineMessage(final ChannelHandlerContext aCtx, Command aMsg, UserId aSenderId, 
+                                     UserId aRecipientId, String aMessage) {
+        final int cmdId = aMsg.getId();
+        try {
+            mUserMgr.insertMessage(aSenderId, aRecipientId, aMessage, new OfflineMessageWriter.Listener() {
+                @Override
+                public void messageWritten() {
+                    aCtx.writeAndFlush(new OkResponse(cmdId));
+                }
+                @Override
+                public void writeFailed(StoreException aCause) {
+                    aCtx.writeAndFlush(new ErrorResponse(cmdId, Code.INTERNAL_ERROR, aCause.getMessage()));
+                    LOGGER.error("internal error: " + aCause);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("offline message writer saturated, rejected: " + aMsg);
+            aCtx.writeAndFlush(new ErrorResponse(cmdId, Code.BUSY, "server busy, retry later"));
+        }
+    }
+
+    /**
+     * Stores as an offline message a chat message parked for a connection that closed before writing it. The message
+     * may also have been written to another session of the recipient: a duplicate is better than a lost message.
+     */
+    private void storeParkedMessage(final ChatMessageCmd aNotif, final UserId aRecipientId) {
+        final MessageInfo msgInfo = aNotif.getMessageInfo();
+        try {
+            // blocking call to get the sender id: executed in the lane of the sender
+            mScheduler.execute(msgInfo.getSender(), new Runnable() {
+                @Override
+                public void run() {
+                    UserInfo sender = mUserMgr.getUserByName(msgInfo.getSender());
+                    if (sender == null) {
+                        return; // deleted meanwhile
+                    }
+                    try {
+                        mUserMgr.insertMessage(sender.getId(), aRecipientId, msgInfo.getMessage(), 
+                                               new OfflineMessageWriter.Listener() {
+                            @Override
+                            public void messageWritten() {
+                                // the sender was already answered
+                            }
+                            @Override
+                            public void writeFailed(StoreException aCause) {
+                                LOGGER.error("parked message not stored: " + aCause);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        LOGGER.warn("offline message writer saturated, parked message lost: " + aNotif);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("scheduler saturated, parked message lost: " + aNotif);
+        }
+    }
+
     private void processGetMessages(final ChannelHandlerContext aCtx, final Command aMsg, 
                                     final ChannelInfo aChannelInfo)
     {
         // this method does blocking calls (e.g. access User DB): execute them in other thread to not block 
         // the NIO thread and use ChannelHandlerContext to send outbound messages in a thread-safe way
-        mScheduler.execute(new Runnable() {
+        execute(aCtx, aMsg, aChannelInfo.getUserInfo().getName(), new Runnable() {
             @Override
             public void run() {
                 int cmdId = aMsg.getId();
+                GetPendingMessages cmd = (GetPendingMessages) aMsg;
                 UserId recipientId = aChannelInfo.getUserInfo().getId();
-                List<MessageInfo> pendingMsgs;
+                long ackToken = cmd.getAckToken();
+                int maxCount = cmd.getMaxMessages();
+                if (maxCount <= 0 || maxCount > PENDING_MSGS_PAGE_SIZE) {
+                    maxCount = PENDING_MSGS_PAGE_SIZE;
+                }
+                MessagePage page;
                 try {
-                    pendingMsgs = mUserMgr.getMessages(recipientId);
-                    mUserMgr.deleteMessagesForRecipient(recipientId);
+                    if (ackToken > 0) {
+                        // the client received the previous pages: they can be deleted now
+                        mUserMgr.deleteMessagesForRecipient(recipientId, ackToken);
+                    }
+                    page = mUserMgr.getMessages(recipientId, ackToken, maxCount);
                 } catch (StoreException e) {
                     aCtx.writeAndFlush(new ErrorResponse(cmdId, Code.INTERNAL_ERROR, e.getMessage()));
                     LOGGER.error("internal error: " + e);
                     return;
                 }
                 // everything went well
-                aCtx.writeAndFlush(new GetPendingMessagesResponse(cmdId, pendingMsgs));
+                writeWhenWritable(aCtx, new GetPendingMessagesResponse(cmdId, page.getMessages(), 
+                                                                       page.getLastMsgId(), page.hasMore()));
+            }
+        });
+    }
+
+    private void processRoomCreate(final ChannelHandlerContext aCtx, final Command aMsg, 
+                                   final ChannelInfo aChannelInfo)
+    {
+        // executed in the scheduler to be processed in order with the posts of the user
+        execute(aCtx, aMsg, aChannelInfo.getUserInfo().getName(), new Runnable() {
+            @Override
+            public void run() {
+                String roomName = getRoomName(aCtx, aMsg);
+                if (roomName == null) {
+                    return;
+                }
+                if (!mRoomMgr.create(roomName, aChannelInfo.getUserInfo())) {
+                    aCtx.writeAndFlush(new ErrorResponse(aMsg.getId(), Code.BAD_REQUEST, "room already exists: " + 
+                            roomName));
+                    return;
+                }
+                roomMembershipChanged(aCtx, aMsg, aChannelInfo, roomName);
+            }
+        });
+    }
+
+    private void processRoomJoin(final ChannelHandlerContext aCtx, final Command aMsg, 
+                                 final ChannelInfo aChannelInfo)
+    {
+        // executed in the scheduler to be processed in order with the posts of the user
+        execute(aCtx, aMsg, aChannelInfo.getUserInfo().getName(), new Runnable() {
+            @Override
+            public void run() {
+                String roomName = getRoomName(aCtx, aMsg);
+                if (roomName == null) {
+                    return;
+                }
+                if (!mRoomMgr.join(roomName, aChannelInfo.getUserInfo())) {
+                    aCtx.writeAndFlush(new ErrorResponse(aMsg.getId(), Code.BAD_REQUEST, "room does not exist: " + 
+                            roomName));
+                    return;
+                }
+                roomMembershipChanged(aCtx, aMsg, aChannelInfo, roomName);
+            }
+        });
+    }
+
+    private void processRoomLeave(final ChannelHandlerContext aCtx, final Command aMsg, 
+                                  final ChannelInfo aChannelInfo)
+    {
+        // executed in the scheduler to be processed in order with the posts of the user
+        execute(aCtx, aMsg, aChannelInfo.getUserInfo().getName(), new Runnable() {
+            @Override
+            public void run() {
+                String roomName = getRoomName(aCtx, aMsg);
+                if (roomName == null) {
+                    return;
+                }
+                mRoomMgr.leave(roomName, aChannelInfo.getUserInfo()); // already not a member is fine
+                roomMembershipChanged(aCtx, aMsg, aChannelInfo, roomName);
+            }
+        });
+    }
+
+    /**
+     * Returns the room name of a room command, answering an error if it is empty.
+     * @return the room name or null if the error was answered.
+     */
+    private static String getRoomName(ChannelHandlerContext aCtx, Command aMsg) {
+        String roomName = ((BaseRoomCmd) aMsg).getRoomName();
+        if (roomName == null || roomName.isEmpty()) {
+            aCtx.writeAndFlush(new ErrorResponse(aMsg.getId(), Code.BAD_REQUEST, "room name must not be empty"));
+            return null;
+        }
+        return roomName;
+    }
+
+    private static void roomMembershipChanged(ChannelHandlerContext aCtx, Command aMsg, ChannelInfo aChannelInfo, 
+                                              String aRoomName) {
+        LOGGER.info(aChannelInfo.getUserInfo().getName().getName() + " " + aMsg.getType() + " " + aRoomName);
+        aCtx.writeAndFlush(new OkResponse(aMsg.getId()));
+    }
+
+    private void processRoomPost(final ChannelHandlerContext aCtx, final Command aMsg, 
+                                 final ChannelInfo aChannelInfo)
+    {
+        // this method may store offline messages: execute it in other thread to not block the NIO thread
+        execute(aCtx, aMsg, aChannelInfo.getUserInfo().getName(), new Runnable() {
+            @Override
+            public void run() {
+                int cmdId = aMsg.getId();
+                RoomPostCmd cmd = (RoomPostCmd) aMsg;
+                try {
+                    if (!mRoomMgr.post(cmd.getRoomName(), aChannelInfo, cmd.getMessage(), aCtx.alloc())) {
+                        aCtx.writeAndFlush(new ErrorResponse(cmdId, Code.BAD_REQUEST, "not a member of room: " + 
+                                cmd.getRoomName()));
+                        return;
+                    }
+                } catch (Exception e) {
+                    aCtx.writeAndFlush(new ErrorResponse(cmdId, Code.INTERNAL_ERROR, e.getMessage()));
+                    LOGGER.error("internal error: " + e);
+                    return;
+                }
+                // the message is handed to the members' connections and the offline message writer
+                aCtx.writeAndFlush(new OkResponse(cmdId));
+            }
+        });
+    }
+
+    /**
+     * Executes a blocking task in the scheduler after the tasks previously submitted for the same user, so that
+     * the commands of a user are processed in order. If the scheduler is saturated, the client is answered that
+     * the server is busy so that it can retry later.
+     */
+    private void execute(ChannelHandlerContext aCtx, Command aMsg, UserName aUserName, Runnable aTask) {
+        try {
+            mScheduler.execute(aUserName, aTask);
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("scheduler saturated, rejected: " + aMsg);
+            aCtx.writeAndFlush(new ErrorResponse(aMsg.getId(), Code.BUSY, "server busy, retry later"));
+        }
+    }
+
+    /**
+     * Writes a response only if the outbound buffer of the connection is below its high water mark. Otherwise the
+     * response is parked until the connection becomes writable again. Used for big responses so that a slow client
+     * doesn't make the server buffer them.
+     */
+    private void writeWhenWritable(final ChannelHandlerContext aCtx, final Command aResponse) {
+        // check and park in the NIO thread to not race with channelWritabilityChanged()
+        aCtx.channel().eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (aCtx.channel().isWritable()) {
+                    aCtx.writeAndFlush(aResponse);
+                } else {
+                    aCtx.channel().attr(ChannelListener.CHANNEL_INFO).get().parkUntilWritable(aResponse);
+                }
             }
         });
     }
@@ -430,20 +804,23 @@ public class ServerLogicHandler extends SimpleChannelInboundHandler<Command> {
     private void processAddContactResponse(final ChannelHandlerContext aCtx, final Command aMsg, 
                                            final ChannelInfo aChannelInfo)
     {
+        final AddContactResponseCmd cmd = (AddContactResponseCmd) aMsg;
+        final UserName requesterUserName = cmd.getUserName();
+        if (requesterUserName == null) {
+            aCtx.channel().writeAndFlush(new ErrorResponse(aMsg.getId(), Code.BAD_REQUEST, 
+                    "Invite response must have a non null requester user name: " + aMsg));
+            return;
+        }
+        final UserName contactName = aChannelInfo.getUserInfo().getName();
+        // the contacts of a user are only modified in the lane of that user, otherwise two contacts answering the 
+        // same requester at the same time would overwrite each other's answer: first update the requester in its
+        // lane, then the contact in its lane.
         // this method does blocking calls (e.g. access User DB): execute them in other thread to not block 
         // the NIO thread and use ChannelHandlerContext to send outbound messages in a thread-safe way
-        mScheduler.execute(new Runnable() {
+        execute(aCtx, aMsg, requesterUserName, new Runnable() {
             @Override
             public void run() {
                 int cmdId = aMsg.getId();
-                AddContactResponseCmd cmd = (AddContactResponseCmd) aMsg;
-                UserName requesterUserName = cmd.getUserName();
-                if (requesterUserName == null) {
-                    aCtx.channel().writeAndFlush(new ErrorResponse(cmdId, Code.BAD_REQUEST, 
-                            "Invite response must have a non null requester user name: " + aMsg));
-                    return;
-                }
-                
                 // verify that the add contact requester exists
                 UserInfo requesterUser = mUserMgr.getUserByName(requesterUserName);
                 if (requesterUser == null) {
@@ -453,54 +830,187 @@ public class ServerLogicHandler extends SimpleChannelInboundHandler<Command> {
                 }
                 
                 // verify that there's a pending addContact request
-                UserInfo contact = aChannelInfo.getUserInfo();
-                ContactInfo pendingContact = getContact(requesterUser.getContacts(), contact.getName());
+                ContactInfo pendingContact = getContact(requesterUser.getContacts(), contactName);
                 if (pendingContact == null || pendingContact.getState() != ContactState.PENDING) {
                     aCtx.channel().writeAndFlush(new ErrorResponse(cmdId, Code.BAD_REQUEST, 
                             "No pending add contact request for this requester: " + aMsg));
                     return;
                 }
                 
-                List<ContactInfo> newContacts = removeContact(requesterUser.getContacts(), contact.getName());
+                List<ContactInfo> newContacts = removeContact(requesterUser.getContacts(), contactName);
                 if (cmd.isAccepted()) {
                     newContacts.add(new ContactInfo(pendingContact.getContact(), ContactState.CONTACT));
-                    // make sure the requester is also added to the contact's contacts
-                    List<ContactInfo> contactNewContacts = removeContact(contact.getContacts(), requesterUserName);
-                    contactNewContacts.add(new ContactInfo(requesterUser, ContactState.CONTACT));
-                    contact.setContacts(contactNewContacts);
                 }
                 
-                // persist any change
+                // persist the change of the requester
                 try {
                     requesterUser.setContacts(newContacts);
                     mUserMgr.persistUser(requesterUser);
-                    mUserMgr.persistUser(contact);
                 } catch (StoreException e) {
                     aCtx.writeAndFlush(new ErrorResponse(cmdId, Code.INTERNAL_ERROR, e.getMessage()));
                     LOGGER.error("internal error: " + e);
                     return;
                 }
                 
-                ChannelInfo requesterChannelInfo = mUserMgr.getLoggedInUserChannel(requesterUserName);
-                if (requesterChannelInfo != null) {
-                    // requester user existing and logged in. Forward response to the requester
-                    AddContactResponseCmd responseCmd = new AddContactResponseCmd(cmdId, null, 
-                                                                                contact.getName(), cmd.isAccepted());
-                    ChannelHandlerContext requesterContext = requesterChannelInfo.getContext();
-                    requesterContext.writeAndFlush(responseCmd);
-                }
-                // respond to caller
-                aCtx.writeAndFlush(new OkResponse(cmdId));
+                if (!cmd.isAccepted()) {
+                    contactResponded(aCtx, cmd, requesterUser, contactName);
+                    return;
+                }
+                // make sure the requester is also added to the contact's contacts. If that fails, the invitation
+                // is put back so that the contact can answer it again
+                final UserInfo requester = requesterUser;
+                final UserInfo invited = pendingContact.getContact();
+                try {
+                    mScheduler.execute(contactName, new Runnable() {
+                        @Override
+                        public void run() {
+                            int cmdId = aMsg.getId();
+                            UserInfo contact = mUserMgr.getUserByName(contactName);
+                            if (contact == null) {
+                                restoreInviteInLane(requesterUserName, invited);
+                                aCtx.writeAndFlush(new ErrorResponse(cmdId, Code.BAD_REQUEST, 
+                                        "contact does not exist: " + contactName));
+                                return;
+                            }
+                            List<ContactInfo> contactNewContacts = removeContact(contact.getContacts(), 
+                                                                                 requesterUserName);
+                            contactNewContacts.add(new ContactInfo(requester, ContactState.CONTACT));
+                            try {
+                                contact.setContacts(contactNewContacts);
+                                mUserMgr.persistUser(contact);
+                            } catch (StoreException e) {
+                                restoreInviteInLane(requesterUserName, invited);
+                                aCtx.writeAndFlush(new ErrorResponse(cmdId, Code.INTERNAL_ERROR, e.getMessage()));
+                                LOGGER.error("internal error: " + e);
+                                return;
+                            }
+                            contactResponded(aCtx, cmd, requester, contactName);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    restoreInvite(requesterUserName, invited); // already in the lane of the requester
+                    LOGGER.warn("scheduler saturated, rejected: " + aMsg);
+                    aCtx.writeAndFlush(new ErrorResponse(cmdId, Code.BUSY, "server busy, retry later"));
+                }
             }
         });
     }
 
-    private void sendNotif(final Command aCommand, ChannelHandlerContext aTargetContext) {
-        ChannelFuture future = aTargetContext.writeAndFlush(aCommand);
-        future.addListener(new ChannelFutureListener() {
+    /**
+     * Puts back the invitation of a contact whose acceptance could not be persisted for the contact, so that the
+     * requester doesn't keep a contact who doesn't have it and the contact can answer again. Must be executed in the
+     * lane of the requester.
+     */
+    private void restoreInvite(UserName aRequesterName, UserInfo aContact) {
+        UserInfo requester = mUserMgr.getUserByName(aRequesterName);
+        if (requester == null) {
+            return; // deleted meanwhile
+        }
+        List<ContactInfo> contacts = removeContact(requester.getContacts(), aContact.getName());
+        contacts.add(new ContactInfo(aContact, ContactState.PENDING));
+        requester.setContacts(contacts);
+        try {
+            mUserMgr.persistUser(requester);
+        } catch (StoreException e) {
+            LOGGER.error("invitation of " + aContact.getName() + " by " + aRequesterName + " not restored: " + e);
+        }
+    }
+
+    /**
+     * Executes {@link #restoreInvite(UserName, UserInfo)} in the lane of the requester.
+     */
+    private void restoreInviteInLane(final UserName aRequesterName, final UserInfo aContact) {
+        try {
+            mScheduler.execute(aRequesterName, new Runnable() {
+                @Override
+                public void run() {
+                    restoreInvite(aRequesterName, aContact);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.error("scheduler saturated, invitation of " + aContact.getName() + " by " + aRequesterName + 
+                         " not restored");
+        }
+    }
+
+    /**
+     * Forwards the response to an invitation to the requester once persisted and answers the contact.
+     */
+    private void contactResponded(ChannelHandlerContext aCtx, AddContactResponseCmd aCmd, UserInfo aRequester, 
+                                  UserName aContactName) {
+        int cmdId = aCmd.getId();
+        ChannelInfo[] requesterSessions = mUserMgr.getLoggedInUserChannels(aRequester.getId());
+        if (requesterSessions.length > 0) {
+            // requester user existing and logged in. Forward response to the requester
+            AddContactResponseCmd responseCmd = new AddContactResponseCmd(cmdId, null, aContactName, 
+                                                                          aCmd.isAccepted());
+            sendNotif(responseCmd, requesterSessions, null);
+        }
+        // respond to caller
+        aCtx.writeAndFlush(new OkResponse(cmdId));
+    }
+
+    /**
+     * Sends a notification to all the sessions of a logged in user. The listener is notified once: accepted if at
+     * least one session accepted the notification, otherwise overflowed once all the sessions overflowed.
+     */
+    private void sendNotif(Command aCommand, ChannelInfo[] aRecipients, SlowConsumerGuard.Listener aListener) {
+        SlowConsumerGuard.Listener listener = aggregate(aRecipients.length, aListener);
+        for (ChannelInfo recipient : aRecipients) {
+            sendNotif(aCommand, recipient, listener);
+        }
+    }
+
+    /**
+     * Returns a listener to give to each session of a user so that the given listener is notified once: accepted if
+     * at least one session accepted the notification, otherwise overflowed once all the sessions overflowed.
+     */
+    private static SlowConsumerGuard.Listener aggregate(int aSessionCount, final SlowConsumerGuard.Listener aListener) {
+        if (aSessionCount == 1 || aListener == null) {
+            return aListener;
+        }
+        final AtomicInteger remaining = new AtomicInteger(aSessionCount);
+        final AtomicBoolean accepted = new AtomicBoolean();
+        final AtomicReference<Policy> overflow = new AtomicReference<>(Policy.SPILL);
+        return new SlowConsumerGuard.Listener() {
             @Override
-            public void operationComplete(ChannelFuture aFuture) throws Exception {
+            public void accepted() {
+                if (!accepted.getAndSet(true)) {
+                    aListener.accepted();
+                }
+                remaining.decrementAndGet();
+            }
+            @Override
+            public void overflowed(Policy aPolicy) {
+                if (aPolicy != Policy.SPILL) {
+                    overflow.set(aPolicy); // SPILL only for the sessions closed meanwhile
+                }
+                if (remaining.decrementAndGet() == 0 && !accepted.get()) {
+                    aListener.overflowed(overflow.get());
+                }
+            }
+        };
+    }
+
+    /**
+     * Sends a notification to a session of a logged in user, unless the user doesn't read its notifications fast 
+     * enough: see {@link SlowConsumerGuard}.
+     */
+    private void sendNotif(final Command aCommand, ChannelInfo aRecipient, final SlowConsumerGuard.Listener aListener) {
+        mSlowConsumerGuard.send(aRecipient, aCommand, new SlowConsumerGuard.Listener() {
+            @Override
+            public void accepted() {
                 LOGGER.info("Sent notif: " + aCommand);
+                if (aListener != null) {
+                    aListener.accepted();
+                }
+            }
+            @Override
+            public void overflowed(Policy aPolicy) {
+                LOGGER.info("Notif not sent (" + aPolicy + "): " + aCommand);
+                if (aListener != null) {
+                    aListener.overflowed(aPolicy);
+                }
             }
         });
     }
@@ -0,0 +1,189 @@
+package com.thn.netty.chat.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+import org.apache.log4j.Logger;
+
+import com.thn.netty.chat.primitive.Command;
+
+/**
+ * Sends the notifications to the users without letting a slow or stalled client make the server buffer an unbounded
+ * amount of outbound data. A notification is written only if the connection of its recipient is writable, i.e. below
+ * its high water mark. Otherwise it is parked in the {@link ChannelInfo} of the recipient until the connection is
+ * writable again. Once the recipient has too many parked notifications, the {@link Policy} is applied.</p>
+ * A notification is a {@link Command} or an already encoded command ({@link ByteBuf}) shared by several
+ * recipients, possibly in a {@link ByteBufHolder} keeping what is needed to store it as an offline message if it
+ * is still parked when the connection closes. The guard takes ownership of the encoded ones: they are released if
+ * they can't be written.
+ * @author Thierry Herrmann
+ */
+public class SlowConsumerGuard {
+    private static final Logger LOGGER = Logger.getLogger(SlowConsumerGuard.class.getName());
+
+    /**
+     * What to do with a notification when its recipient has too many parked notifications.
+     */
+    public static enum Policy {
+        /** Store the notification as an offline message the recipient gets later. */
+        SPILL,
+        /** Drop the notification and answer an error to the sender. */
+        DROP,
+        /** Close the connection of the recipient and store the notification as an offline message. */
+        DISCONNECT;
+
+        /**
+         * Returns the policy selected by the <code>chat.slowConsumer.policy</code> system property.
+         * @return the policy. {@link #SPILL} by default.
+         */
+        public static Policy get() {
+            return valueOf(System.getProperty("chat.slowConsumer.policy", SPILL.name()).toUpperCase());
+        }
+    }
+
+    /**
+     * Notified in the event loop of the recipient once the notification is sent or parked, or when the policy is
+     * applied. The listener does the {@link Policy#SPILL} and answers the sender.
+     */
+    public interface Listener {
+        void accepted();
+        void overflowed(Policy aPolicy);
+    }
+
+    private final Policy mPolicy;
+    private final int mMaxParked;
+    private final AtomicLong mParkedCount = new AtomicLong();
+    private final AtomicLong mSpilledCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mDisconnectedCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param aPolicy policy applied when a recipient has too many parked notifications.
+     * @param aMaxParked maximum number of parked notifications per connection.
+     */
+    public SlowConsumerGuard(Policy aPolicy, int aMaxParked) {
+        mPolicy = aPolicy;
+        mMaxParked = aMaxParked;
+    }
+
+    /**
+     * Sends a notification to a logged in user.
+     * @param aRecipient channel of the recipient.
+     * @param aNotif notification: a {@link Command} or an encoded command ({@link ByteBuf}).
+     * @param aListener notified of the outcome. Optional (can be null).
+     */
+    public void send(final ChannelInfo aRecipient, final Object aNotif, final Listener aListener) {
+        // check and park in the NIO thread to not race with channelWritabilityChanged()
+        aRecipient.getContext().channel().eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                sendInEventLoop(aRecipient, aNotif, aListener);
+            }
+        });
+    }
+
+    /**
+     * Sends a notification to a logged in user. Must be called from the event loop of the recipient, e.g. to send
+     * several notifications to the connections of the same event loop with a single task.
+     * @param aRecipient channel of the recipient.
+     * @param aNotif notification: a {@link Command} or an encoded command ({@link ByteBuf}).
+     * @param aListener notified of the outcome. Optional (can be null).
+     */
+    public void sendInEventLoop(ChannelInfo aRecipient, Object aNotif, Listener aListener) {
+        ChannelHandlerContext context = aRecipient.getContext();
+        Channel channel = context.channel();
+        if (!channel.isActive()) {
+            // the recipient disconnected meanwhile: it is now offline
+            overflow(aRecipient, aNotif, aListener, Policy.SPILL);
+            return;
+        }
+        // the parked notifications go first to keep the order
+        if (channel.isWritable() && aRecipient.getParkedCount() == 0) {
+            context.writeAndFlush(toWritable(aNotif));
+        } else if (aRecipient.getParkedCount() < mMaxParked) {
+            mParkedCount.incrementAndGet();
+            aRecipient.parkUntilWritable(aNotif);
+        } else {
+            overflow(aRecipient, aNotif, aListener, mPolicy);
+            return;
+        }
+        if (aListener != null) {
+            aListener.accepted();
+        }
+    }
+
+    /**
+     * Returns what is written to the connection for a notification: the encoded command of a {@link ByteBufHolder},
+     * which the transport doesn't accept, or the notification itself.
+     * @param aNotif notification, e.g. polled from the parked ones.
+     * @return the object to write. Takes over the reference of the holder.
+     */
+    static Object toWritable(Object aNotif) {
+        return aNotif instanceof ByteBufHolder ? ((ByteBufHolder) aNotif).content() : aNotif;
+    }
+
+    private void overflow(ChannelInfo aRecipient, Object aNotif, Listener aListener, Policy aPolicy) {
+        ReferenceCountUtil.release(aNotif);
+        switch (aPolicy) {
+        case SPILL:
+            mSpilledCount.incrementAndGet();
+            break;
+        case DROP:
+            mDroppedCount.incrementAndGet();
+            break;
+        case DISCONNECT:
+            mDisconnectedCount.incrementAndGet();
+            LOGGER.warn("disconnecting slow consumer: " + aRecipient.getUserInfo());
+            aRecipient.getContext().close();
+            break;
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(aPolicy + " notification for " + aRecipient.getUserInfo() + ": " + aNotif);
+        }
+        if (aListener != null) {
+            aListener.overflowed(aPolicy);
+        }
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    public long getParkedCount() {
+        return mParkedCount.get();
+    }
+
+    public long getSpilledCount() {
+        return mSpilledCount.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public long getDisconnectedCount() {
+        return mDisconnectedCount.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .append("policy", mPolicy)
+        .append("maxParked", mMaxParked)
+        .append("parked", getParkedCount())
+        .append("spilled", getSpilledCount())
+        .append("dropped", getDroppedCount())
+        .append("disconnected", getDisconnectedCount())
+        .toString();
+    }
+}
@@ -0,0 +1,75 @@
+package com.thn.netty.chat.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Chat message notifications written to a connection and not acknowledged yet by the client, in the order they were
+ * (re)delivered, which is also the order of their redelivery deadlines. Only accessed from the NIO thread of the
+ * connection: see {@link DeliveryTracker}.
+ * @author Thierry Herrmann
+ */
+public class UnackedWindow {
+    private final LinkedHashMap<Integer, Entry> mEntries = new LinkedHashMap<>();
+    // redelivery of the first entry, null if none scheduled
+    ScheduledFuture<?> mTimer;
+
+    /**
+     * Adds a notification at the end of the window.
+     * @param aEntry entry of the notification.
+     */
+    void add(Entry aEntry) {
+        mEntries.put(aEntry.mDelivery.getNotifId(), aEntry);
+    }
+
+    /**
+     * Removes an acknowledged notification.
+     * @param aNotifId id of the notification.
+     * @return the entry of the notification or null if not in the window.
+     */
+    Entry remove(int aNotifId) {
+        return mEntries.remove(aNotifId);
+    }
+
+    /**
+     * Returns the first entry, i.e. the one with the earliest redelivery deadline.
+     * @return the first entry or null if the window is empty.
+     */
+    Entry peek() {
+        Iterator<Entry> iter = mEntries.values().iterator();
+        return iter.hasNext() ? iter.next() : null;
+    }
+
+    /**
+     * Removes and returns the first entry.
+     * @return the first entry or null if the window is empty.
+     */
+    Entry poll() {
+        Iterator<Entry> iter = mEntries.values().iterator();
+        if (!iter.hasNext()) {
+            return null;
+        }
+        Entry entry = iter.next();
+        iter.remove();
+        return entry;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * A notification delivered to this connection.
+     */
+    static class Entry {
+        final DeliveryTracker.Delivery mDelivery;
+        long mDeadlineNanos;
+        int mAttempts = 1;
+
+        Entry(DeliveryTracker.Delivery aDelivery, long aDeadlineNanos) {
+            mDelivery = aDelivery;
+            mDeadlineNanos = aDeadlineNanos;
+        }
+    }
+}
@@ -1,15 +1,19 @@
 package com.thn.netty.chat.server;
 
+import java.io.File;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.log4j.Logger;
 
-import com.thn.netty.chat.primitive.MessageInfo;
 import com.thn.netty.chat.primitive.UserId;
 import com.thn.netty.chat.primitive.UserName;
+import com.thn.netty.chat.server.store.CachingUserStore;
 import com.thn.netty.chat.server.store.JdbcUserStore;
+import com.thn.netty.chat.server.store.JournalMessageStore;
+import com.thn.netty.chat.server.store.MessagePage;
+import com.thn.netty.chat.server.store.MessageStore;
+import com.thn.netty.chat.server.store.OfflineMessage;
 import com.thn.netty.chat.server.store.StoreException;
 import com.thn.netty.chat.server.store.UserStore;
 import com.thn.netty.chat.user.ContactInfo;
@@ -17,25 +21,106 @@ import com.thn.netty.chat.user.ContactState;
 import com.thn.netty.chat.user.UserInfo;
 
 /**
- * Performs all accesses to persistent data. Uses the {@link UserStore}.
+ * Performs all accesses to persistent data. Uses the {@link UserStore}, and a {@link JournalMessageStore} for the
+ * offline messages if the <code>chat.store.messages</code> system property is <code>journal</code>.
  * @author Thierry Herrmann
  */
 public class UserManager {
     private static final Logger LOGGER = Logger.getLogger(UserManager.class.getName());
-    private final Map<UserName, ChannelInfo> mLoggedInUsers = new ConcurrentHashMap<>();
+    // as many shards as event loops by default (netty creates 2 per core). The users are spread by id, not by loop
+    private static final int PRESENCE_SHARDS = 
+            Integer.getInteger("chat.presence.shards", 2 * Runtime.getRuntime().availableProcessors());
+    private final PresenceRegistry mPresence = new PresenceRegistry(PRESENCE_SHARDS);
+    private static final int USER_CACHE_SIZE = Integer.getInteger("chat.store.userCacheSize", 10000);
+    private static final int MSG_BATCH_SIZE = Integer.getInteger("chat.offlineMessages.batchSize", 256);
+    private static final long MSG_BATCH_DELAY_MILLIS = Long.getLong("chat.offlineMessages.batchDelayMillis", 5);
+    private static final int MSG_QUEUE_CAPACITY = Integer.getInteger("chat.offlineMessages.queueCapacity", 10000);
+    // jdbc: in the user store, journal: JournalMessageStore
+    private static final String MESSAGE_STORE = System.getProperty("chat.store.messages", "jdbc");
+    private static final String JOURNAL_DIR = System.getProperty("chat.store.journal.dir", "messages");
+    private static final int JOURNAL_SEGMENT_SIZE = 
+            Integer.getInteger("chat.store.journal.segmentSize", 64 * 1024 * 1024);
+    private static final int JOURNAL_COMPACT_LIVE_PERCENT = 
+            Integer.getInteger("chat.store.journal.compactLivePercent", 25);
+    private static final boolean JOURNAL_SYNC = Boolean.getBoolean("chat.store.journal.sync");
     private UserStore mStore;
+    private MessageStore mMessageStore;
+    private OfflineMessageWriter mMessageWriter;
+    private volatile PresenceListener mPresenceListener;
+
+    /**
+     * Notified when a user comes online (first session) or goes offline (last session), and of each new session.
+     */
+    public interface PresenceListener {
+        void presenceChanged(UserInfo aUser, boolean aOnline);
+        void sessionStarted(UserInfo aUser, ChannelInfo aSession);
+    }
     
     /**
-     * Constructor. Creates underlying {@link UserStore}.
+     * Constructor. Creates underlying {@link UserStore}, with a {@link CachingUserStore} in front of it unless
+     * the <code>chat.store.userCacheSize</code> system property is 0.
      */
     public UserManager() {
         try {
             mStore = new JdbcUserStore(false);
+            if (USER_CACHE_SIZE > 0) {
+                mStore = new CachingUserStore(mStore, USER_CACHE_SIZE);
+            }
+            if ("journal".equals(MESSAGE_STORE)) {
+                mMessageStore = new JournalMessageStore(new File(JOURNAL_DIR), JOURNAL_SEGMENT_SIZE,
+                                                        JOURNAL_COMPACT_LIVE_PERCENT, JOURNAL_SYNC, mStore);
+            } else {
+                mMessageStore = mStore;
+            }
+            mMessageWriter = newMessageWriter(mMessageStore);
         } catch (StoreException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Constructor.
+     * @param aStore underlying {@link UserStore}, also storing the offline messages.
+     */
+    public UserManager(UserStore aStore) {
+        this(aStore, aStore);
+    }
+
+    /**
+     * Constructor.
+     * @param aStore underlying {@link UserStore}.
+     * @param aMessageStore store of the offline messages.
+     */
+    public UserManager(UserStore aStore, MessageStore aMessageStore) {
+        mStore = aStore;
+        mMessageStore = aMessageStore;
+        mMessageWriter = newMessageWriter(mMessageStore);
+    }
+
+    private static OfflineMessageWriter newMessageWriter(MessageStore aStore) {
+        return new OfflineMessageWriter(aStore, MSG_BATCH_SIZE, MSG_BATCH_DELAY_MILLIS, MSG_QUEUE_CAPACITY);
+    }
+
+    public UserStore getStore() {
+        return mStore;
+    }
+
+    public MessageStore getMessageStore() {
+        return mMessageStore;
+    }
+
+    public OfflineMessageWriter getMessageWriter() {
+        return mMessageWriter;
+    }
+
+    public PresenceRegistry getPresence() {
+        return mPresence;
+    }
+
+    public void setPresenceListener(PresenceListener aPresenceListener) {
+        mPresenceListener = aPresenceListener;
+    }
+
     /**
      * Returns a {@link UserInfo}
      * @param aName
@@ -60,28 +145,44 @@ public class UserManager {
     
     public void userLoggedIn(UserInfo aUserInfo, ChannelInfo aChannelInfo) {
         aChannelInfo.setUserInfo(aUserInfo);
-        UserName name = aUserInfo.getName();
-        mLoggedInUsers.put(name, aChannelInfo);
-        LOGGER.info("User " + name.getName() + " logged in");
+        boolean cameOnline = mPresence.add(aUserInfo.getId(), aChannelInfo);
+        LOGGER.info("User " + aUserInfo.getName().getName() + " logged in");
+        PresenceListener listener = mPresenceListener;
+        if (listener != null) {
+            if (cameOnline) {
+                listener.presenceChanged(aUserInfo, true);
+            }
+            listener.sessionStarted(aUserInfo, aChannelInfo);
+        }
     }
 
     public boolean isUserLoggedIn(ChannelInfo aChannelInfo) {
         return aChannelInfo.getUserInfo() != null;
     }
     
-    public void userLoggedOut(UserName aUserName) {
-        mLoggedInUsers.remove(aUserName);
-        LOGGER.info("User " + aUserName.getName() + " logged out");
+    /**
+     * Ends a session of a user. The other sessions of the user, if any, stay logged in.
+     * @param aUserInfo user.
+     * @param aChannelInfo session. Its user info is cleared.
+     */
+    public void userLoggedOut(UserInfo aUserInfo, ChannelInfo aChannelInfo) {
+        aChannelInfo.setUserInfo(null);
+        if (mPresence.remove(aUserInfo.getId(), aChannelInfo)) {
+            LOGGER.info("User " + aUserInfo.getName().getName() + " logged out");
+            PresenceListener listener = mPresenceListener;
+            if (listener != null) {
+                listener.presenceChanged(aUserInfo, false);
+            }
+        }
     }
     
-    public ChannelInfo getLoggedInUserChannel(UserName aUserName) {
-        ChannelInfo channelInfo = mLoggedInUsers.get(aUserName);
-        if (channelInfo != null) {
-            // user not logged in or not existing
-            return channelInfo;
-        }
-        // user existing and logged in
-        return null;
+    /**
+     * Returns the sessions of a logged in user.
+     * @param aUserId user.
+     * @return the sessions, empty if the user is not logged in. Must not be modified.
+     */
+    public ChannelInfo[] getLoggedInUserChannels(UserId aUserId) {
+        return mPresence.getSessions(aUserId);
     }
 
     public List<ContactInfo> getContactOfUsers(UserId aContactId, ContactState aContactState) throws StoreException {
@@ -94,26 +195,54 @@ public class UserManager {
     
     public void insertMessage(UserId aSenderId, UserId aRecipientId, String aMessage) throws StoreException {
         try {
-            mStore.insertMessage(aSenderId, aRecipientId, aMessage);
+            mMessageStore.insertMessage(aSenderId, aRecipientId, aMessage);
         } catch (StoreException e) {
             throw new RuntimeException(e);
         }
     }
     
-    public List<MessageInfo> getMessages(UserId aRecipientId) throws StoreException {
+    /**
+     * Inserts an offline message asynchronously with the messages of other senders in a single transaction.
+     * @param aSenderId sender.
+     * @param aRecipientId recipient.
+     * @param aMessage message text.
+     * @param aListener notified once the message is committed or failed.
+     * @throws RejectedExecutionException if too many messages are waiting to be written.
+     */
+    public void insertMessage(UserId aSenderId, UserId aRecipientId, String aMessage, 
+                              OfflineMessageWriter.Listener aListener) {
+        mMessageWriter.write(new OfflineMessage(aSenderId, aRecipientId, aMessage), aListener);
+    }
+    
+    public MessagePage getMessages(UserId aRecipientId, long aAfterMsgId, int aMaxCount) throws StoreException {
         try {
-            return mStore.getMessages(aRecipientId);
+            return mMessageStore.getMessages(aRecipientId, aAfterMsgId, aMaxCount);
         } catch (StoreException e) {
             throw new RuntimeException(e);
         }
     }
     
-    public void deleteMessagesForRecipient(UserId aRecipientId) throws StoreException {
+    public void deleteMessagesForRecipient(UserId aRecipientId, long aUpToMsgId) throws StoreException {
         try {
-            mStore.deleteMessagesForRecipient(aRecipientId);
+            mMessageStore.deleteMessagesForRecipient(aRecipientId, aUpToMsgId);
         } catch (StoreException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Writes the offline messages already submitted and stops the writer. Closes the message store if it is not the
+     * user store.
+     * @throws InterruptedException if interrupted while waiting for the writer.
+     */
+    public void shutdown() throws InterruptedException {
+        mMessageWriter.shutdown(5000);
+        if (mMessageStore != mStore) {
+            try {
+                mMessageStore.destroy();
+            } catch (StoreException e) {
+                LOGGER.error("could not close the message store", e);
+            }
+        }
+    }
 }
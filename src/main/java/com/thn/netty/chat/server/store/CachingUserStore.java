@@ -0,0 +1,241 @@
+package com.thn.netty.chat.server.store;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+import com.thn.netty.chat.primitive.UserId;
+import com.thn.netty.chat.primitive.UserName;
+import com.thn.netty.chat.user.ContactInfo;
+import com.thn.netty.chat.user.ContactState;
+import com.thn.netty.chat.user.UserInfo;
+
+/**
+ * {@link UserStore} decorator caching the users returned by {@link #getUserByName(UserName)} with their contacts, so
+ * that the hot users are not read from the underlying store for every message. The cache is bounded and evicts the
+ * least recently used users. Writes go to the underlying store and invalidate the cached user.
+ * <p>
+ * The cache keeps its own copies and returns copies, so callers can modify the returned users as before. Missing
+ * users are not cached. The user information of the contacts is cached as part of the contacts list and is not
+ * refreshed when the contact itself changes.
+ * @author Thierry Herrmann
+ */
+public class CachingUserStore implements UserStore {
+    private final UserStore mStore;
+    private final int mMaxSize;
+    // LRU cache of users by name and index of the cached names by id. Guarded by mUsers
+    private final Map<UserName, UserInfo> mUsers;
+    private final Map<UserId, UserName> mNames = new HashMap<>();
+    // incremented by each invalidation so that a user read before it is not cached after it. Guarded by mUsers
+    private long mGeneration;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param aStore underlying store.
+     * @param aMaxSize maximum number of cached users.
+     */
+    public CachingUserStore(UserStore aStore, int aMaxSize) {
+        mStore = aStore;
+        mMaxSize = aMaxSize;
+        mUsers = new LinkedHashMap<UserName, UserInfo>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UserName, UserInfo> aEldest) {
+                if (size() > mMaxSize) {
+                    mNames.remove(aEldest.getValue().getId());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public void createTables() throws StoreException {
+        try {
+            mStore.createTables();
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public void dropTables() throws StoreException {
+        try {
+            mStore.dropTables();
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public UserInfo persistUser(UserInfo aUser) throws StoreException {
+        UserInfo persistedUser = null;
+        try {
+            persistedUser = mStore.persistUser(aUser);
+            return persistedUser;
+        } finally {
+            // also invalidate when failed: some contacts may have been persisted
+            invalidate(aUser.getName(), persistedUser == null ? aUser.getId() : persistedUser.getId());
+        }
+    }
+
+    @Override
+    public UserInfo getUserById(UserId aUserId) throws StoreException {
+        return mStore.getUserById(aUserId); // returns the user without contacts: not cached
+    }
+
+    @Override
+    public UserInfo getUserByName(UserName aUserName) throws StoreException {
+        long generation;
+        synchronized (mUsers) {
+            UserInfo user = mUsers.get(aUserName);
+            if (user != null) {
+                mHits.incrementAndGet();
+                return copy(user);
+            }
+            generation = mGeneration;
+        }
+        mMisses.incrementAndGet();
+        UserInfo user = mStore.getUserByName(aUserName);
+        if (user != null) {
+            synchronized (mUsers) {
+                if (generation == mGeneration) {
+                    mUsers.put(aUserName, copy(user));
+                    mNames.put(user.getId(), aUserName);
+                }
+            }
+        }
+        return user;
+    }
+
+    @Override
+    public void deleteUser(UserId aUserId) throws StoreException {
+        try {
+            mStore.deleteUser(aUserId);
+        } finally {
+            // the user may also be cached as a contact of other users
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public void updateContact(UserId aUserId, UserId aContactId, ContactState aState) throws StoreException {
+        try {
+            mStore.updateContact(aUserId, aContactId, aState);
+        } finally {
+            invalidate(null, aUserId);
+        }
+    }
+
+    @Override
+    public List<ContactInfo> getContacts(UserId aUserId) throws StoreException {
+        return mStore.getContacts(aUserId);
+    }
+
+    @Override
+    public List<ContactInfo> getContactOfUsers(UserId aUserId, ContactState aContactState) throws StoreException {
+        return mStore.getContactOfUsers(aUserId, aContactState);
+    }
+
+    @Override
+    public void deleteContact(UserId aUserId, UserId aContactId) throws StoreException {
+        try {
+            mStore.deleteContact(aUserId, aContactId);
+        } finally {
+            invalidate(null, aUserId);
+        }
+    }
+
+    @Override
+    public void insertMessage(UserId aSenderId, UserId aRecipientId, String aMessage) throws StoreException {
+        mStore.insertMessage(aSenderId, aRecipientId, aMessage);
+    }
+
+    @Override
+    public void insertMessages(List<OfflineMessage> aMessages) throws StoreException {
+        mStore.insertMessages(aMessages);
+    }
+
+    @Override
+    public MessagePage getMessages(UserId aRecipientId, long aAfterMsgId, int aMaxCount) throws StoreException {
+        return mStore.getMessages(aRecipientId, aAfterMsgId, aMaxCount);
+    }
+
+    @Override
+    public void deleteMessagesForRecipient(UserId aRecipientId, long aUpToMsgId) throws StoreException {
+        mStore.deleteMessagesForRecipient(aRecipientId, aUpToMsgId);
+    }
+
+    @Override
+    public void destroy() throws StoreException {
+        invalidateAll();
+        mStore.destroy();
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public int getSize() {
+        synchronized (mUsers) {
+            return mUsers.size();
+        }
+    }
+
+    private void invalidate(UserName aUserName, UserId aUserId) {
+        synchronized (mUsers) {
+            mGeneration++;
+            if (aUserName != null) {
+                UserInfo user = mUsers.remove(aUserName);
+                if (user != null) {
+                    mNames.remove(user.getId());
+                }
+            }
+            if (aUserId != null) {
+                // the name may have changed
+                UserName name = mNames.remove(aUserId);
+                if (name != null) {
+                    mUsers.remove(name);
+                }
+            }
+        }
+    }
+
+    private void invalidateAll() {
+        synchronized (mUsers) {
+            mGeneration++;
+            mUsers.clear();
+            mNames.clear();
+        }
+    }
+
+    private static UserInfo copy(UserInfo aUser) {
+        UserInfo copy = new UserInfo(aUser.getId(), aUser.getName(), aUser.getPassword());
+        copy.setContacts(aUser.getContacts());
+        return copy;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .append("size", getSize())
+        .append("mMaxSize", mMaxSize)
+        .append("hits", getHitCount())
+        .append("misses", getMissCount())
+        .toString();
+    }
+}
@@ -0,0 +1,137 @@
+package com.thn.netty.chat.server.store;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of JDBC connections. Each connection caches its {@link PreparedStatement}s by SQL string so that they
+ * are prepared only once. A connection stays bound to the thread which acquired it until the matching number of
+ * {@link #release(PooledConnection)}: nested store calls (e.g. getUserByName() calling getContacts()) then reuse it
+ * instead of taking a second connection, which could deadlock when the pool is exhausted.
+ * @author Thierry Herrmann
+ */
+class ConnectionPool {
+    private final List<PooledConnection> mAll;
+    private final BlockingQueue<PooledConnection> mIdle;
+    private final ThreadLocal<PooledConnection> mCurrent = new ThreadLocal<>();
+    private final long mAcquireTimeoutMillis;
+
+    /**
+     * Constructor. Opens all the connections.
+     * @param aUrl JDBC URL.
+     * @param aSize number of connections.
+     * @param aAcquireTimeoutMillis maximum time to wait for a connection.
+     * @throws SQLException if a connection can't be opened.
+     */
+    ConnectionPool(String aUrl, int aSize, long aAcquireTimeoutMillis) throws SQLException {
+        mAll = new ArrayList<>(aSize);
+        mIdle = new ArrayBlockingQueue<>(aSize);
+        mAcquireTimeoutMillis = aAcquireTimeoutMillis;
+        try {
+            for (int i = 0; i < aSize; i++) {
+                PooledConnection conn = new PooledConnection(DriverManager.getConnection(aUrl));
+                mAll.add(conn);
+                mIdle.add(conn);
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the connection bound to the current thread or takes one from the pool.
+     * @return the connection. Must be released with {@link #release(PooledConnection)}.
+     * @throws SQLException if no connection was available before the timeout.
+     */
+    PooledConnection acquire() throws SQLException {
+        PooledConnection conn = mCurrent.get();
+        if (conn == null) {
+            try {
+                conn = mIdle.poll(mAcquireTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted while waiting for a connection", e);
+            }
+            if (conn == null) {
+                throw new SQLException("no connection available after " + mAcquireTimeoutMillis + " ms");
+            }
+            mCurrent.set(conn);
+        }
+        conn.mAcquireCount++;
+        return conn;
+    }
+
+    /**
+     * Releases a connection. It goes back to the pool when released as many times as acquired by the thread.
+     * @param aConn connection. Ignored if null.
+     */
+    void release(PooledConnection aConn) {
+        if (aConn == null) {
+            return;
+        }
+        if (--aConn.mAcquireCount == 0) {
+            mCurrent.remove();
+            mIdle.add(aConn);
+        }
+    }
+
+    /**
+     * Closes all the connections.
+     * @throws SQLException if a connection could not be closed.
+     */
+    void close() throws SQLException {
+        SQLException error = null;
+        for (PooledConnection conn : mAll) {
+            try {
+                conn.mConn.close(); // also closes the cached statements
+            } catch (SQLException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Pooled connection with its prepared statements cache. Used by one thread at a time.
+     */
+    static class PooledConnection {
+        private final Connection mConn;
+        private final Map<String, PreparedStatement> mStatements = new HashMap<>();
+        private int mAcquireCount;
+
+        private PooledConnection(Connection aConn) {
+            mConn = aConn;
+        }
+
+        /**
+         * Returns the cached prepared statement for a SQL string, preparing it the first time.
+         * @param aSql SQL.
+         * @return the prepared statement. Must not be closed.
+         * @throws SQLException if the statement could not be prepared.
+         */
+        PreparedStatement prepare(String aSql) throws SQLException {
+            PreparedStatement stmt = mStatements.get(aSql);
+            if (stmt == null) {
+                stmt = mConn.prepareStatement(aSql);
+                mStatements.put(aSql, stmt);
+            }
+            return stmt;
+        }
+
+        Connection getConnection() {
+            return mConn;
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package com.thn.netty.chat.server.store;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -19,22 +17,26 @@ import java.util.Set;
 import com.thn.netty.chat.primitive.MessageInfo;
 import com.thn.netty.chat.primitive.UserId;
 import com.thn.netty.chat.primitive.UserName;
+import com.thn.netty.chat.server.store.ConnectionPool.PooledConnection;
 import com.thn.netty.chat.user.ContactInfo;
 import com.thn.netty.chat.user.ContactState;
 import com.thn.netty.chat.user.UserInfo;
 
 /**
  * {@link UserStore} default implementation with JDBC. This implementation if VERY simple and uses the embedded
- * H2 JDBC driver. It is not at all optimized (e.g. no connection pools, no batched requests...) as this project
- * focuses on Netty.
+ * H2 JDBC driver. It uses a bounded {@link ConnectionPool} caching the prepared statements, sized with the
+ * <code>chat.store.poolSize</code> system property, so that concurrent requests don't serialize on a single
+ * connection. The JDBC URL can be set with the <code>chat.store.url</code> system property.
  * @author Thierry Herrmann
  */
 public class JdbcUserStore implements UserStore {
 
     @Override
     public void createTables() throws StoreException {
+        PooledConnection conn = null;
         try {
-            Statement stmt = mConn.createStatement();
+            conn = mPool.acquire();
+            Statement stmt = conn.getConnection().createStatement();
             stmt.execute("create table User (userid int PRIMARY KEY AUTO_INCREMENT, username varchar(30), "
                     + "password varchar(30)); "
                     + "ALTER TABLE User ADD CONSTRAINT USERNAME_UNIQUE UNIQUE(username)");
@@ -46,26 +48,48 @@ public class JdbcUserStore implements UserStore {
             		+ "senderid int NOT NULL, recipientid int NOT NULL, message varchar(1024) NOT NULL);"
                     + "ALTER TABLE Message ADD FOREIGN KEY (senderid) REFERENCES User(userId);"
                     + "ALTER TABLE Message ADD FOREIGN KEY (recipientid) REFERENCES User(userId);");
+            stmt.close();
         } catch (SQLException e) {
             throw new StoreException("Could not create user table", e);
+        } finally {
+            mPool.release(conn);
         }
     }
 
     @Override
     public void dropTables() throws StoreException {
+        PooledConnection conn = null;
         try {
-            Statement stmt = mConn.createStatement();
+            conn = mPool.acquire();
+            Statement stmt = conn.getConnection().createStatement();
             stmt.execute("drop table if exists Message");
             stmt.execute("drop table if exists Contact");
             stmt.execute("drop table if exists User");
             stmt.close();
         } catch (SQLException e) {
             throw new StoreException("Could not drop user table", e);
+        } finally {
+            mPool.release(conn);
         }
     }
 
     @Override
     public UserInfo persistUser(UserInfo aUser) throws StoreException {
+        // hold a connection so that all the requests done to persist the user reuse it
+        PooledConnection conn;
+        try {
+            conn = mPool.acquire();
+        } catch (SQLException e) {
+            throw new StoreException("Could not persist user: " + aUser, e);
+        }
+        try {
+            return doPersistUser(aUser);
+        } finally {
+            mPool.release(conn);
+        }
+    }
+
+    private UserInfo doPersistUser(UserInfo aUser) throws StoreException {
         UserInfo existingUser = getUserByName(aUser.getName());
         UserInfo persistedUser;
         if (existingUser == null) {
@@ -163,8 +187,10 @@ public class JdbcUserStore implements UserStore {
     }
     
     public UserInfo insertUser(UserInfo aUser) throws StoreException {
+        PooledConnection conn = null;
         try {
-            PreparedStatement stmt = mConn.prepareStatement("insert into User (username, password) VALUES (?,?)");
+            conn = mPool.acquire();
+            PreparedStatement stmt = conn.prepare("insert into User (username, password) VALUES (?,?)");
             stmt.setString(1, aUser.getName().getName());
             stmt.setString(2, aUser.getPassword());
             int affectedRows = stmt.executeUpdate();
@@ -178,7 +204,7 @@ public class JdbcUserStore implements UserStore {
             } else {
                 throw new SQLException("Creating user failed, no generated key obtained.");
             }
-            stmt.close();
+            generatedKeys.close();
             UserInfo insertedUser = new UserInfo(userId, aUser.getName(), aUser.getPassword());
             insertedUser.setContacts(aUser.getContacts());
             return insertedUser;
@@ -191,12 +217,16 @@ public class JdbcUserStore implements UserStore {
                 throw new StoreException.AlreadyExists(builder.toString());
             }
             throw new StoreException(builder.toString());
+        } finally {
+            mPool.release(conn);
         }
     }
 
     private UserInfo updateUser(UserInfo aUser) throws StoreException {
+        PooledConnection conn = null;
         try {
-            PreparedStatement stmt = mConn.prepareStatement(
+            conn = mPool.acquire();
+            PreparedStatement stmt = conn.prepare(
                     "update user set username = ?, password = ? where userid = ?");
             stmt.setString(1, aUser.getName().getName());
             stmt.setString(2, aUser.getPassword());
@@ -205,7 +235,6 @@ public class JdbcUserStore implements UserStore {
             if (affectedRows == 0) {
                 throw new SQLException("Updating user failed, no rows affected.");
             }
-            stmt.close();
             return aUser;
         } catch (SQLException e) {
             StringBuilder builder = new StringBuilder("Could not update user: ");
@@ -216,14 +245,18 @@ public class JdbcUserStore implements UserStore {
                 throw new StoreException.AlreadyExists(builder.toString());
             }
             throw new StoreException(builder.toString());
+        } finally {
+            mPool.release(conn);
         }
     }
     
     @Override
     // TODO ThierryH 2014-01-01 remove if not used anymore
     public UserInfo getUserById(UserId aUserId) throws StoreException {
+        PooledConnection conn = null;
         try {
-            PreparedStatement stmt = mConn.prepareStatement("select userid, username, password from User where userid = ?");
+            conn = mPool.acquire();
+            PreparedStatement stmt = conn.prepare("select userid, username, password from User where userid = ?");
             stmt.setLong(1, aUserId.getId());
             UserInfo user = null;
             ResultSet rs = stmt.executeQuery();
@@ -232,24 +265,28 @@ public class JdbcUserStore implements UserStore {
                 String password = rs.getString(3);
                 user = new UserInfo(aUserId, name, password);
             }
-            stmt.close();
+            rs.close();
             return user;
         } catch (SQLException e) {
             throw new StoreException("Could not get user for id: " + aUserId, e);
+        } finally {
+            mPool.release(conn);
         }
     }
 
     @Override
     public UserInfo getUserByName(UserName aUserName) throws StoreException {
+        PooledConnection conn = null;
         try {
-            PreparedStatement stmt = mConn.prepareStatement("select userid, username, password from User where username = ?");
+            conn = mPool.acquire();
+            PreparedStatement stmt = conn.prepare("select userid, username, password from User where username = ?");
             UserInfo user = null;
             stmt.setString(1, aUserName.getName());
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
                 user = readUserFromResultSet(rs);
             }
-            stmt.close();
+            rs.close();
             if (user != null) {
                 List<ContactInfo> contacts = getContacts(user.getId());
                 user.setContacts(contacts);
@@ -257,24 +294,31 @@ public class JdbcUserStore implements UserStore {
             return user;
         } catch (SQLException e) {
             throw new StoreException("Could not get user for name: " + aUserName, e);
+        } finally {
+            mPool.release(conn);
         }
     }
 
     @Override
     public void deleteUser(UserId aUserId) throws StoreException {
+        PooledConnection conn = null;
         try {
-            PreparedStatement stmt = mConn.prepareStatement("delete from User where userid = ?");
+            conn = mPool.acquire();
+            PreparedStatement stmt = conn.prepare("delete from User where userid = ?");
             stmt.setLong(1, aUserId.getId());
             stmt.execute();
-            stmt.close();
         } catch (SQLException e) {
             throw new StoreException("Could not delete user for id: " + aUserId, e);
+        } finally {
+            mPool.release(conn);
         }
     }
 
     private void insertContact(UserId aUserId, UserId aContactId, ContactState aState) throws StoreException {
+        PooledConnection conn = null;
         try {
-            PreparedStatement stmt = mConn.prepareStatement("insert into contact values(?,?,?)");
+            conn = mPool.acquire();
+            PreparedStatement stmt = conn.prepare("insert into contact values(?,?,?)");
             stmt.setLong(1, aUserId.getId());
             stmt.setLong(2, aContactId.getId());
             stmt.setByte(3, aState.id());
@@ -282,7 +326,6 @@ public class JdbcUserStore implements UserStore {
             if (affectedRows == 0) {
                 throw new SQLException("Creating contact failed, no rows affected.");
             }
-            stmt.close();
         } catch (SQLException e) {
             StringBuilder builder = new StringBuilder("Could not insert contact ");
             builder.append(aContactId);
@@ -294,14 +337,18 @@ public class JdbcUserStore implements UserStore {
                 throw new StoreException.AlreadyExists(builder.toString());
             }
             throw new StoreException(builder.toString(),e);
+        } finally {
+            mPool.release(conn);
         }
     }
 
     @Override
     // TODO ThierryH 2014-01-01 make private if not used by another class
     public void updateContact(UserId aUserId, UserId aContactId, ContactState aState) throws StoreException {
+        PooledConnection conn = null;
         try {
-            PreparedStatement stmt = mConn.prepareStatement(
+            conn = mPool.acquire();
+            PreparedStatement stmt = conn.prepare(
                     "update contact set state = ? where userid = ? and contactid = ?");
             stmt.setByte(1, aState.id());
             stmt.setLong(2, aUserId.getId());
@@ -310,7 +357,6 @@ public class JdbcUserStore implements UserStore {
             if (affectedRows == 0) {
                 throw new SQLException("Updating contact failed, no rows affected.");
             }
-            stmt.close();
         } catch (SQLException e) {
             StringBuilder builder = new StringBuilder("Could not update contact ");
             builder.append(aContactId);
@@ -322,13 +368,17 @@ public class JdbcUserStore implements UserStore {
                 throw new StoreException.AlreadyExists(builder.toString());
             }
             throw new StoreException(builder.toString(),e);
+        } finally {
+            mPool.release(conn);
         }
     }
 
     @Override
     public List<ContactInfo> getContacts(UserId aUserId) throws StoreException {
+        PooledConnection conn = null;
         try {
-            PreparedStatement stmt = mConn.prepareStatement(
+            conn = mPool.acquire();
+            PreparedStatement stmt = conn.prepare(
                     "select u.userid, u.username, u.password, c.state from " +
                     "user u, contact c where c.contactid = u.userid and c.userid = ?");
             List<ContactInfo> list = new LinkedList<>();
@@ -339,18 +389,22 @@ public class JdbcUserStore implements UserStore {
                 ContactState state = ContactState.forId(rs.getByte(4));
                 list.add(new ContactInfo(user, state));
             }
-            stmt.close();
+            rs.close();
             return list;
         } catch (SQLException e) {
             throw new StoreException("Could not get contacts for user: " + aUserId, e);
+        } finally {
+            mPool.release(conn);
         }
     }
 
     
     @Override
     public List<ContactInfo> getContactOfUsers(UserId aUserId, ContactState aContactState) throws StoreException {
+        PooledConnection conn = null;
         try {
-            PreparedStatement stmt = mConn.prepareStatement(
+            conn = mPool.acquire();
+            PreparedStatement stmt = conn.prepare(
                     "select u.userid, u.username, u.PASSWORD, c.STATE from " +
                     "user u, contact c where c.userid = u.userid and c.contactid = ? and c.state = ?");
             List<ContactInfo> list = new LinkedList<>();
@@ -362,34 +416,41 @@ public class JdbcUserStore implements UserStore {
                 ContactState state = ContactState.forId(rs.getByte(4));
                 list.add(new ContactInfo(user, state));
             }
-            stmt.close();
+            rs.close();
             return list;
         } catch (SQLException e) {
             throw new StoreException("Could not get contacts for user: " + aUserId, e);
+        } finally {
+            mPool.release(conn);
         }
     }
 
     @Override
     public void deleteContact(UserId aUserId, UserId aContactId) throws StoreException {
+        PooledConnection conn = null;
         try {
-            PreparedStatement stmt = mConn.prepareStatement("delete from Contact where userid = ? and contactid = ?");
+            conn = mPool.acquire();
+            PreparedStatement stmt = conn.prepare("delete from Contact where userid = ? and contactid = ?");
             stmt.setLong(1, aUserId.getId());
             stmt.setLong(2, aContactId.getId());
             stmt.execute();
-            stmt.close();
         } catch (SQLException e) {
             StringBuilder builder = new StringBuilder("Could not delete contact ");
             builder.append(aContactId);
             builder.append(" for user ");
             builder.append(aUserId);
             throw new StoreException(builder.toString(), e);
+        } finally {
+            mPool.release(conn);
         }
     }
 
     @Override
     public void insertMessage(UserId aSenderId, UserId aRecipientId, String aMessage) throws StoreException {
+        PooledConnection conn = null;
         try {
-            PreparedStatement stmt = mConn.prepareStatement(
+            conn = mPool.acquire();
+            PreparedStatement stmt = conn.prepare(
                     "insert into message (senderid, recipientid, message) values(?,?,?)");
             stmt.setLong(1, aSenderId.getId());
             stmt.setLong(2, aRecipientId.getId());
@@ -398,7 +459,6 @@ public class JdbcUserStore implements UserStore {
             if (affectedRows == 0) {
                 throw new SQLException("Saving message failed, no rows affected.");
             }
-            stmt.close();
         } catch (SQLException e) {
             StringBuilder builder = new StringBuilder("Could not save message for sender ");
             builder.append(aSenderId);
@@ -410,58 +470,131 @@ public class JdbcUserStore implements UserStore {
                 throw new StoreException.AlreadyExists(builder.toString());
             }
             throw new StoreException(builder.toString(),e);
+        } finally {
+            mPool.release(conn);
         }
     }
 
     @Override
-    public List<MessageInfo> getMessages(UserId aRecipientId) throws StoreException {
+    public void insertMessages(List<OfflineMessage> aMessages) throws StoreException {
+        PooledConnection conn = null;
         try {
-            PreparedStatement stmt = mConn.prepareStatement(
-                "select u.username, m.message from message m, user u where recipientid = ? and m.senderid = u.userid");
-            List<MessageInfo> list = new LinkedList<>();
+            conn = mPool.acquire();
+            PreparedStatement stmt = conn.prepare(
+                    "insert into message (senderid, recipientid, message) values(?,?,?)");
+            conn.getConnection().setAutoCommit(false);
+            try {
+                for (OfflineMessage msg : aMessages) {
+                    stmt.setLong(1, msg.getSenderId().getId());
+                    stmt.setLong(2, msg.getRecipientId().getId());
+                    stmt.setString(3, msg.getMessage());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                conn.getConnection().commit();
+            } catch (SQLException e) {
+                stmt.clearBatch();
+                conn.getConnection().rollback();
+                throw e;
+            } finally {
+                conn.getConnection().setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new StoreException("Could not save batch of " + aMessages.size() + " messages", e);
+        } finally {
+            mPool.release(conn);
+        }
+    }
+
+    @Override
+    public MessagePage getMessages(UserId aRecipientId, long aAfterMsgId, int aMaxCount) throws StoreException {
+        PooledConnection conn = null;
+        try {
+            conn = mPool.acquire();
+            PreparedStatement stmt = conn.prepare(
+                "select m.msgid, u.username, m.message from message m, user u " +
+                "where m.recipientid = ? and m.msgid > ? and m.senderid = u.userid order by m.msgid limit ?");
+            List<MessageInfo> list = new ArrayList<>(aMaxCount);
             stmt.setLong(1, aRecipientId.getId());
+            stmt.setLong(2, aAfterMsgId);
+            stmt.setInt(3, aMaxCount + 1); // one more row to know if there are more messages after the page
+            long lastMsgId = aAfterMsgId;
+            boolean hasMore = false;
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
-                UserName senderName = new UserName(rs.getString(1));
-                String msg = rs.getString(2);
+                if (list.size() == aMaxCount) {
+                    hasMore = true;
+                    break;
+                }
+                lastMsgId = rs.getLong(1);
+                UserName senderName = new UserName(rs.getString(2));
+                String msg = rs.getString(3);
                 list.add(new MessageInfo(senderName, null, msg));
             }
-            stmt.close();
-            return list;
+            rs.close();
+            return new MessagePage(list, lastMsgId, hasMore);
         } catch (SQLException e) {
-            throw new StoreException("Could not get contacts for user: " + aRecipientId, e);
+            throw new StoreException("Could not get messages for user: " + aRecipientId, e);
+        } finally {
+            mPool.release(conn);
         }
     }
     
     @Override
-    public void deleteMessagesForRecipient(UserId aRecipientId) throws StoreException {
+    public void deleteMessagesForRecipient(UserId aRecipientId, long aUpToMsgId) throws StoreException {
+        PooledConnection conn = null;
         try {
-            PreparedStatement stmt = mConn.prepareStatement("delete from message where recipientid = ?");
+            conn = mPool.acquire();
+            PreparedStatement stmt = conn.prepare(
+                    "delete from message where recipientid = ? and msgid <= ?");
             stmt.setLong(1, aRecipientId.getId());
+            stmt.setLong(2, aUpToMsgId);
             stmt.execute();
-            stmt.close();
         } catch (SQLException e) {
             StringBuilder builder = new StringBuilder("Could not delete messages for recipientid ");
             builder.append(aRecipientId);
+            builder.append(" up to msgid ");
+            builder.append(aUpToMsgId);
             throw new StoreException(builder.toString(), e);
+        } finally {
+            mPool.release(conn);
         }
     }
 
     @Override
     public void destroy() throws StoreException  {
         try {
-            mConn.close();
+            mPool.close();
         } catch (SQLException e) {
             throw new StoreException("Could not destroy store", e);
         }
     }
     
-    private Connection mConn;
+    private static final String URL = System.getProperty("chat.store.url", "jdbc:h2:user");
+    private static final int POOL_SIZE = Integer.getInteger("chat.store.poolSize", 8);
+    private static final long ACQUIRE_TIMEOUT_MILLIS = Long.getLong("chat.store.acquireTimeoutMillis", 30000);
+    private ConnectionPool mPool;
 
+    /**
+     * Constructor. The JDBC URL and the pool size are read from the system properties.
+     * @param aRecreateTable true to drop and recreate the tables.
+     * @throws StoreException if anything goes wrong.
+     */
     public JdbcUserStore(boolean aRecreateTable) throws StoreException {
+        this(URL, POOL_SIZE, aRecreateTable);
+    }
+
+    /**
+     * Constructor.
+     * @param aUrl JDBC URL.
+     * @param aPoolSize number of pooled connections.
+     * @param aRecreateTable true to drop and recreate the tables.
+     * @throws StoreException if anything goes wrong.
+     */
+    public JdbcUserStore(String aUrl, int aPoolSize, boolean aRecreateTable) throws StoreException {
         try {
             Class.forName("org.h2.Driver");
-            mConn = DriverManager.getConnection("jdbc:h2:user");
+            mPool = new ConnectionPool(aUrl, aPoolSize, ACQUIRE_TIMEOUT_MILLIS);
             if (aRecreateTable) {
                 dropTables();
                 createTables();
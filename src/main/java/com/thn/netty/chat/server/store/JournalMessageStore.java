@@ -0,0 +1,646 @@
+package com.thn.netty.chat.server.store;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+import org.apache.log4j.Logger;
+
+import com.thn.netty.chat.primitive.MessageInfo;
+import com.thn.netty.chat.primitive.UserId;
+import com.thn.netty.chat.primitive.UserName;
+import com.thn.netty.chat.user.UserInfo;
+
+/**
+ * {@link MessageStore} implementation keeping the offline messages in an append-only journal instead of a table.
+ * The journal is a directory of fixed size segment files, each one memory mapped. A message is appended as a record
+ * and indexed in memory in the queue of its recipient. Deleting the messages of a recipient appends an
+ * acknowledgment record (the consumer offset of the recipient) and removes them from the index: nothing is
+ * updated in place.</p>
+ * The records are checksummed. At startup, the segments are replayed to rebuild the index: a torn record at the end
+ * of the last segment (crash while appending) is discarded.</p>
+ * The oldest segment is deleted once all its messages are acknowledged. If only a few of its messages are left
+ * (recipients offline for a long time), they are copied to the end of the journal first, so that they don't
+ * retain the whole segment.</p>
+ * The records are written to the page cache: they survive a crash of the process. If <code>aSync</code> is set,
+ * each batch is also forced to the disk to survive a crash of the host.
+ * @author Thierry Herrmann
+ */
+public class JournalMessageStore implements MessageStore {
+    private static final Logger LOGGER = Logger.getLogger(JournalMessageStore.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x43484a31; // "CHJ1"
+    // magic, next message id when the segment was created (so that ids are never reused), unused
+    private static final int SEGMENT_HEADER_SIZE = 16;
+    // payload length, payload checksum
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final byte TYPE_MESSAGE = 1;
+    private static final byte TYPE_ACK = 2;
+    // type, message id, sender id, recipient id, text length
+    private static final int MESSAGE_FIXED_SIZE = 1 + 8 + 8 + 8 + 4;
+    // type, recipient id, id of the last acknowledged message
+    private static final int ACK_SIZE = 1 + 8 + 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final File mDir;
+    private final int mSegmentSize;
+    private final int mCompactLivePercent;
+    private final boolean mSync;
+    private final UserStore mUserStore;
+    private final Object mAppendLock = new Object();
+    // oldest first. The last one is the active segment. Guarded by mAppendLock
+    private final LinkedList<Segment> mSegments = new LinkedList<>();
+    private long mNextMsgId = 1; // guarded by mAppendLock
+    private long mNextSegmentSeq; // guarded by mAppendLock
+    private final ByteBuffer mRecord; // payload being appended. Guarded by mAppendLock
+    private final CRC32 mCrc = new CRC32(); // guarded by mAppendLock
+    private final ConcurrentMap<Long, RecipientQueue> mQueues = new ConcurrentHashMap<>();
+    private final AtomicLong mAppendedCount = new AtomicLong();
+    private final AtomicLong mAckCount = new AtomicLong();
+    private final AtomicLong mCopiedCount = new AtomicLong();
+    private final AtomicLong mDeletedSegmentCount = new AtomicLong();
+
+    /**
+     * Constructor. Opens the journal and rebuilds the index from its segments.
+     * @param aDir directory of the segments. Created if needed.
+     * @param aSegmentSize size of each segment file in bytes.
+     * @param aCompactLivePercent the live messages of the oldest segment are copied to the end of the journal once
+     *        they are at most this percentage of its messages, so that the segment can be deleted. 0 to only delete
+     *        the segments when all their messages are acknowledged.
+     * @param aSync true to force each batch to the disk.
+     * @param aUserStore store to get the names of the senders.
+     * @throws StoreException if the journal can't be opened.
+     */
+    public JournalMessageStore(File aDir, int aSegmentSize, int aCompactLivePercent, boolean aSync,
+                               UserStore aUserStore) throws StoreException {
+        if (aSegmentSize < 4096) {
+            throw new IllegalArgumentException("segment size too small: " + aSegmentSize);
+        }
+        mDir = aDir;
+        mSegmentSize = aSegmentSize;
+        mCompactLivePercent = aCompactLivePercent;
+        mSync = aSync;
+        mUserStore = aUserStore;
+        mRecord = ByteBuffer.allocate(aSegmentSize - SEGMENT_HEADER_SIZE - RECORD_HEADER_SIZE);
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new StoreException("Could not create journal directory: " + mDir);
+        }
+        synchronized (mAppendLock) {
+            try {
+                recover();
+                if (mSegments.isEmpty()) {
+                    roll();
+                }
+            } catch (IOException e) {
+                throw new StoreException("Could not open journal: " + mDir, e);
+            }
+        }
+    }
+
+    @Override
+    public void insertMessage(UserId aSenderId, UserId aRecipientId, String aMessage) throws StoreException {
+        List<OfflineMessage> msgs = new ArrayList<>(1);
+        msgs.add(new OfflineMessage(aSenderId, aRecipientId, aMessage));
+        insertMessages(msgs);
+    }
+
+    @Override
+    public void insertMessages(List<OfflineMessage> aMessages) throws StoreException {
+        // encode first so that a message too big doesn't leave the batch half written
+        List<byte[]> texts = new ArrayList<>(aMessages.size());
+        for (OfflineMessage msg : aMessages) {
+            byte[] text = msg.getMessage().getBytes(UTF8);
+            if (MESSAGE_FIXED_SIZE + text.length > mRecord.capacity()) {
+                throw new StoreException("message too big for a journal segment: " + msg);
+            }
+            texts.add(text);
+        }
+        synchronized (mAppendLock) {
+            Set<Segment> written = new LinkedHashSet<>();
+            Segment first = mSegments.getLast();
+            int firstWritePos = first.mWritePos;
+            int firstMessageCount = first.mMessageCount;
+            List<Entry> entries = new ArrayList<>(texts.size());
+            try {
+                for (int i = 0; i < texts.size(); i++) {
+                    OfflineMessage msg = aMessages.get(i);
+                    byte[] text = texts.get(i);
+                    long msgId = mNextMsgId++;
+                    mRecord.clear();
+                    mRecord.put(TYPE_MESSAGE).putLong(msgId).putLong(msg.getSenderId().getId())
+                           .putLong(msg.getRecipientId().getId()).putInt(text.length).put(text);
+                    Segment segment = append();
+                    written.add(segment);
+                    segment.mMessageCount++;
+                    entries.add(new Entry(msgId, segment, segment.mLastRecordPos));
+                }
+            } catch (IOException e) {
+                // none of the batch: erase the records already appended, not indexed yet
+                truncate(first, firstWritePos, firstMessageCount);
+                throw new StoreException("Could not append batch of " + aMessages.size() + " messages", e);
+            } finally {
+                force(written);
+            }
+            // the whole batch is appended: index it
+            for (int i = 0; i < entries.size(); i++) {
+                RecipientQueue queue = getQueue(aMessages.get(i).getRecipientId().getId());
+                synchronized (queue) { // read and acknowledged concurrently
+                    queue.put(entries.get(i));
+                }
+            }
+            mAppendedCount.addAndGet(texts.size());
+        }
+    }
+
+    @Override
+    public MessagePage getMessages(UserId aRecipientId, long aAfterMsgId, int aMaxCount) throws StoreException {
+        RecipientQueue queue = mQueues.get(aRecipientId.getId());
+        if (queue == null) {
+            return new MessagePage(new ArrayList<MessageInfo>(0), aAfterMsgId, false);
+        }
+        // copy the locations under the lock: the compaction can move the messages
+        List<Segment> segments = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        boolean hasMore;
+        synchronized (queue) {
+            int idx = queue.indexAfter(aAfterMsgId);
+            for (; idx < queue.mEntries.size() && segments.size() < aMaxCount; idx++) {
+                Entry entry = queue.mEntries.get(idx);
+                segments.add(entry.mSegment);
+                positions.add(entry.mPos);
+            }
+            hasMore = idx < queue.mEntries.size();
+        }
+        List<MessageInfo> list = new ArrayList<>(segments.size());
+        Map<Long, UserName> senderNames = new HashMap<>();
+        long lastMsgId = aAfterMsgId;
+        for (int i = 0; i < segments.size(); i++) {
+            ByteBuffer buffer = segments.get(i).mBuffer.duplicate();
+            int payloadPos = positions.get(i) + RECORD_HEADER_SIZE;
+            lastMsgId = buffer.getLong(payloadPos + 1);
+            long senderId = buffer.getLong(payloadPos + 9);
+            byte[] text = new byte[buffer.getInt(payloadPos + 25)];
+            buffer.position(payloadPos + MESSAGE_FIXED_SIZE);
+            buffer.get(text);
+            UserName senderName = getUserName(senderId, senderNames);
+            if (senderName != null) { // otherwise the sender was deleted
+                list.add(new MessageInfo(senderName, null, new String(text, UTF8)));
+            }
+        }
+        return new MessagePage(list, lastMsgId, hasMore);
+    }
+
+    private UserName getUserName(long aUserId, Map<Long, UserName> aNames) throws StoreException {
+        UserName name = aNames.get(aUserId);
+        if (name == null) {
+            UserInfo user = mUserStore.getUserById(new UserId(aUserId));
+            if (user != null) {
+                name = user.getName();
+                aNames.put(aUserId, name);
+            }
+        }
+        return name;
+    }
+
+    @Override
+    public void deleteMessagesForRecipient(UserId aRecipientId, long aUpToMsgId) throws StoreException {
+        RecipientQueue queue = mQueues.get(aRecipientId.getId());
+        if (queue == null) {
+            return;
+        }
+        synchronized (queue) {
+            if (queue.indexAfter(aUpToMsgId) == 0) {
+                return; // nothing to acknowledge
+            }
+        }
+        synchronized (mAppendLock) {
+            try {
+                mRecord.clear();
+                mRecord.put(TYPE_ACK).putLong(aRecipientId.getId()).putLong(aUpToMsgId);
+                Segment segment = append();
+                force(Arrays.asList(segment));
+                mAckCount.incrementAndGet();
+            } catch (IOException e) {
+                throw new StoreException("Could not acknowledge messages of " + aRecipientId + " up to " +
+                                         aUpToMsgId, e);
+            }
+        }
+        synchronized (queue) {
+            queue.removeUpTo(aUpToMsgId);
+        }
+        compact();
+    }
+
+    /**
+     * Appends the record in {@link #mRecord}, rolling to a new segment if the active one is full. Must be called
+     * with {@link #mAppendLock}.
+     * @return the segment of the record. Its position is {@link Segment#mLastRecordPos}.
+     */
+    private Segment append() throws IOException {
+        mRecord.flip();
+        int length = mRecord.remaining();
+        mCrc.reset();
+        mCrc.update(mRecord.array(), 0, length);
+        return append(length, (int) mCrc.getValue());
+    }
+
+    private Segment append(int aLength, int aCrc) throws IOException {
+        Segment segment = mSegments.getLast();
+        // a recovered segment keeps the size it was created with, whatever the configured size is now
+        if (segment.mWritePos + RECORD_HEADER_SIZE + aLength > segment.mBuffer.capacity()) {
+            segment = roll();
+        }
+        ByteBuffer out = segment.mWriteBuffer;
+        out.position(segment.mWritePos);
+        out.putInt(aLength).putInt(aCrc).put(mRecord.array(), 0, aLength);
+        segment.mLastRecordPos = segment.mWritePos;
+        segment.mWritePos = out.position();
+        return segment;
+    }
+
+    /**
+     * Creates a new active segment. Must be called with {@link #mAppendLock}.
+     */
+    private Segment roll() throws IOException {
+        if (!mSegments.isEmpty()) {
+            mSegments.getLast().mBuffer.force(); // sealed: make sure it is complete before writing the next one
+        }
+        File file = new File(mDir, String.format("%020d", mNextSegmentSeq++) + SEGMENT_SUFFIX);
+        Segment segment = new Segment(file, mSegmentSize);
+        segment.mBuffer.putInt(0, MAGIC);
+        segment.mBuffer.putLong(4, mNextMsgId);
+        segment.mWritePos = SEGMENT_HEADER_SIZE;
+        mSegments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Erases the records appended after a position of a segment, deleting the segments created since. Must be called
+     * with {@link #mAppendLock}.
+     * @param aSegment segment.
+     * @param aWritePos position of the first record to erase.
+     * @param aMessageCount number of messages of the segment before that position.
+     */
+    private void truncate(Segment aSegment, int aWritePos, int aMessageCount) {
+        while (mSegments.getLast() != aSegment) {
+            Segment segment = mSegments.removeLast();
+            if (!segment.mFile.delete()) {
+                LOGGER.warn("could not delete journal segment: " + segment.mFile);
+            }
+        }
+        // a zero length ends the replay
+        for (int p = aWritePos; p < aSegment.mWritePos; p++) {
+            aSegment.mBuffer.put(p, (byte) 0);
+        }
+        aSegment.mWritePos = aWritePos;
+        aSegment.mMessageCount = aMessageCount;
+    }
+
+    private void force(Iterable<Segment> aSegments) {
+        if (!mSync) {
+            return;
+        }
+        for (Segment segment : aSegments) {
+            segment.mBuffer.force();
+        }
+    }
+
+    /**
+     * Deletes the oldest segments with no more live messages, copying their last live messages to the active segment
+     * if few enough.
+     */
+    private void compact() throws StoreException {
+        synchronized (mAppendLock) {
+            try {
+                while (mSegments.size() > 1) {
+                    Segment oldest = mSegments.getFirst();
+                    int live = oldest.mLive.get();
+                    if (live > 0 && (long) live * 100 > (long) oldest.mMessageCount * mCompactLivePercent) {
+                        return;
+                    }
+                    if (live > 0) {
+                        copyLiveMessages(oldest);
+                    }
+                    mSegments.removeFirst();
+                    // the readers may still read a mapped message of the file: the mapping survives the deletion
+                    if (!oldest.mFile.delete()) {
+                        LOGGER.warn("could not delete journal segment: " + oldest.mFile);
+                    }
+                    mDeletedSegmentCount.incrementAndGet();
+                }
+            } catch (IOException e) {
+                throw new StoreException("Could not compact journal: " + mDir, e);
+            }
+        }
+    }
+
+    private void copyLiveMessages(Segment aSegment) throws IOException {
+        ByteBuffer in = aSegment.mBuffer.duplicate();
+        Set<Segment> written = new LinkedHashSet<>();
+        int pos = SEGMENT_HEADER_SIZE;
+        while (pos < aSegment.mWritePos) {
+            int length = in.getInt(pos);
+            int crc = in.getInt(pos + 4);
+            int payloadPos = pos + RECORD_HEADER_SIZE;
+            if (in.get(payloadPos) == TYPE_MESSAGE) {
+                RecipientQueue queue = mQueues.get(in.getLong(payloadPos + 17));
+                if (queue != null) {
+                    synchronized (queue) {
+                        Entry entry = queue.find(in.getLong(payloadPos + 1));
+                        if (entry != null && entry.mSegment == aSegment) {
+                            // same record (same message id) at the end of the journal
+                            in.position(payloadPos);
+                            mRecord.clear();
+                            in.get(mRecord.array(), 0, length);
+                            Segment segment = append(length, crc);
+                            written.add(segment);
+                            segment.mMessageCount++;
+                            segment.mLive.incrementAndGet();
+                            aSegment.mLive.decrementAndGet();
+                            entry.mSegment = segment;
+                            entry.mPos = segment.mLastRecordPos;
+                            mCopiedCount.incrementAndGet();
+                        }
+                    }
+                }
+            }
+            pos = payloadPos + length;
+        }
+        // the copies must be on the disk before the segment is deleted
+        for (Segment segment : written) {
+            segment.mBuffer.force();
+        }
+    }
+
+    /**
+     * Replays the segments to rebuild the index. Must be called with {@link #mAppendLock}.
+     */
+    private void recover() throws IOException, StoreException {
+        File[] files = mDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File aDir, String aName) {
+                return aName.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(files); // the names are zero padded sequence numbers
+        Map<Long, Long> acked = new HashMap<>(); // consumer offset of each recipient
+        byte[] payload = new byte[mRecord.capacity()];
+        for (int i = 0; i < files.length; i++) {
+            File file = files[i];
+            String name = file.getName();
+            mNextSegmentSeq = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())) + 1;
+            Segment segment = new Segment(file, (int) file.length());
+            ByteBuffer in = segment.mBuffer.duplicate();
+            if (in.capacity() < SEGMENT_HEADER_SIZE || in.getInt(0) != MAGIC) {
+                throw new StoreException("Not a journal segment: " + file);
+            }
+            mNextMsgId = Math.max(mNextMsgId, in.getLong(4));
+            int pos = SEGMENT_HEADER_SIZE;
+            boolean torn = false;
+            while (pos + RECORD_HEADER_SIZE <= in.capacity()) {
+                int length = in.getInt(pos);
+                if (length == 0) {
+                    break; // end of the written records
+                }
+                int payloadPos = pos + RECORD_HEADER_SIZE;
+                if (length < 0 || length > payload.length || payloadPos + length > in.capacity()) {
+                    torn = true;
+                    break;
+                }
+                in.position(payloadPos);
+                in.get(payload, 0, length);
+                mCrc.reset();
+                mCrc.update(payload, 0, length);
+                if ((int) mCrc.getValue() != in.getInt(pos + 4)) {
+                    torn = true;
+                    break;
+                }
+                if (payload[0] == TYPE_MESSAGE && length >= MESSAGE_FIXED_SIZE) {
+                    long msgId = in.getLong(payloadPos + 1);
+                    long recipientId = in.getLong(payloadPos + 17);
+                    mNextMsgId = Math.max(mNextMsgId, msgId + 1);
+                    segment.mMessageCount++;
+                    Long ackedMsgId = acked.get(recipientId);
+                    if (ackedMsgId == null || msgId > ackedMsgId) {
+                        getQueue(recipientId).put(new Entry(msgId, segment, pos));
+                    }
+                } else if (payload[0] == TYPE_ACK && length == ACK_SIZE) {
+                    long recipientId = in.getLong(payloadPos + 1);
+                    long upToMsgId = in.getLong(payloadPos + 9);
+                    Long ackedMsgId = acked.get(recipientId);
+                    acked.put(recipientId, ackedMsgId == null ? upToMsgId : Math.max(ackedMsgId, upToMsgId));
+                    RecipientQueue queue = mQueues.get(recipientId);
+                    if (queue != null) {
+                        queue.removeUpTo(upToMsgId);
+                    }
+                } else {
+                    torn = true;
+                    break;
+                }
+                pos = payloadPos + length;
+            }
+            segment.mWritePos = pos;
+            if (torn) {
+                if (i < files.length - 1) {
+                    LOGGER.error("corrupted journal segment " + file + " at " + pos + ": rest of the segment skipped");
+                } else {
+                    // crash while appending: erase the partial record so that it is overwritten
+                    LOGGER.warn("torn record discarded at the end of the journal: " + file + " at " + pos);
+                    for (int p = pos; p < Math.min(in.capacity(), pos + RECORD_HEADER_SIZE + payload.length); p++) {
+                        segment.mBuffer.put(p, (byte) 0);
+                    }
+                    segment.mBuffer.force();
+                }
+            }
+            mSegments.add(segment);
+        }
+        if (!mSegments.isEmpty()) {
+            LOGGER.info("journal recovered: " + this);
+        }
+    }
+
+    private RecipientQueue getQueue(long aRecipientId) {
+        RecipientQueue queue = mQueues.get(aRecipientId);
+        if (queue == null) {
+            queue = new RecipientQueue();
+            RecipientQueue existing = mQueues.putIfAbsent(aRecipientId, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        return queue;
+    }
+
+    @Override
+    public void destroy() throws StoreException {
+        synchronized (mAppendLock) {
+            for (Segment segment : mSegments) {
+                segment.mBuffer.force();
+            }
+        }
+    }
+
+    public int getSegmentCount() {
+        synchronized (mAppendLock) {
+            return mSegments.size();
+        }
+    }
+
+    public long getAppendedCount() {
+        return mAppendedCount.get();
+    }
+
+    public long getAckCount() {
+        return mAckCount.get();
+    }
+
+    public long getCopiedCount() {
+        return mCopiedCount.get();
+    }
+
+    public long getDeletedSegmentCount() {
+        return mDeletedSegmentCount.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .append("dir", mDir)
+        .append("segments", getSegmentCount())
+        .append("recipients", mQueues.size())
+        .append("appended", getAppendedCount())
+        .append("acks", getAckCount())
+        .append("copied", getCopiedCount())
+        .append("deletedSegments", getDeletedSegmentCount())
+        .toString();
+    }
+
+    /**
+     * Memory mapped segment file.
+     */
+    private static class Segment {
+        private final File mFile;
+        // position never changed: duplicated by the readers
+        private final MappedByteBuffer mBuffer;
+        private final ByteBuffer mWriteBuffer; // guarded by mAppendLock
+        private int mWritePos; // guarded by mAppendLock
+        private int mLastRecordPos; // guarded by mAppendLock
+        private int mMessageCount; // including the copied ones. Guarded by mAppendLock
+        private final AtomicInteger mLive = new AtomicInteger(); // messages indexed in this segment
+
+        Segment(File aFile, int aSize) throws IOException {
+            mFile = aFile;
+            try (RandomAccessFile raf = new RandomAccessFile(aFile, "rw")) {
+                if (raf.length() < aSize) {
+                    raf.setLength(aSize);
+                }
+                // the mapping stays valid once the file is closed
+                mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, aSize);
+            }
+            mWriteBuffer = mBuffer.duplicate();
+        }
+
+        @Override
+        public String toString() {
+            return mFile.getName();
+        }
+    }
+
+    /**
+     * Location of a message in the journal.
+     */
+    private static class Entry {
+        private final long mMsgId;
+        private Segment mSegment; // guarded by the lock of the queue
+        private int mPos; // guarded by the lock of the queue
+
+        Entry(long aMsgId, Segment aSegment, int aPos) {
+            mMsgId = aMsgId;
+            mSegment = aSegment;
+            mPos = aPos;
+        }
+    }
+
+    /**
+     * Messages of a recipient not acknowledged yet, ordered by message id. Guarded by its own lock.
+     */
+    private static class RecipientQueue {
+        private final List<Entry> mEntries = new ArrayList<>();
+
+        /**
+         * Adds a message, replacing the previous location of the same message (copied at replay time).
+         */
+        void put(Entry aEntry) {
+            int size = mEntries.size();
+            if (size == 0 || mEntries.get(size - 1).mMsgId < aEntry.mMsgId) {
+                mEntries.add(aEntry); // usual case: latest message
+                aEntry.mSegment.mLive.incrementAndGet();
+                return;
+            }
+            int idx = indexAfter(aEntry.mMsgId - 1);
+            if (idx < size && mEntries.get(idx).mMsgId == aEntry.mMsgId) {
+                mEntries.get(idx).mSegment.mLive.decrementAndGet();
+                mEntries.set(idx, aEntry);
+            } else {
+                mEntries.add(idx, aEntry);
+            }
+            aEntry.mSegment.mLive.incrementAndGet();
+        }
+
+        Entry find(long aMsgId) {
+            int idx = indexAfter(aMsgId - 1);
+            if (idx < mEntries.size() && mEntries.get(idx).mMsgId == aMsgId) {
+                return mEntries.get(idx);
+            }
+            return null;
+        }
+
+        /**
+         * Returns the index of the first message with an id greater than the given one.
+         */
+        int indexAfter(long aMsgId) {
+            int low = 0;
+            int high = mEntries.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mEntries.get(mid).mMsgId <= aMsgId) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void removeUpTo(long aMsgId) {
+            int count = indexAfter(aMsgId);
+            List<Entry> acked = mEntries.subList(0, count);
+            for (Entry entry : acked) {
+                entry.mSegment.mLive.decrementAndGet();
+            }
+            acked.clear();
+        }
+    }
+}
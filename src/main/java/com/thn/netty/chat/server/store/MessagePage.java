@@ -0,0 +1,54 @@
+package com.thn.netty.chat.server.store;
+
+import java.util.List;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+import com.thn.netty.chat.primitive.MessageInfo;
+
+/**
+ * Page of offline messages returned by
+ * {@link MessageStore#getMessages(com.thn.netty.chat.primitive.UserId, long, int)}.
+ * @author Thierry Herrmann
+ */
+public class MessagePage {
+    private final List<MessageInfo> mMessages;
+    private final long mLastMsgId;
+    private final boolean mHasMore;
+
+    /**
+     * Constructor.
+     * @param aMessages messages ordered by message id.
+     * @param aLastMsgId id of the last message of the page. Used as continuation token.
+     * @param aHasMore true if more messages are stored after this page.
+     */
+    public MessagePage(List<MessageInfo> aMessages, long aLastMsgId, boolean aHasMore) {
+        mMessages = aMessages;
+        mLastMsgId = aLastMsgId;
+        mHasMore = aHasMore;
+    }
+
+    public List<MessageInfo> getMessages() {
+        return mMessages;
+    }
+
+    public long getLastMsgId() {
+        return mLastMsgId;
+    }
+
+    public boolean hasMore() {
+        return mHasMore;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .append("mMessages", mMessages)
+        .append("mLastMsgId", mLastMsgId)
+        .append("mHasMore", mHasMore)
+        .toString();
+    }
+}
@@ -0,0 +1,39 @@
+package com.thn.netty.chat.server.store;
+
+import java.util.List;
+
+import com.thn.netty.chat.primitive.UserId;
+
+/**
+ * Persistent store of the offline messages: a queue of messages per recipient, consumed by pages and acknowledged
+ * up to a message id.
+ * @author Thierry Herrmann
+ */
+public interface MessageStore {
+
+    void insertMessage(UserId aSenderId, UserId aRecipientId, String aMessage) throws StoreException;
+    /**
+     * Inserts offline messages in a single transaction: either all of them or none are inserted.
+     * @param aMessages messages, inserted in the list order.
+     * @throws StoreException if anything goes wrong.
+     */
+    void insertMessages(List<OfflineMessage> aMessages) throws StoreException;
+    /**
+     * Returns a page of offline messages ordered by message id.
+     * @param aRecipientId recipient.
+     * @param aAfterMsgId only messages with an id greater than this one are returned. 0 to start from the first one.
+     * @param aMaxCount maximum number of messages in the page.
+     * @return the page. If empty, its last message id is <code>aAfterMsgId</code>.
+     * @throws StoreException if anything goes wrong.
+     */
+    MessagePage getMessages(UserId aRecipientId, long aAfterMsgId, int aMaxCount) throws StoreException;
+    /**
+     * Deletes the offline messages of a recipient up to a given message id (included).
+     * @param aRecipientId recipient.
+     * @param aUpToMsgId id of the last message to delete, typically the last message of an acknowledged page.
+     * @throws StoreException if anything goes wrong.
+     */
+    void deleteMessagesForRecipient(UserId aRecipientId, long aUpToMsgId) throws StoreException;
+
+    void destroy() throws StoreException;
+}
@@ -0,0 +1,51 @@
+package com.thn.netty.chat.server.store;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+import com.thn.netty.chat.primitive.UserId;
+
+/**
+ * Offline message to insert in the {@link MessageStore}.
+ * @author Thierry Herrmann
+ */
+public class OfflineMessage {
+    private final UserId mSenderId;
+    private final UserId mRecipientId;
+    private final String mMessage;
+
+    /**
+     * Constructor.
+     * @param aSenderId sender.
+     * @param aRecipientId recipient.
+     * @param aMessage message text.
+     */
+    public OfflineMessage(UserId aSenderId, UserId aRecipientId, String aMessage) {
+        mSenderId = aSenderId;
+        mRecipientId = aRecipientId;
+        mMessage = aMessage;
+    }
+
+    public UserId getSenderId() {
+        return mSenderId;
+    }
+
+    public UserId getRecipientId() {
+        return mRecipientId;
+    }
+
+    public String getMessage() {
+        return mMessage;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+        .append("mSenderId", mSenderId)
+        .append("mRecipientId", mRecipientId)
+        .append("mMessage", mMessage)
+        .toString();
+    }
+}
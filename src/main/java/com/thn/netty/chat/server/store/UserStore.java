@@ -2,7 +2,6 @@ package com.thn.netty.chat.server.store;
 
 import java.util.List;
 
-import com.thn.netty.chat.primitive.MessageInfo;
 import com.thn.netty.chat.primitive.UserId;
 import com.thn.netty.chat.primitive.UserName;
 import com.thn.netty.chat.user.ContactInfo;
@@ -10,10 +9,11 @@ import com.thn.netty.chat.user.ContactState;
 import com.thn.netty.chat.user.UserInfo;
 
 /**
- * Persistent store to persist everything about users (contacts, contact requests, offline messages...)
+ * Persistent store to persist everything about users (contacts, contact requests, offline messages...). The offline
+ * messages can also be kept in a separate {@link MessageStore}.
  * @author Thierry Herrmann
  */
-public interface UserStore {
+public interface UserStore extends MessageStore {
 
     void createTables() throws StoreException;
     void dropTables() throws StoreException;
@@ -28,9 +28,5 @@ public interface UserStore {
     List<ContactInfo> getContactOfUsers(UserId aUserId, ContactState aContactState) throws StoreException;
     void deleteContact(UserId aUserId, UserId aContactId) throws StoreException;
     
-    void insertMessage(UserId aSenderId, UserId aRecipientId, String aMessage) throws StoreException;
-    List<MessageInfo> getMessages(UserId aRecipientId) throws StoreException;
-    void deleteMessagesForRecipient(UserId aRecipientId) throws StoreException;
-
     void destroy() throws StoreException;
 }
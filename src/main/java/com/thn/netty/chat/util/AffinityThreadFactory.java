@@ -0,0 +1,109 @@
+package com.thn.netty.chat.util;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Thread factory naming its threads and optionally pinning each one to a CPU, taken round robin from a CPU list.
+ * Used for the event loops so that each one keeps its CPU caches. Java has no API for the thread affinity: the
+ * thread pins itself when it starts with <code>taskset</code>, which is only available on Linux. If pinning fails
+ * the thread runs unpinned.
+ * @author Thierry Herrmann
+ */
+public class AffinityThreadFactory implements ThreadFactory {
+    private static final Logger LOGGER = Logger.getLogger(AffinityThreadFactory.class.getName());
+    private final ThreadFactory mDelegate;
+    private final List<Integer> mCpus;
+    private final AtomicInteger mNextCpu = new AtomicInteger();
+    // CPU of each started thread, -1 if not pinned. Sorted by thread name for the reports
+    private final Map<String, Integer> mAssignedCpus = new ConcurrentSkipListMap<>();
+
+    /**
+     * Constructor.
+     * @param aName prefix of the thread names.
+     * @param aCpus CPU list, e.g. <code>"0-3,8"</code>. Null or empty to not pin the threads.
+     */
+    public AffinityThreadFactory(String aName, String aCpus) {
+        mDelegate = new DefaultThreadFactory(aName);
+        mCpus = parseCpus(aCpus);
+    }
+
+    @Override
+    public Thread newThread(final Runnable aTask) {
+        if (mCpus.isEmpty()) {
+            return mDelegate.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    mAssignedCpus.put(Thread.currentThread().getName(), -1);
+                    aTask.run();
+                }
+            });
+        }
+        final int cpu = mCpus.get((mNextCpu.getAndIncrement() & Integer.MAX_VALUE) % mCpus.size());
+        return mDelegate.newThread(new Runnable() {
+            @Override
+            public void run() {
+                mAssignedCpus.put(Thread.currentThread().getName(), pinCurrentThread(cpu) ? cpu : -1);
+                aTask.run();
+            }
+        });
+    }
+
+    /**
+     * Returns the CPU of each started thread.
+     * @return thread names and their CPUs, -1 for unpinned threads.
+     */
+    public Map<String, Integer> getAssignedCpus() {
+        return Collections.unmodifiableMap(mAssignedCpus);
+    }
+
+    private static boolean pinCurrentThread(int aCpu) {
+        try {
+            // on Linux, /proc/thread-self links to /proc/<pid>/task/<tid>
+            String tid = new File("/proc/thread-self").getCanonicalFile().getName();
+            Process process = new ProcessBuilder("taskset", "-p", "-c", Integer.toString(aCpu), tid)
+                    .redirectErrorStream(true).start();
+            process.getInputStream().skip(Long.MAX_VALUE);
+            if (process.waitFor() == 0) {
+                return true;
+            }
+            LOGGER.warn("could not pin " + Thread.currentThread().getName() + " to cpu " + aCpu + ": taskset exit "
+                        + "code " + process.exitValue());
+        } catch (IOException e) {
+            LOGGER.warn("could not pin " + Thread.currentThread().getName() + " to cpu " + aCpu + ": " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    static List<Integer> parseCpus(String aCpus) {
+        List<Integer> cpus = new ArrayList<>();
+        if (aCpus == null || aCpus.trim().isEmpty()) {
+            return cpus;
+        }
+        for (String range : aCpus.split(",")) {
+            String[] bounds = range.trim().split("-");
+            int first = Integer.parseInt(bounds[0].trim());
+            int last = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : first;
+            if (bounds.length > 2 || first < 0 || last < first) {
+                throw new IllegalArgumentException("bad cpu list: " + aCpus);
+            }
+            for (int cpu = first; cpu <= last; cpu++) {
+                cpus.add(cpu);
+            }
+        }
+        return cpus;
+    }
+}
@@ -0,0 +1,90 @@
+package com.thn.netty.chat.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe histogram of latencies in microseconds with a bounded relative error (about 3%), to compute
+ * percentiles without keeping every sample. Values below 64 are counted exactly; above, each power of 2 is split in
+ * 32 buckets.
+ * @author Thierry Herrmann
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int EXACT_LIMIT = 2 * SUB_BUCKETS;
+    private static final int MAGNITUDES = 64 - (SUB_BUCKET_BITS + 1);
+    private final AtomicLongArray mCounts = new AtomicLongArray(EXACT_LIMIT + MAGNITUDES * SUB_BUCKETS);
+
+    /**
+     * Records a latency.
+     * @param aMicros latency in microseconds. Negative values are recorded as 0.
+     */
+    public void record(long aMicros) {
+        mCounts.incrementAndGet(indexOf(Math.max(0, aMicros)));
+    }
+
+    /**
+     * Returns the total number of recorded latencies.
+     * @return the count.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns a percentile of the recorded latencies.
+     * @param aPercentile percentile between 0 and 100, e.g. 99.9.
+     * @return the latency in microseconds (lower bound of its bucket), 0 if nothing was recorded.
+     */
+    public long getPercentile(double aPercentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * aPercentile / 100));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return valueOf(i);
+            }
+        }
+        return valueOf(mCounts.length() - 1);
+    }
+
+    /**
+     * Returns the highest recorded latency.
+     * @return the latency in microseconds (lower bound of its bucket), 0 if nothing was recorded.
+     */
+    public long getMax() {
+        for (int i = mCounts.length() - 1; i >= 0; i--) {
+            if (mCounts.get(i) > 0) {
+                return valueOf(i);
+            }
+        }
+        return 0;
+    }
+
+    private static int indexOf(long aValue) {
+        if (aValue < EXACT_LIMIT) {
+            return (int) aValue;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(aValue); // >= SUB_BUCKET_BITS + 1
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucket = (int) (aValue >>> shift) & (SUB_BUCKETS - 1);
+        return EXACT_LIMIT + (magnitude - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long valueOf(int aIndex) {
+        if (aIndex < EXACT_LIMIT) {
+            return aIndex;
+        }
+        int magnitude = (aIndex - EXACT_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        int subBucket = (aIndex - EXACT_LIMIT) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket)) << (magnitude - SUB_BUCKET_BITS);
+    }
+}
@@ -0,0 +1,145 @@
+package com.thn.netty.chat.util;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Network transport used by the server and the client: Netty's native epoll transport on Linux, NIO elsewhere.
+ * Selected with the <code>chat.transport</code> system property: <code>auto</code> (default: epoll when available),
+ * <code>epoll</code> or <code>nio</code>. Also applies the socket options read from the system properties:
+ * <ul>
+ * <li><code>chat.tcp.noDelay</code>: TCP_NODELAY. Default true.</li>
+ * <li><code>chat.tcp.quickAck</code>: TCP_QUICKACK. epoll only. Default true.</li>
+ * <li><code>chat.epoll.edgeTriggered</code>: edge triggered (true) or level triggered (false) epoll. Default true.
+ * </li>
+ * <li><code>chat.socket.sendBufferSize</code>, <code>chat.socket.receiveBufferSize</code>: SO_SNDBUF / SO_RCVBUF.
+ * Default 0 for the OS default.</li>
+ * <li><code>chat.server.backlog</code>: SO_BACKLOG of the server socket. Default 1024.</li>
+ * </ul>
+ * @author Thierry Herrmann
+ */
+public enum Transport {
+    NIO,
+    EPOLL;
+
+    private static final Logger LOGGER = Logger.getLogger(Transport.class.getName());
+    private static final boolean TCP_NO_DELAY = Boolean.parseBoolean(System.getProperty("chat.tcp.noDelay", "true"));
+    private static final boolean TCP_QUICK_ACK = Boolean.parseBoolean(System.getProperty("chat.tcp.quickAck", "true"));
+    private static final boolean EDGE_TRIGGERED =
+            Boolean.parseBoolean(System.getProperty("chat.epoll.edgeTriggered", "true"));
+    private static final int SEND_BUFFER_SIZE = Integer.getInteger("chat.socket.sendBufferSize", 0);
+    private static final int RECEIVE_BUFFER_SIZE = Integer.getInteger("chat.socket.receiveBufferSize", 0);
+    private static final int BACKLOG = Integer.getInteger("chat.server.backlog", 1024);
+
+    /**
+     * Returns the transport selected by the <code>chat.transport</code> system property.
+     * @return the transport.
+     * @throws IllegalArgumentException if the property is not <code>auto</code>, <code>epoll</code> or
+     *         <code>nio</code>.
+     */
+    public static Transport get() {
+        String name = System.getProperty("chat.transport", "auto");
+        if (name.equalsIgnoreCase("nio")) {
+            return NIO;
+        }
+        if (!name.equalsIgnoreCase("auto") && !name.equalsIgnoreCase("epoll")) {
+            throw new IllegalArgumentException("unknown chat.transport: " + name + " (auto, epoll or nio)");
+        }
+        if (Epoll.isAvailable()) {
+            return EPOLL;
+        }
+        if (name.equalsIgnoreCase("epoll")) {
+            LOGGER.warn("epoll transport not available, using NIO", Epoll.unavailabilityCause());
+        }
+        return NIO;
+    }
+
+    /**
+     * Returns true if several server channels can bind the same port (SO_REUSEPORT) to have several acceptor
+     * threads.
+     * @return true for epoll.
+     */
+    public boolean supportsReusePort() {
+        return this == EPOLL;
+    }
+
+    /**
+     * Creates an event loop group.
+     * @param aThreads number of threads. 0 for netty's default (2 * number of cores).
+     * @param aThreadFactory factory of the threads, e.g. to name them.
+     * @return the group.
+     */
+    public EventLoopGroup newEventLoopGroup(int aThreads, ThreadFactory aThreadFactory) {
+        return this == EPOLL ? new EpollEventLoopGroup(aThreads, aThreadFactory)
+                             : new NioEventLoopGroup(aThreads, aThreadFactory);
+    }
+
+    public Class<? extends ServerChannel> getServerChannelClass() {
+        return this == EPOLL ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public Class<? extends Channel> getChannelClass() {
+        return this == EPOLL ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    /**
+     * Sets the channel class and the socket options of a server bootstrap.
+     * @param aBootstrap bootstrap.
+     * @param aReusePort true to set SO_REUSEPORT on the server socket. Ignored if not supported.
+     */
+    public void configure(ServerBootstrap aBootstrap, boolean aReusePort) {
+        aBootstrap.channel(getServerChannelClass());
+        aBootstrap.option(ChannelOption.SO_BACKLOG, BACKLOG);
+        aBootstrap.childOption(ChannelOption.TCP_NODELAY, TCP_NO_DELAY);
+        if (SEND_BUFFER_SIZE > 0) {
+            aBootstrap.childOption(ChannelOption.SO_SNDBUF, SEND_BUFFER_SIZE);
+        }
+        if (RECEIVE_BUFFER_SIZE > 0) {
+            aBootstrap.childOption(ChannelOption.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        }
+        if (this == EPOLL) {
+            EpollMode mode = EDGE_TRIGGERED ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED;
+            aBootstrap.option(EpollChannelOption.EPOLL_MODE, mode);
+            aBootstrap.option(EpollChannelOption.SO_REUSEPORT, aReusePort);
+            aBootstrap.childOption(EpollChannelOption.EPOLL_MODE, mode);
+            aBootstrap.childOption(EpollChannelOption.TCP_QUICKACK, TCP_QUICK_ACK);
+        }
+    }
+
+    /**
+     * Sets the channel class and the socket options of a client bootstrap.
+     * @param aBootstrap bootstrap.
+     */
+    public void configure(Bootstrap aBootstrap) {
+        aBootstrap.channel(getChannelClass());
+        aBootstrap.option(ChannelOption.TCP_NODELAY, TCP_NO_DELAY);
+        if (SEND_BUFFER_SIZE > 0) {
+            aBootstrap.option(ChannelOption.SO_SNDBUF, SEND_BUFFER_SIZE);
+        }
+        if (RECEIVE_BUFFER_SIZE > 0) {
+            aBootstrap.option(ChannelOption.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        }
+        if (this == EPOLL) {
+            aBootstrap.option(EpollChannelOption.EPOLL_MODE,
+                              EDGE_TRIGGERED ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED);
+            aBootstrap.option(EpollChannelOption.TCP_QUICKACK, TCP_QUICK_ACK);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.thn.netty.chat.client;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.thn.netty.chat.primitive.ChatMessageCmd;
+import com.thn.netty.chat.primitive.DeliveryAckCmd;
+import com.thn.netty.chat.primitive.MessageInfo;
+import com.thn.netty.chat.primitive.UserName;
+
+/**
+ * Verifies that {@link MessageHandler} processes a chat message delivered again by the server only once, while still
+ * acknowledging it.
+ */
+public class TestMessageHandler
+{
+    @Test
+    public void testRedeliveredMessageProcessedOnce() throws Exception
+    {
+        final List<ChatMessageCmd> processed = new ArrayList<>();
+        EmbeddedChannel channel = new EmbeddedChannel(new MessageHandler() {
+            @Override
+            protected void processChatMsgNotif(ChannelHandlerContext aCtx, ChatMessageCmd aCmd) {
+                processed.add(aCmd);
+            }
+        });
+        ChatMessageCmd notif = new ChatMessageCmd(100, new MessageInfo(new UserName("Alice"), null, "hi"));
+        channel.writeInbound(notif);
+        channel.writeInbound(notif); // the first acknowledgment was late
+        channel.writeInbound(new ChatMessageCmd(101, new MessageInfo(new UserName("Alice"), null, "hi again")));
+
+        assertEquals(2, processed.size());
+        assertEquals(100, processed.get(0).getId());
+        assertEquals(101, processed.get(1).getId());
+        assertEquals(100, ((DeliveryAckCmd) channel.readOutbound()).getId());
+        assertEquals(100, ((DeliveryAckCmd) channel.readOutbound()).getId());
+        assertEquals(101, ((DeliveryAckCmd) channel.readOutbound()).getId());
+        assertNull(channel.readOutbound());
+    }
+}
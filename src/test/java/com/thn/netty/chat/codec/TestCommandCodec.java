@@ -0,0 +1,292 @@
+package com.thn.netty.chat.codec;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.thn.netty.chat.primitive.ChangePasswordRequest;
+import com.thn.netty.chat.primitive.Command;
+import com.thn.netty.chat.primitive.CommandType;
+import com.thn.netty.chat.primitive.DeliveryAckCmd;
+import com.thn.netty.chat.primitive.DeliveryReceiptCmd;
+import com.thn.netty.chat.primitive.GetContactOfUsersResponse;
+import com.thn.netty.chat.primitive.GetPendingMessagesResponse;
+import com.thn.netty.chat.primitive.LoginRequest;
+import com.thn.netty.chat.primitive.MessageInfo;
+import com.thn.netty.chat.primitive.PresenceCmd;
+import com.thn.netty.chat.primitive.RoomJoinCmd;
+import com.thn.netty.chat.primitive.RoomPostCmd;
+import com.thn.netty.chat.primitive.UserName;
+
+/**
+ * Encodes commands with {@link CommandCodec} and decodes them back through the same pipeline as the client and
+ * the server.
+ */
+public class TestCommandCodec
+{
+    @Test
+    public void testPendingMessagesRoundTrip() throws Exception
+    {
+        List<MessageInfo> msgs = new ArrayList<>();
+        msgs.add(new MessageInfo(new UserName("Bob"), null, "hello, Alice"));
+        msgs.add(new MessageInfo(new UserName("Charlie"), null, ""));
+        msgs.add(new MessageInfo(new UserName("Dave"), null, "été 日本"));
+        GetPendingMessagesResponse decoded = (GetPendingMessagesResponse) roundTrip(
+                new GetPendingMessagesResponse(42, msgs));
+        assertEquals(42, decoded.getId());
+        assertEquals(msgs.size(), decoded.getMessages().size());
+        for (int i = 0; i < msgs.size(); i++) {
+            assertEquals(msgs.get(i).getSender(), decoded.getMessages().get(i).getSender());
+            assertEquals(msgs.get(i).getMessage(), decoded.getMessages().get(i).getMessage());
+        }
+    }
+
+    @Test
+    public void testEmptyContactListRoundTrip() throws Exception
+    {
+        GetContactOfUsersResponse decoded = (GetContactOfUsersResponse) roundTrip(
+                new GetContactOfUsersResponse(7, new ArrayList<UserName>()));
+        assertEquals(7, decoded.getId());
+        assertEquals(0, decoded.getRequesterNames().size());
+    }
+
+    @Test
+    public void testContactListRoundTrip() throws Exception
+    {
+        List<UserName> names = Arrays.asList(new UserName("Bob"), new UserName("Charlie"));
+        GetContactOfUsersResponse decoded = (GetContactOfUsersResponse) roundTrip(
+                new GetContactOfUsersResponse(8, names));
+        assertEquals(names, decoded.getRequesterNames());
+    }
+
+    @Test
+    public void testPresenceRoundTrip() throws Exception
+    {
+        List<UserName> online = Arrays.asList(new UserName("Bob"), new UserName("Charlie"));
+        List<UserName> offline = Arrays.asList(new UserName("Dave"));
+        PresenceCmd decoded = (PresenceCmd) roundTrip(new PresenceCmd(9, online, offline));
+        assertEquals(9, decoded.getId());
+        assertEquals(online, decoded.getOnline());
+        assertEquals(offline, decoded.getOffline());
+    }
+
+    @Test
+    public void testRoomPostRoundTrip() throws Exception
+    {
+        RoomPostCmd decoded = (RoomPostCmd) roundTrip(new RoomPostCmd(10, "netty", null, "hello room"));
+        assertEquals(10, decoded.getId());
+        assertEquals("netty", decoded.getRoomName());
+        assertNull(decoded.getSender());
+        assertEquals("hello room", decoded.getMessage());
+        RoomJoinCmd join = (RoomJoinCmd) roundTrip(new RoomJoinCmd(11, "netty"));
+        assertEquals("netty", join.getRoomName());
+    }
+
+    @Test
+    public void testDeliveryReceiptRoundTrip() throws Exception
+    {
+        DeliveryReceiptCmd decoded = (DeliveryReceiptCmd) roundTrip(new DeliveryReceiptCmd(12, new UserName("Bob")));
+        assertEquals(12, decoded.getId());
+        assertEquals(new UserName("Bob"), decoded.getRecipient());
+        assertEquals(13, roundTrip(new DeliveryAckCmd(13)).getId());
+    }
+
+    @Test
+    public void testTypeIdsIndexed() throws Exception
+    {
+        for (CommandType type : CommandType.values()) {
+            assertEquals(type, CommandType.forId(type.id()));
+        }
+        ChangePasswordRequest decoded = (ChangePasswordRequest) roundTrip(
+                new ChangePasswordRequest(14, new UserName("Bob"), "old", "new"));
+        assertEquals(CommandType.CHANGE_PASSWORD, decoded.getType());
+        assertEquals("new", decoded.getNewPassword());
+    }
+
+    @Test
+    public void testUnknownTypeIgnored() throws Exception
+    {
+        EmbeddedChannel decoder = new EmbeddedChannel(new CommandCodec());
+        decoder.writeInbound(Unpooled.wrappedBuffer(new byte[] {(byte) CommandType.count(), 0, 0, 0, 0}));
+        assertNull(decoder.readInbound());
+        decoder.writeInbound(Unpooled.wrappedBuffer(new byte[] {(byte) -1, 0, 0, 0, 0}));
+        assertNull(decoder.readInbound());
+    }
+
+    @Test
+    public void testFramesSplitAndCoalesced() throws Exception
+    {
+        EmbeddedChannel encoder = new EmbeddedChannel(new CommandCodec());
+        encoder.writeOutbound(new DeliveryAckCmd(1), new RoomJoinCmd(2, "netty"), new DeliveryAckCmd(3));
+        ByteBuf frames = Unpooled.buffer();
+        ByteBuf frame;
+        while ((frame = (ByteBuf) encoder.readOutbound()) != null) {
+            frames.writeBytes(frame);
+            frame.release();
+        }
+        // the first frame (9 bytes) but its last byte one byte at a time, then the rest in a single read
+        EmbeddedChannel decoder = new EmbeddedChannel(new CommandCodec());
+        for (int i = 0; i < 8; i++) {
+            decoder.writeInbound(frames.readBytes(1));
+        }
+        assertNull(decoder.readInbound());
+        decoder.writeInbound(frames);
+        assertEquals(1, ((Command) decoder.readInbound()).getId());
+        assertEquals("netty", ((RoomJoinCmd) decoder.readInbound()).getRoomName());
+        assertEquals(3, ((Command) decoder.readInbound()).getId());
+        assertNull(decoder.readInbound());
+    }
+
+    @Test
+    public void testTooLongFrameRejected() throws Exception
+    {
+        CommandCodec.Metrics metrics = new CommandCodec.Metrics();
+        CommandCodec codec = new CommandCodec(metrics, true);
+        EmbeddedChannel decoder = new EmbeddedChannel(codec);
+        int maxLength = codec.getMaxFrameLength(CommandType.MESSAGE);
+        // rejected as soon as the header is received, before the record
+        decoder.writeInbound(Unpooled.buffer().writeByte(CommandType.MESSAGE.id()).writeInt(maxLength));
+        assertFalse(decoder.isOpen());
+        assertEquals(1, metrics.getRejectedCount());
+        assertEquals(maxLength + 5, metrics.getRejectedBytes());
+
+        // a valid frame in the same read is discarded too: the stream can't be framed anymore
+        decoder = new EmbeddedChannel(new CommandCodec(metrics, true));
+        EmbeddedChannel encoder = new EmbeddedChannel(new CommandCodec());
+        encoder.writeOutbound(new DeliveryAckCmd(1));
+        ByteBuf in = Unpooled.buffer().writeByte(CommandType.LOGIN.id()).writeInt(Integer.MAX_VALUE);
+        ByteBuf ack = (ByteBuf) encoder.readOutbound();
+        in.writeBytes(ack);
+        ack.release();
+        decoder.writeInbound(in);
+        assertNull(decoder.readInbound());
+        assertEquals(2, metrics.getRejectedCount());
+    }
+
+    @Test
+    public void testListsOnlyLargeOnClientSide() throws Exception
+    {
+        CommandCodec client = new CommandCodec();
+        CommandCodec server = new CommandCodec(new CommandCodec.Metrics(), true);
+        CommandType list = CommandType.GET_PENDING_MESSAGES_RESPONSE;
+        assertTrue(client.getMaxFrameLength(list) > server.getMaxFrameLength(list));
+        assertEquals(client.getMaxFrameLength(CommandType.MESSAGE), server.getMaxFrameLength(CommandType.MESSAGE));
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws Exception
+    {
+        List<MessageInfo> msgs = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            msgs.add(new MessageInfo(new UserName("Bob"), null, "hello, Alice #" + i));
+        }
+        CommandCodec.Metrics metrics = new CommandCodec.Metrics();
+        CommandCodec codec = new CommandCodec(metrics, false);
+        codec.enableCompression();
+        EmbeddedChannel encoder = new EmbeddedChannel(codec);
+        encoder.writeOutbound(new GetPendingMessagesResponse(42, msgs));
+        ByteBuf encoded = (ByteBuf) encoder.readOutbound();
+        assertTrue((encoded.getByte(0) & 0x80) != 0);
+        assertEquals(1, metrics.getCompressedCount());
+        assertEquals(encoded.readableBytes(), metrics.getCompressedBytesOut());
+        assertTrue(metrics.getCompressionRatio() < 0.5);
+
+        // decoded by any codec, in pieces
+        EmbeddedChannel decoder = new EmbeddedChannel(new CommandCodec());
+        decoder.writeInbound(encoded.readBytes(10));
+        assertNull(decoder.readInbound());
+        decoder.writeInbound(encoded);
+        GetPendingMessagesResponse decoded = (GetPendingMessagesResponse) decoder.readInbound();
+        assertEquals(42, decoded.getId());
+        assertEquals(msgs.size(), decoded.getMessages().size());
+        assertEquals("hello, Alice #99", decoded.getMessages().get(99).getMessage());
+
+        // small frames are sent as is
+        encoder.writeOutbound(new DeliveryAckCmd(1));
+        ByteBuf ack = (ByteBuf) encoder.readOutbound();
+        assertEquals(CommandType.DELIVERY_ACK.id(), ack.getByte(0));
+        ack.release();
+        assertEquals(1, metrics.getCompressedCount());
+    }
+
+    @Test
+    public void testCompressedFrameOverBudgetRejected() throws Exception
+    {
+        CommandCodec.Metrics metrics = new CommandCodec.Metrics();
+        CommandCodec codec = new CommandCodec(metrics, true);
+        EmbeddedChannel decoder = new EmbeddedChannel(codec);
+        // a few compressed bytes can announce a huge record: checked before decompressing
+        ByteBuf in = Unpooled.buffer().writeByte(CommandType.MESSAGE.id() | 0x80).writeInt(4 + 2).writeInt(1 << 30)
+                .writeByte(0).writeByte(0);
+        decoder.writeInbound(in);
+        assertFalse(decoder.isOpen());
+        assertEquals(1, metrics.getRejectedCount());
+        assertEquals(0, metrics.getDecompressedCount());
+
+        // not the announced length once decompressed
+        decoder = new EmbeddedChannel(new CommandCodec(metrics, true));
+        in = Unpooled.buffer().writeByte(CommandType.MESSAGE.id() | 0x80).writeInt(4 + 2).writeInt(100)
+                .writeByte(1).writeByte(2);
+        decoder.writeInbound(in);
+        assertFalse(decoder.isOpen());
+        assertEquals(1, metrics.getCorruptedCount());
+    }
+
+    @Test
+    public void testLoginFixedLayout() throws Exception
+    {
+        LoginRequest decoded = (LoginRequest) roundTrip(new LoginRequest(1, new UserName("Alice"), "pass", true));
+        assertTrue(decoded.isCompression());
+        assertEquals("pass", decoded.getPassword());
+
+        // fixed layout, without type tags: id, user name marker, strings as length and UTF-8 bytes, flag
+        ByteBuf expected = Unpooled.buffer().writeByte(CommandType.LOGIN.id()).writeInt(23).writeInt(1)
+                .writeByte(1).writeInt(5).writeBytes("Alice".getBytes("UTF-8")).writeInt(4)
+                .writeBytes("pass".getBytes("UTF-8")).writeBoolean(true);
+        EmbeddedChannel encoder = new EmbeddedChannel(new CommandCodec());
+        encoder.writeOutbound(new LoginRequest(1, new UserName("Alice"), "pass", true));
+        ByteBuf encoded = (ByteBuf) encoder.readOutbound();
+        assertEquals(expected, encoded);
+        encoded.release();
+    }
+
+    @Test
+    public void testRecordTooShortRejected() throws Exception
+    {
+        EmbeddedChannel encoder = new EmbeddedChannel(new CommandCodec());
+        encoder.writeOutbound(new DeliveryReceiptCmd(1, new UserName("Bob")), new DeliveryAckCmd(2));
+        ByteBuf in = (ByteBuf) encoder.readOutbound();
+        in.setInt(1, in.getInt(1) - 1); // the last byte of the user name falls outside of the record
+        in.writeBytes((ByteBuf) encoder.readOutbound());
+        EmbeddedChannel decoder = new EmbeddedChannel(new CommandCodec());
+        try {
+            decoder.writeInbound(in);
+            fail("fields beyond the record must not be read");
+        } catch (DecoderException e) {
+            // expected
+        }
+    }
+
+    static Command roundTrip(Command aCmd) {
+        EmbeddedChannel encoder = new EmbeddedChannel(new CommandCodec());
+        encoder.writeOutbound(aCmd);
+        ByteBuf encoded = (ByteBuf) encoder.readOutbound();
+        EmbeddedChannel decoder = new EmbeddedChannel(new CommandCodec());
+        decoder.writeInbound(encoded);
+        Command decoded = (Command) decoder.readInbound();
+        assertNull(decoder.readInbound());
+        return decoded;
+    }
+}
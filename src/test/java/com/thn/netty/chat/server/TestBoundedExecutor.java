@@ -0,0 +1,59 @@
+package com.thn.netty.chat.server;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Verifies that {@link BoundedExecutor} rejects tasks once its threads and queue are full.
+ */
+public class TestBoundedExecutor
+{
+    private BoundedExecutor mExecutor = new BoundedExecutor("test", 1, 1);
+
+    @After
+    public void tearDown() throws Exception
+    {
+        mExecutor.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void testRejectsWhenSaturated() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        mExecutor.execute(blocking); // occupies the only thread
+        started.await();
+        mExecutor.execute(blocking); // fills the queue
+        assertEquals(1, mExecutor.getQueueDepth());
+        try {
+            mExecutor.execute(blocking);
+            fail("task should have been rejected");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(1, mExecutor.getRejectedCount());
+
+        release.countDown();
+        mExecutor.shutdown();
+        mExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        assertEquals(2, mExecutor.getExecutedCount());
+    }
+}
@@ -0,0 +1,163 @@
+package com.thn.netty.chat.server;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thn.netty.chat.primitive.ChatMessageCmd;
+import com.thn.netty.chat.primitive.DeliveryAckCmd;
+import com.thn.netty.chat.primitive.DeliveryReceiptCmd;
+import com.thn.netty.chat.primitive.MessageInfo;
+import com.thn.netty.chat.primitive.UserId;
+import com.thn.netty.chat.primitive.UserName;
+import com.thn.netty.chat.server.SlowConsumerGuard.Policy;
+
+/**
+ * Verifies that {@link DeliveryTracker} redelivers the chat messages until acknowledged and stores them as offline
+ * messages when they can't be delivered.
+ */
+public class TestDeliveryTracker
+{
+    private static final UserId ALICE = new UserId(1);
+    private static final UserId BOB = new UserId(2);
+    private final UserManager mUserMgr = mock(UserManager.class);
+    private final SlowConsumerGuard mGuard = new SlowConsumerGuard(Policy.SPILL, 10);
+    private EmbeddedChannel mAliceChannel;
+    private EmbeddedChannel mBobChannel;
+    private ChannelInfo mAliceSession;
+    private ChannelInfo mBobSession;
+    private int mNextId = 100;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mAliceChannel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        mBobChannel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        mAliceSession = new ChannelInfo(mAliceChannel.pipeline().firstContext());
+        mBobSession = new ChannelInfo(mBobChannel.pipeline().firstContext());
+    }
+
+    @Test
+    public void testAckSendsReceipt() throws Exception
+    {
+        DeliveryTracker tracker = new DeliveryTracker(mUserMgr, mGuard, 60000, 3, 10);
+        ChatMessageCmd notif = send(tracker, 7);
+        assertSame(notif, mBobChannel.readOutbound());
+        assertEquals(1, mBobSession.getUnackedWindow().size());
+
+        tracker.acked(mBobSession, new DeliveryAckCmd(notif.getId()));
+        tracker.acked(mBobSession, new DeliveryAckCmd(notif.getId())); // acknowledged twice
+        DeliveryReceiptCmd receipt = (DeliveryReceiptCmd) mAliceChannel.readOutbound();
+        assertEquals(7, receipt.getId());
+        assertEquals(new UserName("Bob"), receipt.getRecipient());
+        assertNull(mAliceChannel.readOutbound());
+        assertEquals(0, mBobSession.getUnackedWindow().size());
+
+        tracker.sessionClosed(mBobSession);
+        verifyStored(0);
+    }
+
+    @Test
+    public void testRedeliversThenStores() throws Exception
+    {
+        DeliveryTracker tracker = new DeliveryTracker(mUserMgr, mGuard, 1, 2, 10);
+        ChatMessageCmd notif = send(tracker, 7);
+        assertSame(notif, mBobChannel.readOutbound());
+
+        Thread.sleep(10);
+        mBobChannel.runPendingTasks();
+        assertSame(notif, mBobChannel.readOutbound()); // second attempt
+        assertEquals(1, tracker.getRedeliveredCount());
+        verifyStored(0);
+
+        Thread.sleep(10);
+        mBobChannel.runPendingTasks();
+        assertNull(mBobChannel.readOutbound()); // no more attempts
+        verifyStored(1);
+        assertEquals(0, mBobSession.getUnackedWindow().size());
+
+        tracker.acked(mBobSession, new DeliveryAckCmd(notif.getId())); // too late: already stored
+        assertNull(mAliceChannel.readOutbound());
+    }
+
+    @Test
+    public void testStoresOnClose() throws Exception
+    {
+        DeliveryTracker tracker = new DeliveryTracker(mUserMgr, mGuard, 60000, 3, 10);
+        send(tracker, 7);
+        send(tracker, 8);
+        tracker.sessionClosed(mBobSession);
+        verifyStored(2);
+    }
+
+    @Test
+    public void testWindowIsBounded() throws Exception
+    {
+        DeliveryTracker tracker = new DeliveryTracker(mUserMgr, mGuard, 60000, 3, 2);
+        send(tracker, 7);
+        send(tracker, 8);
+        verifyStored(0);
+        send(tracker, 9); // the oldest is stored
+        verifyStored(1);
+        assertEquals(2, mBobSession.getUnackedWindow().size());
+    }
+
+    @Test
+    public void testNoRedeliveryWhileParked() throws Exception
+    {
+        DeliveryTracker tracker = new DeliveryTracker(mUserMgr, mGuard, 1, 2, 10);
+        mBobSession.parkUntilWritable(new ChatMessageCmd(1, new MessageInfo(new UserName("Carol"), null, "hey")));
+        send(tracker, 7); // parked behind the first one
+
+        Thread.sleep(10);
+        mBobChannel.runPendingTasks();
+        Thread.sleep(10);
+        mBobChannel.runPendingTasks();
+        assertEquals(0, tracker.getRedeliveredCount());
+        assertEquals(2, mBobSession.getParkedCount());
+        assertNull(mBobChannel.readOutbound());
+        verifyStored(0);
+        assertEquals(1, mBobSession.getUnackedWindow().size());
+    }
+
+    @Test
+    public void testWindowBoundRemovesParked() throws Exception
+    {
+        DeliveryTracker tracker = new DeliveryTracker(mUserMgr, mGuard, 60000, 3, 2);
+        mBobSession.parkUntilWritable(new ChatMessageCmd(1, new MessageInfo(new UserName("Carol"), null, "hey")));
+        ChatMessageCmd oldest = send(tracker, 7);
+        send(tracker, 8);
+        send(tracker, 9); // the oldest is stored and not written later
+        verifyStored(1);
+        assertEquals(3, mBobSession.getParkedCount());
+        Object parked;
+        while ((parked = mBobSession.pollParked()) != null) {
+            assertNotSame(oldest, parked);
+        }
+    }
+
+    private ChatMessageCmd send(DeliveryTracker aTracker, int aSenderCmdId) {
+        ChatMessageCmd notif = new ChatMessageCmd(mNextId++, new MessageInfo(new UserName("Alice"), null, "hi"));
+        DeliveryTracker.Delivery delivery = new DeliveryTracker.Delivery(notif, mAliceSession, aSenderCmdId, ALICE,
+                                                                         BOB, new UserName("Bob"));
+        mGuard.sendInEventLoop(mBobSession, notif, aTracker.track(mBobSession, delivery, null));
+        return notif;
+    }
+
+    private void verifyStored(int aCount) {
+        verify(mUserMgr, aCount == 0 ? never() : times(aCount)).insertMessage(eq(ALICE), eq(BOB), eq("hi"),
+                any(OfflineMessageWriter.Listener.class));
+    }
+}
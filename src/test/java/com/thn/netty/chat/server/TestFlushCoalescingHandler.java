@@ -0,0 +1,87 @@
+package com.thn.netty.chat.server;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import org.junit.Test;
+
+/**
+ * Verifies that {@link FlushCoalescingHandler} sends several flushed messages with a single flush.
+ */
+public class TestFlushCoalescingHandler
+{
+    private final FlushCoalescingHandler.Metrics mMetrics = new FlushCoalescingHandler.Metrics();
+
+    @Test
+    public void testFlushesOncePerEventLoopIteration() throws Exception
+    {
+        EmbeddedChannel channel = new EmbeddedChannel(new FlushCoalescingHandler(100, mMetrics));
+        // the embedded channel runs the pending tasks on each write: write everything before flushing
+        channel.write("a");
+        channel.write("b");
+        channel.write("c");
+        channel.flush();
+        channel.flush();
+        channel.flush();
+        assertNull(channel.readOutbound()); // flush task not executed yet
+        channel.runPendingTasks();
+        assertEquals("a", channel.readOutbound());
+        assertEquals("b", channel.readOutbound());
+        assertEquals("c", channel.readOutbound());
+        assertEquals(1, mMetrics.getFlushCount());
+        assertEquals(3, mMetrics.getMessageCount());
+        channel.finish();
+    }
+
+    @Test
+    public void testFlushesWhenMaxPendingMessagesReached() throws Exception
+    {
+        EmbeddedChannel channel = new EmbeddedChannel(new FlushCoalescingHandler(2, mMetrics));
+        channel.write("a");
+        channel.write("b");
+        channel.flush(); // no flush task: flushed right away
+        assertEquals("a", channel.readOutbound());
+        assertEquals("b", channel.readOutbound());
+        assertEquals(1, mMetrics.getFlushCount());
+        channel.finish();
+    }
+
+    @Test
+    public void testFlushesOnceReadIsComplete() throws Exception
+    {
+        // echoes each inbound message and flushes it, like a handler responding to each request
+        EmbeddedChannel channel = new EmbeddedChannel(new FlushCoalescingHandler(100, mMetrics),
+                                                      new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext aCtx, Object aMsg) throws Exception {
+                aCtx.writeAndFlush(aMsg);
+            }
+            @Override
+            public void channelReadComplete(ChannelHandlerContext aCtx) throws Exception {
+                aCtx.flush();
+            }
+        });
+        channel.pipeline().fireChannelRead("a");
+        channel.pipeline().fireChannelRead("b");
+        assertNull(channel.readOutbound());
+        channel.pipeline().fireChannelReadComplete();
+        assertEquals("a", channel.readOutbound());
+        assertEquals("b", channel.readOutbound());
+        assertEquals(1, mMetrics.getFlushCount());
+        assertEquals(2, mMetrics.getMessageCount());
+        channel.finish();
+    }
+
+    @Test
+    public void testFlushesBeforeClose() throws Exception
+    {
+        EmbeddedChannel channel = new EmbeddedChannel(new FlushCoalescingHandler(100, mMetrics));
+        channel.writeAndFlush("a");
+        channel.close();
+        assertEquals("a", channel.readOutbound());
+        assertEquals(1, mMetrics.getFlushCount());
+    }
+}
@@ -0,0 +1,52 @@
+package com.thn.netty.chat.server;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Verifies that {@link KeyedSerialExecutor} runs the tasks of a key in submission order.
+ */
+public class TestKeyedSerialExecutor
+{
+    private static final int LANES = 4;
+    private static final int KEYS = 10;
+    private static final int TASKS_PER_KEY = 1000;
+
+    @Test(timeout = 30000)
+    public void testTasksOfAKeyRunInOrder() throws Exception
+    {
+        // each lane must be able to queue all the tasks since the keys are not evenly spread
+        KeyedSerialExecutor executor = new KeyedSerialExecutor("test", LANES, LANES * KEYS * TASKS_PER_KEY);
+        final List<List<Integer>> results = new ArrayList<>();
+        for (int k = 0; k < KEYS; k++) {
+            results.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        for (int i = 0; i < TASKS_PER_KEY; i++) {
+            for (int k = 0; k < KEYS; k++) {
+                final int key = k;
+                final int seq = i;
+                executor.execute("user" + key, new Runnable() {
+                    @Override
+                    public void run() {
+                        results.get(key).add(seq);
+                    }
+                });
+            }
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        for (List<Integer> result : results) {
+            assertEquals(TASKS_PER_KEY, result.size());
+            for (int i = 0; i < result.size(); i++) {
+                assertEquals(i, result.get(i).intValue());
+            }
+        }
+    }
+}
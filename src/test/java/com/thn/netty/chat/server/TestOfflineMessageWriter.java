@@ -0,0 +1,116 @@
+package com.thn.netty.chat.server;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.thn.netty.chat.primitive.UserId;
+import com.thn.netty.chat.server.store.OfflineMessage;
+import com.thn.netty.chat.server.store.StoreException;
+import com.thn.netty.chat.server.store.UserStore;
+
+/**
+ * Verifies that {@link OfflineMessageWriter} groups the messages in batches, keeps their order and notifies every
+ * listener.
+ */
+public class TestOfflineMessageWriter
+{
+    private static final int MESSAGES = 1000;
+    private static final int BATCH_SIZE = 64;
+
+    private OfflineMessageWriter mWriter;
+
+    @After
+    public void tearDown() throws Exception
+    {
+        mWriter.shutdown(5000);
+    }
+
+    @Test(timeout = 30000)
+    public void testMessagesWrittenByBatches() throws Exception
+    {
+        final List<List<OfflineMessage>> batches = Collections.synchronizedList(new ArrayList<List<OfflineMessage>>());
+        UserStore store = mock(UserStore.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Void answer(InvocationOnMock aInvocation) {
+                batches.add(new ArrayList<>((List<OfflineMessage>) aInvocation.getArguments()[0]));
+                return null;
+            }
+        }).when(store).insertMessages(anyListOf(OfflineMessage.class));
+        mWriter = new OfflineMessageWriter(store, BATCH_SIZE, 50, MESSAGES);
+        final CountDownLatch written = new CountDownLatch(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            mWriter.write(new OfflineMessage(new UserId(1), new UserId(2), "msg" + i), new CountingListener(written));
+        }
+        assertTrue(written.await(10, TimeUnit.SECONDS));
+
+        int i = 0;
+        for (List<OfflineMessage> batch : batches) {
+            assertTrue(batch.size() <= BATCH_SIZE);
+            for (OfflineMessage msg : batch) {
+                assertEquals("msg" + i++, msg.getMessage());
+            }
+        }
+        assertEquals(MESSAGES, i);
+        assertTrue(batches.size() < MESSAGES);
+        assertEquals(MESSAGES, mWriter.getMessageCount());
+    }
+
+    @Test(timeout = 30000)
+    public void testListenersNotifiedOfFailure() throws Exception
+    {
+        UserStore store = mock(UserStore.class);
+        doThrow(new StoreException("db down")).when(store).insertMessages(anyListOf(OfflineMessage.class));
+        mWriter = new OfflineMessageWriter(store, BATCH_SIZE, 0, MESSAGES);
+        final CountDownLatch failed = new CountDownLatch(2);
+        final AtomicInteger writtenCount = new AtomicInteger();
+        OfflineMessageWriter.Listener listener = new OfflineMessageWriter.Listener() {
+            @Override
+            public void messageWritten() {
+                writtenCount.incrementAndGet();
+            }
+            @Override
+            public void writeFailed(StoreException aCause) {
+                failed.countDown();
+            }
+        };
+        mWriter.write(new OfflineMessage(new UserId(1), new UserId(2), "a"), listener);
+        mWriter.write(new OfflineMessage(new UserId(1), new UserId(2), "b"), listener);
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+        assertEquals(0, writtenCount.get());
+        assertEquals(2, mWriter.getFailedCount());
+    }
+
+    private static class CountingListener implements OfflineMessageWriter.Listener {
+        private final CountDownLatch mLatch;
+
+        CountingListener(CountDownLatch aLatch) {
+            mLatch = aLatch;
+        }
+        @Override
+        public void messageWritten() {
+            mLatch.countDown();
+        }
+        @Override
+        public void writeFailed(StoreException aCause) {
+            throw new AssertionError(aCause);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.thn.netty.chat.server;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thn.netty.chat.primitive.PresenceCmd;
+import com.thn.netty.chat.primitive.UserId;
+import com.thn.netty.chat.primitive.UserName;
+import com.thn.netty.chat.server.SlowConsumerGuard.Policy;
+import com.thn.netty.chat.user.ContactInfo;
+import com.thn.netty.chat.user.ContactState;
+import com.thn.netty.chat.user.UserInfo;
+
+/**
+ * Verifies that {@link PresenceBroadcaster} notifies the online contacts once per window and coalesces the flapping,
+ * and that a new session gets its contacts online.
+ */
+public class TestPresenceBroadcaster
+{
+    private final UserInfo mAlice = new UserInfo(new UserId(1), new UserName("Alice"), "mypass");
+    private final UserInfo mBob = new UserInfo(new UserId(2), new UserName("Bob"), "mypass");
+    private final UserInfo mCarol = new UserInfo(new UserId(3), new UserName("Carol"), "mypass");
+    private final UserInfo mDave = new UserInfo(new UserId(4), new UserName("Dave"), "mypass");
+    private final UserManager mUserMgr = mock(UserManager.class);
+    private EmbeddedChannel mBobChannel;
+    private EmbeddedChannel mCarolChannel;
+    private PresenceBroadcaster mBroadcaster;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        // Bob is a contact of Alice and Dave. Carol only invited Alice
+        mAlice.getContacts().add(new ContactInfo(mBob, ContactState.CONTACT));
+        mAlice.getContacts().add(new ContactInfo(mCarol, ContactState.PENDING));
+        mDave.getContacts().add(new ContactInfo(mBob, ContactState.CONTACT));
+        for (UserInfo user : Arrays.asList(mAlice, mDave)) {
+            when(mUserMgr.getUserByName(user.getName())).thenReturn(user);
+        }
+        mBobChannel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        mCarolChannel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        when(mUserMgr.getLoggedInUserChannels(mBob.getId())).thenReturn(
+                new ChannelInfo[] {new ChannelInfo(mBobChannel.pipeline().firstContext())});
+        when(mUserMgr.getLoggedInUserChannels(mCarol.getId())).thenReturn(
+                new ChannelInfo[] {new ChannelInfo(mCarolChannel.pipeline().firstContext())});
+        mBroadcaster = new PresenceBroadcaster(mUserMgr, new SlowConsumerGuard(Policy.DROP, 10), 0);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        mBroadcaster.shutdown();
+    }
+
+    @Test
+    public void testNotifiesOnlineContacts() throws Exception
+    {
+        mBroadcaster.presenceChanged(mAlice, true);
+        mBroadcaster.broadcast();
+        runPendingTasks();
+        PresenceCmd notif = (PresenceCmd) mBobChannel.readOutbound();
+        assertEquals(Arrays.asList(mAlice.getName()), notif.getOnline());
+        assertEquals(Collections.emptyList(), notif.getOffline());
+        assertNull(mCarolChannel.readOutbound()); // not a contact yet
+
+        mBroadcaster.presenceChanged(mAlice, false);
+        mBroadcaster.broadcast();
+        runPendingTasks();
+        notif = (PresenceCmd) mBobChannel.readOutbound();
+        assertEquals(Arrays.asList(mAlice.getName()), notif.getOffline());
+    }
+
+    @Test
+    public void testBatchesChangesOfSameWindow() throws Exception
+    {
+        mBroadcaster.presenceChanged(mAlice, true);
+        mBroadcaster.presenceChanged(mDave, true);
+        mBroadcaster.broadcast();
+        runPendingTasks();
+        PresenceCmd notif = (PresenceCmd) mBobChannel.readOutbound();
+        assertEquals(2, notif.getOnline().size());
+        assertNull(mBobChannel.readOutbound());
+        assertEquals(1, mBroadcaster.getNotifCount());
+        assertEquals(1, mBroadcaster.getLoopTaskCount());
+    }
+
+    @Test
+    public void testCoalescesFlapping() throws Exception
+    {
+        mBroadcaster.presenceChanged(mAlice, true);
+        mBroadcaster.presenceChanged(mAlice, false);
+        mBroadcaster.broadcast();
+        runPendingTasks();
+        assertNull(mBobChannel.readOutbound());
+        assertEquals(1, mBroadcaster.getCoalescedCount());
+        assertEquals(0, mBroadcaster.getBroadcastCount());
+    }
+
+    @Test
+    public void testNewSessionGetsOnlineContacts() throws Exception
+    {
+        mBob.getContacts().add(new ContactInfo(mAlice, ContactState.CONTACT));
+        mBob.getContacts().add(new ContactInfo(mDave, ContactState.CONTACT));
+        mBob.getContacts().add(new ContactInfo(mCarol, ContactState.PENDING));
+        mBroadcaster.presenceChanged(mAlice, true);
+        mBroadcaster.presenceChanged(mCarol, true);
+        mBroadcaster.broadcast();
+        runPendingTasks();
+        mBobChannel.readOutbound(); // Alice came online
+
+        // Bob opens a new session: it gets its contacts online, not the pending ones
+        mBroadcaster.sendSnapshot(mBob, new ChannelInfo(mBobChannel.pipeline().firstContext()));
+        runPendingTasks();
+        PresenceCmd notif = (PresenceCmd) mBobChannel.readOutbound();
+        assertEquals(Arrays.asList(mAlice.getName()), notif.getOnline());
+        assertEquals(Collections.emptyList(), notif.getOffline());
+        assertEquals(1, mBroadcaster.getSnapshotCount());
+    }
+
+    private void runPendingTasks() {
+        mBobChannel.runPendingTasks();
+        mCarolChannel.runPendingTasks();
+    }
+}
@@ -0,0 +1,112 @@
+package com.thn.netty.chat.server;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.thn.netty.chat.primitive.UserId;
+
+/**
+ * Verifies that {@link PresenceRegistry} keeps several sessions per user and its counts.
+ */
+public class TestPresenceRegistry
+{
+    private final PresenceRegistry mRegistry = new PresenceRegistry(4);
+
+    @Test
+    public void testSeveralSessionsPerUser() throws Exception
+    {
+        UserId alice = new UserId(1);
+        ChannelInfo session1 = new ChannelInfo(null);
+        ChannelInfo session2 = new ChannelInfo(null);
+        assertTrue(mRegistry.add(alice, session1)); // came online
+        assertFalse(mRegistry.add(alice, session2));
+        assertFalse(mRegistry.add(alice, session2)); // already added
+        assertEquals(2, mRegistry.getSessions(alice).length);
+        assertEquals(1, mRegistry.getOnlineUserCount());
+        assertEquals(2, mRegistry.getSessionCount());
+
+        assertFalse(mRegistry.remove(alice, session1));
+        assertSame(session2, mRegistry.getSessions(alice)[0]);
+        assertTrue(mRegistry.isOnline(alice));
+        assertTrue(mRegistry.remove(alice, session2)); // went offline
+        assertFalse(mRegistry.remove(alice, session2));
+        assertFalse(mRegistry.isOnline(alice));
+        assertEquals(0, mRegistry.getSessions(alice).length);
+        assertEquals(0, mRegistry.getOnlineUserCount());
+        assertEquals(0, mRegistry.getSessionCount());
+    }
+
+    @Test
+    public void testManyUsersInOneShard() throws Exception
+    {
+        PresenceRegistry registry = new PresenceRegistry(1);
+        ChannelInfo session = new ChannelInfo(null);
+        for (int round = 0; round < 2; round++) {
+            for (long id = 0; id < 1000; id++) {
+                registry.add(new UserId(id * 64), session); // grows the table, collides in the first rounds
+            }
+            for (long id = 0; id < 1000; id += 2) {
+                assertTrue(registry.remove(new UserId(id * 64), session));
+            }
+            for (long id = 0; id < 1000; id++) {
+                assertEquals(id % 2 == 1, registry.isOnline(new UserId(id * 64)));
+            }
+            assertEquals(500, registry.getOnlineUserCount());
+            assertEquals(500, registry.getOnlineUsers().size());
+            for (long id = 1; id < 1000; id += 2) {
+                assertTrue(registry.remove(new UserId(id * 64), session));
+            }
+            assertEquals(0, registry.getOnlineUserCount());
+            assertEquals(0, registry.getSessionCount());
+            assertEquals(0, registry.getOnlineUsers().size());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testConcurrentLoginsAndLogouts() throws Exception
+    {
+        final int threads = 8;
+        final int users = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        // each thread logs every user in twice and out once: one session per user and thread left
+                        for (int i = 0; i < users; i++) {
+                            UserId user = new UserId(i);
+                            ChannelInfo kept = new ChannelInfo(null);
+                            ChannelInfo removed = new ChannelInfo(null);
+                            mRegistry.add(user, kept);
+                            mRegistry.add(user, removed);
+                            mRegistry.remove(user, removed);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(users, mRegistry.getOnlineUserCount());
+        assertEquals(users, mRegistry.getOnlineUsers().size());
+        assertEquals(users * threads, mRegistry.getSessionCount());
+        assertEquals(threads, mRegistry.getSessions(new UserId(42)).length);
+    }
+}
@@ -0,0 +1,166 @@
+package com.thn.netty.chat.server;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thn.netty.chat.codec.CommandCodec;
+import com.thn.netty.chat.primitive.RoomPostCmd;
+import com.thn.netty.chat.primitive.UserId;
+import com.thn.netty.chat.primitive.UserName;
+import com.thn.netty.chat.server.SlowConsumerGuard.Policy;
+import com.thn.netty.chat.user.UserInfo;
+
+/**
+ * Verifies that {@link RoomManager} keeps the members of the rooms and writes a posted message encoded once to the
+ * sessions of the online members.
+ */
+public class TestRoomManager
+{
+    private final UserInfo mAlice = new UserInfo(new UserId(1), new UserName("Alice"), "mypass");
+    private final UserInfo mBob = new UserInfo(new UserId(2), new UserName("Bob"), "mypass");
+    private final UserInfo mCarol = new UserInfo(new UserId(3), new UserName("Carol"), "mypass");
+    private final UserManager mUserMgr = mock(UserManager.class);
+    private final RoomManager mRoomMgr = new RoomManager(mUserMgr, new SlowConsumerGuard(Policy.SPILL, 10));
+    private EmbeddedChannel mAliceChannel;
+    private EmbeddedChannel mBobChannel1;
+    private EmbeddedChannel mBobChannel2;
+    private ChannelInfo mAliceSession;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mAliceChannel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        mBobChannel1 = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        mBobChannel2 = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        mAliceSession = new ChannelInfo(mAliceChannel.pipeline().firstContext());
+        mAliceSession.setUserInfo(mAlice);
+        when(mUserMgr.getLoggedInUserChannels(mAlice.getId())).thenReturn(new ChannelInfo[] {mAliceSession});
+        when(mUserMgr.getLoggedInUserChannels(mBob.getId())).thenReturn(new ChannelInfo[] {
+                new ChannelInfo(mBobChannel1.pipeline().firstContext()),
+                new ChannelInfo(mBobChannel2.pipeline().firstContext())});
+        when(mUserMgr.getLoggedInUserChannels(mCarol.getId())).thenReturn(new ChannelInfo[0]);
+    }
+
+    @Test
+    public void testMembership() throws Exception
+    {
+        assertFalse(mRoomMgr.join("netty", mBob)); // doesn't exist yet
+        assertTrue(mRoomMgr.create("netty", mAlice));
+        assertFalse(mRoomMgr.create("netty", mBob));
+        assertTrue(mRoomMgr.join("netty", mBob));
+        assertTrue(mRoomMgr.join("netty", mBob));
+        assertEquals(2, mRoomMgr.getMembers("netty").length);
+
+        assertTrue(mRoomMgr.leave("netty", mAlice));
+        assertFalse(mRoomMgr.leave("netty", mAlice));
+        assertTrue(mRoomMgr.leave("netty", mBob)); // last member: room deleted
+        assertEquals(0, mRoomMgr.getMembers("netty").length);
+        assertEquals(0, mRoomMgr.getRoomCount());
+        assertFalse(mRoomMgr.join("netty", mBob));
+    }
+
+    @Test
+    public void testPostFansOutSharedBuffer() throws Exception
+    {
+        mRoomMgr.create("netty", mAlice);
+        mRoomMgr.join("netty", mBob);
+        mRoomMgr.join("netty", mCarol);
+        assertTrue(mRoomMgr.post("netty", mAliceSession, "hello room", UnpooledByteBufAllocator.DEFAULT));
+        runPendingTasks();
+
+        assertNull(mAliceChannel.readOutbound()); // not sent back to the sender
+        ByteBuf buf1 = (ByteBuf) mBobChannel1.readOutbound();
+        ByteBuf buf2 = (ByteBuf) mBobChannel2.readOutbound();
+        assertEquals(buf1.unwrap(), buf2.unwrap()); // same encoded bytes
+        assertEquals(2, buf1.refCnt());
+        RoomPostCmd notif = decode(buf1);
+        assertEquals("netty", notif.getRoomName());
+        assertEquals(mAlice.getName(), notif.getSender());
+        assertEquals("hello room", notif.getMessage());
+        assertEquals(notif.getMessage(), decode(buf2).getMessage());
+        assertEquals(0, buf1.refCnt());
+        assertEquals(2, mRoomMgr.getDeliveredCount());
+        assertEquals(2, mRoomMgr.getLoopTaskCount()); // each embedded channel has its own event loop
+
+        // Carol is offline
+        verify(mUserMgr).insertMessage(eq(mAlice.getId()), eq(mCarol.getId()), eq("[netty] hello room"),
+                                       any(OfflineMessageWriter.Listener.class));
+    }
+
+    @Test
+    public void testRejectedLoopTaskReleasesBuffer() throws Exception
+    {
+        // Carol's event loop is shut down
+        ChannelHandlerContext context = mock(ChannelHandlerContext.class);
+        Channel channel = mock(Channel.class);
+        EventLoop loop = mock(EventLoop.class);
+        when(context.channel()).thenReturn(channel);
+        when(channel.eventLoop()).thenReturn(loop);
+        doThrow(new RejectedExecutionException()).when(loop).execute(any(Runnable.class));
+        when(mUserMgr.getLoggedInUserChannels(mCarol.getId())).thenReturn(new ChannelInfo[] {new ChannelInfo(context)});
+        ByteBuf encoded = Unpooled.buffer();
+        ByteBufAllocator alloc = mock(ByteBufAllocator.class);
+        when(alloc.buffer()).thenReturn(encoded);
+        mRoomMgr.create("netty", mAlice);
+        mRoomMgr.join("netty", mBob);
+        mRoomMgr.join("netty", mCarol);
+        try {
+            mRoomMgr.post("netty", mAliceSession, "hello room", alloc);
+            fail("post not rejected");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        runPendingTasks();
+        ((ByteBuf) mBobChannel1.readOutbound()).release();
+        ((ByteBuf) mBobChannel2.readOutbound()).release();
+        assertEquals(0, encoded.refCnt());
+    }
+
+    @Test
+    public void testPostRequiresMembership() throws Exception
+    {
+        mRoomMgr.create("netty", mBob);
+        assertFalse(mRoomMgr.post("netty", mAliceSession, "hello room", UnpooledByteBufAllocator.DEFAULT));
+        assertFalse(mRoomMgr.post("other", mAliceSession, "hello room", UnpooledByteBufAllocator.DEFAULT));
+        runPendingTasks();
+        assertNull(mBobChannel1.readOutbound());
+        verify(mUserMgr, never()).insertMessage(any(UserId.class), any(UserId.class), any(String.class),
+                                                any(OfflineMessageWriter.Listener.class));
+    }
+
+    private static RoomPostCmd decode(ByteBuf aEncoded) {
+        EmbeddedChannel decoder = new EmbeddedChannel(new CommandCodec());
+        decoder.writeInbound(aEncoded);
+        return (RoomPostCmd) decoder.readInbound();
+    }
+
+    private void runPendingTasks() {
+        mAliceChannel.runPendingTasks();
+        mBobChannel1.runPendingTasks();
+        mBobChannel2.runPendingTasks();
+    }
+}
@@ -0,0 +1,297 @@
+package com.thn.netty.chat.server;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thn.netty.chat.primitive.AddContactInviteCmd;
+import com.thn.netty.chat.primitive.AddContactResponseCmd;
+import com.thn.netty.chat.primitive.ChatMessageCmd;
+import com.thn.netty.chat.primitive.Command;
+import com.thn.netty.chat.primitive.CommandType;
+import com.thn.netty.chat.primitive.ErrorResponse;
+import com.thn.netty.chat.primitive.ErrorResponse.Code;
+import com.thn.netty.chat.primitive.MessageInfo;
+import com.thn.netty.chat.primitive.RemoveContactCmd;
+import com.thn.netty.chat.primitive.RoomCreateCmd;
+import com.thn.netty.chat.primitive.RoomJoinCmd;
+import com.thn.netty.chat.primitive.RoomLeaveCmd;
+import com.thn.netty.chat.primitive.UserName;
+import com.thn.netty.chat.server.SlowConsumerGuard.Policy;
+import com.thn.netty.chat.server.store.CachingUserStore;
+import com.thn.netty.chat.server.store.JdbcUserStore;
+import com.thn.netty.chat.user.ContactInfo;
+import com.thn.netty.chat.user.ContactState;
+import com.thn.netty.chat.user.UserInfo;
+
+/**
+ * Drives {@link ServerLogicHandler} with several sessions answering at the same time: the contact changes made by
+ * one session must not be lost because of another one. Also verifies that no accepted chat message is lost when the
+ * connection of the recipient closes.
+ */
+public class TestServerLogicHandler
+{
+    private static final int ROUNDS = 20;
+
+    private JdbcUserStore mStore;
+    private UserManager mUserMgr;
+    private KeyedSerialExecutor mScheduler;
+    private SlowConsumerGuard mGuard;
+    private RoomManager mRoomMgr;
+    private volatile Object mRejectedKey; // tasks of this key are rejected by the scheduler
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mStore = new JdbcUserStore("jdbc:h2:mem:logic;DB_CLOSE_DELAY=-1", 4, true);
+        mUserMgr = new UserManager(new CachingUserStore(mStore, 100));
+        mScheduler = new KeyedSerialExecutor("test-logic", 8, 1000) {
+            @Override
+            public void execute(Object aKey, Runnable aTask) {
+                if (aKey.equals(mRejectedKey)) {
+                    throw new RejectedExecutionException("lane of " + aKey + " saturated");
+                }
+                super.execute(aKey, aTask);
+            }
+        };
+        mGuard = new SlowConsumerGuard(Policy.SPILL, 10);
+        mRoomMgr = new RoomManager(mUserMgr, mGuard);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        mScheduler.shutdownNow();
+        mUserMgr.shutdown();
+        mStore.dropTables();
+        mStore.destroy();
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentAcceptsOfSameRequester() throws Exception
+    {
+        UserInfo alice = mUserMgr.createUser(new UserName("Alice"), "mypass");
+        UserInfo bob = mUserMgr.createUser(new UserName("Bob"), "mypass");
+        Session aliceSession = new Session(alice);
+        Session bobSession = new Session(bob);
+        for (int i = 0; i < ROUNDS; i++) {
+            // the requester invited both Alice and Bob, who accept at the same time
+            UserName requesterName = new UserName("requester" + i);
+            UserInfo requester = mUserMgr.createUser(requesterName, "mypass");
+            requester.getContacts().add(new ContactInfo(alice, ContactState.PENDING));
+            requester.getContacts().add(new ContactInfo(bob, ContactState.PENDING));
+            mUserMgr.persistUser(requester);
+
+            aliceSession.accept(requesterName);
+            bobSession.accept(requesterName);
+            aliceSession.assertOk();
+            bobSession.assertOk();
+
+            requester = mUserMgr.getUserByName(requesterName);
+            assertEquals(2, requester.getContacts().size());
+            for (ContactInfo contact : requester.getContacts()) {
+                assertEquals(ContactState.CONTACT, contact.getState());
+            }
+            for (UserName name : new UserName[] {alice.getName(), bob.getName()}) {
+                ContactInfo contact = findContact(mUserMgr.getUserByName(name), requesterName);
+                assertNotNull(contact);
+                assertEquals(ContactState.CONTACT, contact.getState());
+            }
+        }
+        assertEquals(ROUNDS, mUserMgr.getUserByName(alice.getName()).getContacts().size());
+        assertEquals(ROUNDS, mUserMgr.getUserByName(bob.getName()).getContacts().size());
+    }
+
+    @Test(timeout = 10000)
+    public void testAcceptRejectedInContactLaneKeepsInvite() throws Exception
+    {
+        UserInfo alice = mUserMgr.createUser(new UserName("Alice"), "mypass");
+        UserInfo bob = mUserMgr.createUser(new UserName("Bob"), "mypass");
+        bob.getContacts().add(new ContactInfo(alice, ContactState.PENDING));
+        mUserMgr.persistUser(bob);
+        Session aliceSession = new Session(alice);
+
+        // the requester is updated in its lane, then the lane of Alice rejects her update
+        mRejectedKey = alice.getName();
+        aliceSession.accept(bob.getName());
+        aliceSession.assertError(Code.BUSY);
+        assertEquals(ContactState.PENDING, findContact(mUserMgr.getUserByName(bob.getName()), 
+                                                       alice.getName()).getState());
+        assertNull(findContact(mUserMgr.getUserByName(alice.getName()), bob.getName()));
+
+        // Alice can answer again
+        mRejectedKey = null;
+        aliceSession.accept(bob.getName());
+        aliceSession.assertOk();
+        assertEquals(ContactState.CONTACT, findContact(mUserMgr.getUserByName(bob.getName()), 
+                                                       alice.getName()).getState());
+        assertEquals(ContactState.CONTACT, findContact(mUserMgr.getUserByName(alice.getName()), 
+                                                       bob.getName()).getState());
+    }
+
+    @Test(timeout = 10000)
+    public void testContactChangesOfOtherSessionKept() throws Exception
+    {
+        UserInfo alice = mUserMgr.createUser(new UserName("Alice"), "mypass");
+        UserInfo bob = mUserMgr.createUser(new UserName("Bob"), "mypass");
+        UserInfo carol = mUserMgr.createUser(new UserName("Carol"), "mypass");
+        UserInfo dave = mUserMgr.createUser(new UserName("Dave"), "mypass");
+        // each session has its own copy of the user info
+        Session aliceSession1 = new Session(mUserMgr.getUserByName(alice.getName()));
+        Session aliceSession2 = new Session(mUserMgr.getUserByName(alice.getName()));
+        aliceSession1.send(new AddContactInviteCmd(1, null, bob.getName()));
+        aliceSession1.assertOk();
+        aliceSession2.send(new AddContactInviteCmd(2, null, carol.getName()));
+        aliceSession2.assertOk();
+        aliceSession1.send(new AddContactInviteCmd(3, null, dave.getName()));
+        aliceSession1.assertOk();
+        aliceSession2.send(new RemoveContactCmd(4, carol.getName()));
+        aliceSession2.assertOk();
+
+        UserInfo user = mUserMgr.getUserByName(alice.getName());
+        assertEquals(2, user.getContacts().size());
+        assertNotNull(findContact(user, bob.getName()));
+        assertNotNull(findContact(user, dave.getName()));
+    }
+
+    @Test(timeout = 10000)
+    public void testParkedMessageStoredWhenConnectionCloses() throws Exception
+    {
+        UserInfo alice = mUserMgr.createUser(new UserName("Alice"), "mypass");
+        UserInfo bob = mUserMgr.createUser(new UserName("Bob"), "mypass");
+        Session bobSession = new Session(bob);
+        // Alice was answered OK when her message was parked for the slow connection of Bob
+        bobSession.mChannelInfo.parkUntilWritable(new ChatMessageCmd(1, new MessageInfo(alice.getName(), null, "hi")));
+        bobSession.mChannel.close();
+
+        List<MessageInfo> messages;
+        while ((messages = mUserMgr.getMessages(bob.getId(), 0, 10).getMessages()).isEmpty()) {
+            Thread.sleep(10); // written asynchronously
+        }
+        assertEquals(1, messages.size());
+        assertEquals(alice.getName(), messages.get(0).getSender());
+        assertEquals("hi", messages.get(0).getMessage());
+    }
+
+    @Test(timeout = 10000)
+    public void testParkedRoomPostStoredWhenConnectionCloses() throws Exception
+    {
+        UserInfo alice = mUserMgr.createUser(new UserName("Alice"), "mypass");
+        UserInfo bob = mUserMgr.createUser(new UserName("Bob"), "mypass");
+        Session aliceSession = new Session(alice);
+        Session bobSession = new Session(bob);
+        mRoomMgr.create("netty", alice);
+        mRoomMgr.join("netty", bob);
+        // Bob already has a parked notification: the post is parked behind it and accepted
+        bobSession.mChannelInfo.parkUntilWritable(new ChatMessageCmd(1, new MessageInfo(alice.getName(), null, "hi")));
+        assertTrue(mRoomMgr.post("netty", aliceSession.mChannelInfo, "hello room", bobSession.mChannel.alloc()));
+        bobSession.mChannel.runPendingTasks();
+        assertEquals(2, bobSession.mChannelInfo.getParkedCount());
+        bobSession.mChannel.close();
+
+        List<MessageInfo> messages;
+        while ((messages = mUserMgr.getMessages(bob.getId(), 0, 10).getMessages()).size() < 2) {
+            Thread.sleep(10); // written asynchronously
+        }
+        assertEquals(2, messages.size());
+        MessageInfo post = messages.get(0).getMessage().equals("hi") ? messages.get(1) : messages.get(0);
+        assertEquals(alice.getName(), post.getSender());
+        assertEquals("[netty] hello room", post.getMessage());
+    }
+
+    @Test(timeout = 10000)
+    public void testRoomMembershipCommands() throws Exception
+    {
+        UserInfo alice = mUserMgr.createUser(new UserName("Alice"), "mypass");
+        UserInfo bob = mUserMgr.createUser(new UserName("Bob"), "mypass");
+        Session aliceSession = new Session(alice);
+        Session bobSession = new Session(bob);
+        bobSession.send(new RoomJoinCmd(1, "netty"));
+        bobSession.assertError(Code.BAD_REQUEST); // doesn't exist yet
+        aliceSession.send(new RoomCreateCmd(1, "netty"));
+        aliceSession.assertOk();
+        aliceSession.send(new RoomCreateCmd(2, "netty"));
+        aliceSession.assertError(Code.BAD_REQUEST);
+        aliceSession.send(new RoomCreateCmd(3, ""));
+        aliceSession.assertError(Code.BAD_REQUEST);
+        bobSession.send(new RoomJoinCmd(2, "netty"));
+        bobSession.assertOk();
+        assertEquals(2, mRoomMgr.getMembers("netty").length);
+
+        aliceSession.send(new RoomLeaveCmd(4, "netty"));
+        aliceSession.assertOk();
+        aliceSession.send(new RoomLeaveCmd(5, "netty")); // already not a member
+        aliceSession.assertOk();
+        assertEquals(1, mRoomMgr.getMembers("netty").length);
+    }
+
+    private static ContactInfo findContact(UserInfo aUser, UserName aContactName) {
+        for (ContactInfo contact : aUser.getContacts()) {
+            if (contact.getContact().getName().equals(aContactName)) {
+                return contact;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Logged in session recording the commands written by the handler, from any thread.
+     */
+    private class Session {
+        private final BlockingQueue<Object> mWritten = new LinkedBlockingQueue<>();
+        private final AtomicInteger mCmdIds = new AtomicInteger();
+        private final EmbeddedChannel mChannel;
+        private final ChannelInfo mChannelInfo;
+
+        Session(UserInfo aUser) {
+            ServerLogicHandler handler = new ServerLogicHandler(mUserMgr, mScheduler, mGuard, mRoomMgr, null, null);
+            mChannel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+                @Override
+                public void write(ChannelHandlerContext aCtx, Object aMsg, ChannelPromise aPromise) {
+                    mWritten.add(aMsg);
+                    aPromise.setSuccess();
+                }
+            }, handler);
+            mChannelInfo = new ChannelInfo(mChannel.pipeline().context(handler));
+            mChannel.attr(ChannelListener.CHANNEL_INFO).set(mChannelInfo);
+            mUserMgr.userLoggedIn(aUser, mChannelInfo);
+        }
+
+        void accept(UserName aRequesterName) {
+            send(new AddContactResponseCmd(mCmdIds.incrementAndGet(), aRequesterName, null, true));
+        }
+
+        void send(Command aCmd) {
+            mChannel.writeInbound(aCmd);
+        }
+
+        void assertError(Code aCode) throws InterruptedException {
+            Command response = (Command) mWritten.poll(10, TimeUnit.SECONDS);
+            assertNotNull("no response", response);
+            assertTrue("not an error: " + response, response instanceof ErrorResponse);
+            assertEquals(aCode, ((ErrorResponse) response).getCode());
+        }
+
+        void assertOk() throws InterruptedException {
+            Command response = (Command) mWritten.poll(10, TimeUnit.SECONDS);
+            assertNotNull("no response", response);
+            assertTrue("not ok: " + response, response.getType() == CommandType.OK);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.thn.netty.chat.server;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thn.netty.chat.primitive.Command;
+import com.thn.netty.chat.primitive.OkResponse;
+import com.thn.netty.chat.server.SlowConsumerGuard.Policy;
+
+/**
+ * Verifies that {@link SlowConsumerGuard} parks the notifications of non writable connections and applies its policy
+ * once too many are parked.
+ */
+public class TestSlowConsumerGuard
+{
+    private EmbeddedChannel mChannel;
+    private ChannelInfo mChannelInfo;
+    private final List<Object> mOutcomes = new ArrayList<>();
+    private final SlowConsumerGuard.Listener mListener = new SlowConsumerGuard.Listener() {
+        @Override
+        public void accepted() {
+            mOutcomes.add("accepted");
+        }
+        @Override
+        public void overflowed(Policy aPolicy) {
+            mOutcomes.add(aPolicy);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mChannel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        mChannelInfo = new ChannelInfo(mChannel.pipeline().firstContext());
+    }
+
+    @Test
+    public void testSendsWhenWritable() throws Exception
+    {
+        SlowConsumerGuard guard = new SlowConsumerGuard(Policy.DROP, 1);
+        Command notif = new OkResponse(1);
+        guard.send(mChannelInfo, notif, mListener);
+        mChannel.runPendingTasks();
+        assertSame(notif, mChannel.readOutbound());
+        assertEquals("[accepted]", mOutcomes.toString());
+    }
+
+    @Test
+    public void testDropsWhenTooManyParked() throws Exception
+    {
+        SlowConsumerGuard guard = new SlowConsumerGuard(Policy.DROP, 2);
+        makeNotWritable();
+        for (int i = 0; i < 3; i++) {
+            guard.send(mChannelInfo, new OkResponse(i), mListener);
+        }
+        mChannel.runPendingTasks();
+        assertEquals("[accepted, accepted, DROP]", mOutcomes.toString());
+        assertEquals(2, mChannelInfo.getParkedCount());
+        assertEquals(2, guard.getParkedCount());
+        assertEquals(1, guard.getDroppedCount());
+    }
+
+    @Test
+    public void testDisconnectsWhenTooManyParked() throws Exception
+    {
+        SlowConsumerGuard guard = new SlowConsumerGuard(Policy.DISCONNECT, 0);
+        makeNotWritable();
+        guard.send(mChannelInfo, new OkResponse(1), mListener);
+        mChannel.runPendingTasks();
+        assertEquals("[DISCONNECT]", mOutcomes.toString());
+        assertFalse(mChannel.isActive());
+        assertEquals(1, guard.getDisconnectedCount());
+    }
+
+    @Test
+    public void testSpillsWhenRecipientDisconnected() throws Exception
+    {
+        SlowConsumerGuard guard = new SlowConsumerGuard(Policy.DROP, 1);
+        mChannel.close();
+        guard.send(mChannelInfo, new OkResponse(1), mListener);
+        mChannel.runPendingTasks();
+        assertEquals("[SPILL]", mOutcomes.toString());
+        assertNull(mChannel.readOutbound());
+        assertEquals(1, guard.getSpilledCount());
+    }
+
+    private void makeNotWritable() {
+        mChannel.config().setWriteBufferLowWaterMark(0);
+        mChannel.config().setWriteBufferHighWaterMark(1);
+        mChannel.write(new OkResponse(0)); // not flushed: stays in the outbound buffer
+        assertFalse(mChannel.isWritable());
+    }
+}
@@ -0,0 +1,90 @@
+package com.thn.netty.chat.server;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thn.netty.chat.primitive.UserName;
+import com.thn.netty.chat.server.store.CachingUserStore;
+import com.thn.netty.chat.server.store.JdbcUserStore;
+import com.thn.netty.chat.server.store.MessagePage;
+import com.thn.netty.chat.user.ContactInfo;
+import com.thn.netty.chat.user.ContactState;
+import com.thn.netty.chat.user.UserInfo;
+
+/**
+ * Drives {@link UserManager} from many threads sharing a small connection pool and user cache: account creations,
+ * contact changes and offline messages must all be persisted without deadlock.
+ */
+public class TestUserManagerStress
+{
+    private static final int THREADS = 16;
+    private static final int USERS_PER_THREAD = 25;
+    private static final int POOL_SIZE = 4;
+    private static final int CACHE_SIZE = 100; // smaller than the number of users to also exercise eviction
+
+    private JdbcUserStore mStore;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mStore = new JdbcUserStore("jdbc:h2:mem:stress;DB_CLOSE_DELAY=-1", POOL_SIZE, true);
+        mExecutor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        mExecutor.shutdownNow();
+        mStore.dropTables();
+        mStore.destroy();
+    }
+
+    @Test(timeout = 120000)
+    public void testConcurrentUsersContactsAndMessages() throws Exception
+    {
+        final UserManager userMgr = new UserManager(new CachingUserStore(mStore, CACHE_SIZE));
+        final UserInfo hub = userMgr.createUser(new UserName("hub"), "mypass");
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            futures.add(mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < USERS_PER_THREAD; i++) {
+                        UserName name = new UserName("user" + thread + "_" + i);
+                        UserInfo created = userMgr.createUser(name, "mypass");
+                        UserInfo user = userMgr.getUserByName(name);
+                        assertEquals(created.getId(), user.getId());
+                        user.getContacts().add(new ContactInfo(hub, ContactState.PENDING));
+                        userMgr.persistUser(user);
+                        userMgr.insertMessage(user.getId(), hub.getId(), "hello from " + name.getName());
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get(); // rethrows any failure of the thread
+        }
+
+        int total = THREADS * USERS_PER_THREAD;
+        assertEquals(total, userMgr.getContactOfUsers(hub.getId(), ContactState.PENDING).size());
+        MessagePage page = userMgr.getMessages(hub.getId(), 0, total);
+        assertEquals(total, page.getMessages().size());
+        assertFalse(page.hasMore());
+        userMgr.deleteMessagesForRecipient(hub.getId(), page.getLastMsgId());
+        assertEquals(0, userMgr.getMessages(hub.getId(), 0, total).getMessages().size());
+    }
+}
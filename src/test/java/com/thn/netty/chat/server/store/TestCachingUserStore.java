@@ -0,0 +1,93 @@
+package com.thn.netty.chat.server.store;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thn.netty.chat.primitive.UserId;
+import com.thn.netty.chat.primitive.UserName;
+import com.thn.netty.chat.user.ContactInfo;
+import com.thn.netty.chat.user.ContactState;
+import com.thn.netty.chat.user.UserInfo;
+
+/**
+ * Verifies the caching, eviction and invalidation of {@link CachingUserStore}.
+ */
+public class TestCachingUserStore
+{
+    private static final UserName ALICE = new UserName("Alice");
+    private static final UserName BOB = new UserName("Bob");
+    private static final UserName CHARLIE = new UserName("Charlie");
+
+    private UserStore mStore;
+    private CachingUserStore mCache;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mStore = mock(UserStore.class);
+        when(mStore.getUserByName(ALICE)).thenReturn(user(1, ALICE));
+        when(mStore.getUserByName(BOB)).thenReturn(user(2, BOB));
+        when(mStore.getUserByName(CHARLIE)).thenReturn(user(3, CHARLIE));
+        mCache = new CachingUserStore(mStore, 2);
+    }
+
+    @Test
+    public void testHitReturnsCopy() throws Exception
+    {
+        UserInfo first = mCache.getUserByName(ALICE);
+        first.getContacts().add(new ContactInfo(user(2, BOB), ContactState.PENDING));
+        UserInfo second = mCache.getUserByName(ALICE);
+        assertNotSame(first, second);
+        assertEquals(0, second.getContacts().size()); // caller's change didn't alter the cache
+        verify(mStore, times(1)).getUserByName(ALICE);
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(1, mCache.getMissCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception
+    {
+        mCache.getUserByName(ALICE);
+        mCache.getUserByName(BOB);
+        mCache.getUserByName(ALICE); // Bob becomes the least recently used
+        mCache.getUserByName(CHARLIE);
+        assertEquals(2, mCache.getSize());
+        mCache.getUserByName(ALICE);
+        mCache.getUserByName(BOB);
+        verify(mStore, times(1)).getUserByName(ALICE);
+        verify(mStore, times(2)).getUserByName(BOB);
+    }
+
+    @Test
+    public void testWritesInvalidate() throws Exception
+    {
+        UserInfo alice = mCache.getUserByName(ALICE);
+        when(mStore.persistUser(alice)).thenReturn(alice);
+        mCache.persistUser(alice);
+        mCache.getUserByName(ALICE);
+        verify(mStore, times(2)).getUserByName(ALICE);
+
+        mCache.updateContact(alice.getId(), new UserId(2), ContactState.CONTACT);
+        mCache.getUserByName(ALICE);
+        verify(mStore, times(3)).getUserByName(ALICE);
+
+        mCache.deleteContact(alice.getId(), new UserId(2));
+        mCache.getUserByName(ALICE);
+        verify(mStore, times(4)).getUserByName(ALICE);
+
+        mCache.deleteUser(new UserId(2));
+        mCache.getUserByName(ALICE);
+        verify(mStore, times(5)).getUserByName(ALICE);
+    }
+
+    private static UserInfo user(long aId, UserName aName) {
+        return new UserInfo(new UserId(aId), aName, "pass");
+    }
+}
@@ -0,0 +1,254 @@
+package com.thn.netty.chat.server.store;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thn.netty.chat.primitive.MessageInfo;
+import com.thn.netty.chat.primitive.UserId;
+import com.thn.netty.chat.primitive.UserName;
+import com.thn.netty.chat.user.UserInfo;
+
+/**
+ * Verifies the paging, acknowledgment, recovery and compaction of {@link JournalMessageStore}.
+ */
+public class TestJournalMessageStore
+{
+    private static final int SEGMENT_SIZE = 4096;
+    private static final UserId ALICE = new UserId(1);
+    private static final UserId BOB = new UserId(2);
+    private static final UserId CAROL = new UserId(3);
+
+    private final UserStore mUserStore = mock(UserStore.class);
+    private File mDir;
+    private JournalMessageStore mStore;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        when(mUserStore.getUserById(ALICE)).thenReturn(new UserInfo(ALICE, new UserName("Alice"), "mypass"));
+        mDir = File.createTempFile("journal", "");
+        mDir.delete();
+        mStore = open();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        mStore.destroy();
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    private JournalMessageStore open() throws StoreException {
+        return open(SEGMENT_SIZE);
+    }
+
+    private JournalMessageStore open(int aSegmentSize) throws StoreException {
+        return new JournalMessageStore(mDir, aSegmentSize, 50, false, mUserStore);
+    }
+
+    private void reopen() throws StoreException {
+        mStore.destroy();
+        mStore = open();
+    }
+
+    @Test
+    public void testPagesAndAcks() throws Exception
+    {
+        insert(BOB, "m", 5);
+        mStore.insertMessage(ALICE, CAROL, "hi Carol");
+        MessagePage page = mStore.getMessages(BOB, 0, 3);
+        assertEquals(texts("m", 0, 3), texts(page));
+        assertEquals(new UserName("Alice"), page.getMessages().get(0).getSender());
+        assertTrue(page.hasMore());
+        mStore.deleteMessagesForRecipient(BOB, page.getLastMsgId());
+
+        page = mStore.getMessages(BOB, 0, 10);
+        assertEquals(texts("m", 3, 5), texts(page));
+        assertFalse(page.hasMore());
+        assertEquals(texts("hi Carol"), texts(mStore.getMessages(CAROL, 0, 10)));
+        page = mStore.getMessages(BOB, page.getLastMsgId(), 10);
+        assertEquals(0, page.getMessages().size());
+    }
+
+    @Test
+    public void testRecoversAfterReopen() throws Exception
+    {
+        insert(BOB, "m", 5);
+        long lastMsgId = mStore.getMessages(BOB, 0, 5).getLastMsgId();
+        mStore.deleteMessagesForRecipient(BOB, mStore.getMessages(BOB, 0, 2).getLastMsgId());
+        reopen();
+        MessagePage page = mStore.getMessages(BOB, 0, 10);
+        assertEquals(texts("m", 2, 5), texts(page)); // the acknowledgment was replayed
+        assertEquals(lastMsgId, page.getLastMsgId());
+
+        mStore.insertMessage(ALICE, BOB, "new");
+        page = mStore.getMessages(BOB, lastMsgId, 10);
+        assertEquals(texts("new"), texts(page));
+        assertTrue(page.getLastMsgId() > lastMsgId); // ids not reused
+    }
+
+    @Test
+    public void testTornTailDiscarded() throws Exception
+    {
+        insert(BOB, "m", 3);
+        mStore.destroy();
+        // corrupt the text of the last record: segment header, 2 records, record header, fixed part
+        int recordSize = 8 + 29 + 2;
+        try (RandomAccessFile raf = new RandomAccessFile(mDir.listFiles()[0], "rw")) {
+            raf.seek(16 + 2 * recordSize + 8 + 29);
+            raf.write('x');
+        }
+        mStore = open();
+        assertEquals(texts("m", 0, 2), texts(mStore.getMessages(BOB, 0, 10)));
+
+        mStore.insertMessage(ALICE, BOB, "m3"); // overwrites the torn record
+        reopen();
+        assertEquals(texts("m0", "m1", "m3"), texts(mStore.getMessages(BOB, 0, 10)));
+    }
+
+    @Test
+    public void testDeletesAndCompactsSegments() throws Exception
+    {
+        // about 29 records of 100 characters per segment: Carol's message is in the first one
+        String text = String.format("%0100d", 0);
+        mStore.insertMessage(ALICE, CAROL, text);
+        insert(BOB, text, 60);
+        assertEquals(3, mStore.getSegmentCount());
+
+        mStore.deleteMessagesForRecipient(BOB, mStore.getMessages(BOB, 0, 60).getLastMsgId());
+        // Carol's message moved to the active segment
+        assertEquals(1, mStore.getSegmentCount());
+        assertEquals(2, mStore.getDeletedSegmentCount());
+        assertEquals(1, mStore.getCopiedCount());
+        assertEquals(1, mDir.listFiles().length);
+        assertEquals(1, mStore.getMessages(CAROL, 0, 10).getMessages().size());
+
+        reopen();
+        assertEquals(1, mStore.getMessages(CAROL, 0, 10).getMessages().size());
+        assertEquals(0, mStore.getMessages(BOB, 0, 10).getMessages().size());
+    }
+
+    @Test
+    public void testFailedBatchNotInserted() throws Exception
+    {
+        mStore.insertMessage(ALICE, CAROL, "hi Carol");
+        // the second segment can't be created: a directory has its name
+        File secondSegment = new File(mDir, String.format("%020d", 1) + ".seg");
+        assertTrue(secondSegment.mkdir());
+        try {
+            insert(BOB, String.format("%0100d", 0), 60); // about 29 records of 100 characters per segment
+            fail("batch inserted");
+        } catch (StoreException e) {
+            // expected
+        }
+        assertEquals(0, mStore.getMessages(BOB, 0, 100).getMessages().size());
+        assertTrue(secondSegment.delete());
+
+        insert(BOB, "m", 3);
+        assertEquals(texts("m", 0, 3), texts(mStore.getMessages(BOB, 0, 100)));
+        reopen();
+        assertEquals(texts("m", 0, 3), texts(mStore.getMessages(BOB, 0, 100)));
+        assertEquals(texts("hi Carol"), texts(mStore.getMessages(CAROL, 0, 10)));
+    }
+
+    @Test
+    public void testSegmentSizeRaisedBetweenRestarts() throws Exception
+    {
+        insert(BOB, "m", 3);
+        mStore.destroy();
+        mStore = open(4 * SEGMENT_SIZE);
+        // the recovered segment is still SEGMENT_SIZE long: about 29 records of 100 characters fit in it
+        String text = String.format("%0100d", 0);
+        insert(BOB, text, 60);
+        assertEquals(63, mStore.getMessages(BOB, 0, 100).getMessages().size());
+        mStore.destroy();
+        mStore = open(4 * SEGMENT_SIZE);
+        MessagePage page = mStore.getMessages(BOB, 0, 100);
+        assertEquals(63, page.getMessages().size());
+        assertEquals(text + 59, page.getMessages().get(62).getMessage());
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentInsertReadAndAck() throws Exception
+    {
+        final int count = 5000;
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        mStore.insertMessage(ALICE, BOB, "m" + i);
+                    }
+                } catch (StoreException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+        // read and acknowledge while the messages are inserted: each message must be read once, in order
+        List<String> read = new ArrayList<>();
+        while (true) {
+            boolean writerDone = !writer.isAlive(); // read once more after the last insert
+            MessagePage page = mStore.getMessages(BOB, 0, 100);
+            if (page.getMessages().isEmpty()) {
+                if (writerDone) {
+                    break;
+                }
+                continue;
+            }
+            read.addAll(texts(page));
+            mStore.deleteMessagesForRecipient(BOB, page.getLastMsgId());
+        }
+        writer.join();
+        assertEquals(texts("m", 0, count), read);
+        assertEquals(0, mStore.getMessages(BOB, 0, 10).getMessages().size());
+    }
+
+    private void insert(UserId aRecipientId, String aPrefix, int aCount) throws StoreException {
+        List<OfflineMessage> msgs = new ArrayList<>();
+        for (int i = 0; i < aCount; i++) {
+            msgs.add(new OfflineMessage(ALICE, aRecipientId, aPrefix + i));
+        }
+        mStore.insertMessages(msgs);
+    }
+
+    private static List<String> texts(String aPrefix, int aFrom, int aTo) {
+        List<String> texts = new ArrayList<>();
+        for (int i = aFrom; i < aTo; i++) {
+            texts.add(aPrefix + i);
+        }
+        return texts;
+    }
+
+    private static List<String> texts(String... aTexts) {
+        List<String> texts = new ArrayList<>();
+        for (String text : aTexts) {
+            texts.add(text);
+        }
+        return texts;
+    }
+
+    private static List<String> texts(MessagePage aPage) {
+        List<String> texts = new ArrayList<>();
+        for (MessageInfo msg : aPage.getMessages()) {
+            texts.add(msg.getMessage());
+        }
+        return texts;
+    }
+}
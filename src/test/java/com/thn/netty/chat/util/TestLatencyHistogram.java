@@ -0,0 +1,51 @@
+package com.thn.netty.chat.util;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Verifies the percentiles computed by {@link LatencyHistogram} and their precision.
+ */
+public class TestLatencyHistogram
+{
+    @Test
+    public void testPercentiles() throws Exception
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertWithin(50000, histogram.getPercentile(50));
+        assertWithin(99000, histogram.getPercentile(99));
+        assertWithin(99900, histogram.getPercentile(99.9));
+        assertWithin(100000, histogram.getMax());
+    }
+
+    @Test
+    public void testSmallValuesExact() throws Exception
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(3);
+        histogram.record(63);
+        assertEquals(0, histogram.getPercentile(10));
+        assertEquals(3, histogram.getPercentile(50));
+        assertEquals(63, histogram.getMax());
+    }
+
+    @Test
+    public void testEmpty() throws Exception
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0, histogram.getMax());
+    }
+
+    private static void assertWithin(long aExpected, long aActual) {
+        assertTrue("expected about " + aExpected + " but was " + aActual,
+                   Math.abs(aExpected - aActual) <= aExpected / 32);
+    }
+}